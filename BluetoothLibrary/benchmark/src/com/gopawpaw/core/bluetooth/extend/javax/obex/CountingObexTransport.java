@@ -0,0 +1,110 @@
+/**
+ * Copyright (c) 2008-2009, Motorola, Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of the Motorola, Inc. nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gopawpaw.core.bluetooth.extend.javax.obex;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/***
+ * An <code>ObexTransport</code> that counts the packets sent through it. Both
+ * sessions flush their output once per packet, so the flushes are counted.
+ * @hide
+ */
+/**package*/ final class CountingObexTransport implements ObexTransport {
+
+    private final ObexTransport mTransport;
+
+    private final AtomicLong mPackets;
+
+    /***
+     * @param transport the transport to pass everything to
+     * @param packets the counter to add every packet sent to; may be shared
+     *        by both ends of a connection
+     */
+    CountingObexTransport(ObexTransport transport, AtomicLong packets) {
+        mTransport = transport;
+        mPackets = packets;
+    }
+
+    public void create() throws IOException {
+        mTransport.create();
+    }
+
+    public void listen() throws IOException {
+        mTransport.listen();
+    }
+
+    public void close() throws IOException {
+        mTransport.close();
+    }
+
+    public void connect() throws IOException {
+        mTransport.connect();
+    }
+
+    public void disconnect() throws IOException {
+        mTransport.disconnect();
+    }
+
+    public InputStream openInputStream() throws IOException {
+        return mTransport.openInputStream();
+    }
+
+    public OutputStream openOutputStream() throws IOException {
+        return new FilterOutputStream(mTransport.openOutputStream()) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                mPackets.incrementAndGet();
+                out.flush();
+            }
+        };
+    }
+
+    public DataInputStream openDataInputStream() throws IOException {
+        return new DataInputStream(openInputStream());
+    }
+
+    public DataOutputStream openDataOutputStream() throws IOException {
+        return new DataOutputStream(openOutputStream());
+    }
+}
@@ -0,0 +1,128 @@
+/**
+ * Copyright (c) 2008-2009, Motorola, Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of the Motorola, Inc. nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gopawpaw.core.bluetooth.extend.javax.obex;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/***
+ * Measures parsing the headers of one received PUT packet: NAME, TYPE and
+ * LENGTH followed by a BODY of <code>bodySize</code> bytes.
+ * <P>
+ * <code>parseInPlace</code> decodes the packet where it lies and writes the
+ * body straight into the <code>PrivateInputStream</code> of the operation,
+ * as the sessions do. <code>parseCopy</code> uses the older
+ * <code>updateHeaderSet()</code> that returns the body in an array of its
+ * own, which <code>CONNECT</code>, <code>SETPATH</code> and
+ * <code>DISCONNECT</code> still use. Run with <code>-prof gc</code> to compare
+ * the allocation per packet.
+ * @hide
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HeaderParseBenchmark {
+
+    @Param({"0", "4000", "65000"})
+    public int bodySize;
+
+    private byte[] mPacket;
+
+    private byte[] mScratch;
+
+    private PrivateInputStream mBody;
+
+    @Setup
+    public void setUp() throws IOException {
+        HeaderSet headers = new HeaderSet();
+        headers.setHeader(HeaderSet.NAME, "IMG_20100102_030405.jpg");
+        headers.setHeader(HeaderSet.TYPE, "image/jpeg");
+        headers.setHeader(HeaderSet.LENGTH, Long.valueOf(1048576));
+        byte[] encoded = ObexHelper.createHeader(headers, false);
+        mPacket = new byte[encoded.length + 3 + bodySize];
+        System.arraycopy(encoded, 0, mPacket, 0, encoded.length);
+        mPacket[encoded.length] = (byte)HeaderSet.BODY;
+        mPacket[encoded.length + 1] = (byte)((bodySize + 3) >> 8);
+        mPacket[encoded.length + 2] = (byte)(bodySize + 3);
+        mScratch = new byte[Math.max(bodySize, 1)];
+        mBody = new PrivateInputStream(new IdleStream());
+    }
+
+    @Benchmark
+    public HeaderSet parseInPlace() throws IOException {
+        HeaderSet header = new HeaderSet();
+        ObexHelper.updateHeaderSet(header, mPacket, 0, mPacket.length, mBody);
+        mBody.read(mScratch, 0, mBody.available());
+        return header;
+    }
+
+    @Benchmark
+    public byte[] parseCopy() throws IOException {
+        return ObexHelper.updateHeaderSet(new HeaderSet(), mPacket);
+    }
+
+    /***
+     * An operation that never has more data, so the body stream only holds
+     * what a packet put into it.
+     */
+    private static final class IdleStream implements BaseStream {
+
+        public void ensureOpen() {
+        }
+
+        public void ensureNotDone() {
+        }
+
+        public boolean continueOperation(boolean sendEmpty, boolean inStream) {
+            return false;
+        }
+
+        public void streamClosed(boolean inStream) {
+        }
+    }
+}
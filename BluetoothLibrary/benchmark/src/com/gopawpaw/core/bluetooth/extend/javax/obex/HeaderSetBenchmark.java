@@ -0,0 +1,91 @@
+/**
+ * Copyright (c) 2008-2009, Motorola, Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of the Motorola, Inc. nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gopawpaw.core.bluetooth.extend.javax.obex;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/***
+ * Measures the life of a <code>HeaderSet</code> as the stack uses one for
+ * every request, reply and continuation packet: creating it, setting the
+ * usual headers of a push and reading them back. <code>challenge</code>
+ * also adds an authentication challenge, which draws its nonce from the
+ * shared random source. Run with <code>-prof gc</code> for the allocation
+ * per header set.
+ * @hide
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HeaderSetBenchmark {
+
+    private static final Long LENGTH = Long.valueOf(1048576);
+
+    @Benchmark
+    public HeaderSet create() {
+        HeaderSet header = new HeaderSet();
+        header.setHeader(HeaderSet.NAME, "IMG_20100102_030405.jpg");
+        return header;
+    }
+
+    @Benchmark
+    public Object setAndGet() throws IOException {
+        HeaderSet header = new HeaderSet();
+        header.setHeader(HeaderSet.NAME, "IMG_20100102_030405.jpg");
+        header.setHeader(HeaderSet.TYPE, "image/jpeg");
+        header.setHeader(HeaderSet.LENGTH, LENGTH);
+        header.getHeader(HeaderSet.NAME);
+        header.getHeader(HeaderSet.TYPE);
+        return header.getHeader(HeaderSet.LENGTH);
+    }
+
+    @Benchmark
+    public HeaderSet challenge() throws IOException {
+        HeaderSet header = new HeaderSet();
+        header.createAuthenticationChallenge("realm", false, true);
+        return header;
+    }
+}
@@ -0,0 +1,209 @@
+/**
+ * Copyright (c) 2008-2009, Motorola, Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of the Motorola, Inc. nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gopawpaw.core.bluetooth.extend.javax.obex;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/***
+ * Measures PUT and GET of one object between a <code>ClientSession</code>
+ * and a <code>ServerSession</code> over <code>LoopbackObexTransport</code>,
+ * across packet sizes, with and without Single Response Mode.
+ * <P>
+ * One operation moves <code>objectSize</code> bytes, so the throughput in
+ * bytes per second is the score times <code>objectSize</code>. The
+ * <code>packets</code> counter reports the packets sent in both directions
+ * per second. Run with <code>-prof gc</code> for the allocation rate.
+ * <code>latencyMillis</code> and <code>bytesPerSecond</code> set up the link
+ * like an RFCOMM channel; the default is an unlimited link, which measures
+ * the protocol code alone.
+ * @hide
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ObexThroughputBenchmark {
+
+    @Param({"256", "4096", "32767", "65534"})
+    public int packetSize;
+
+    @Param({"false", "true"})
+    public boolean srm;
+
+    @Param({"1048576"})
+    public int objectSize;
+
+    @Param({"0"})
+    public long latencyMillis;
+
+    @Param({"0"})
+    public int bytesPerSecond;
+
+    /*** The packets sent by both sessions, reported per second */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Packets {
+        public long packets;
+    }
+
+    private final AtomicLong mPackets = new AtomicLong();
+
+    private byte[] mObject;
+
+    private ServerSession mServer;
+
+    private ClientSession mClient;
+
+    @Setup
+    public void setUp() throws IOException {
+        mObject = new byte[objectSize];
+        LoopbackObexTransport[] pair = LoopbackObexTransport.createPair(latencyMillis,
+                bytesPerSecond);
+        mServer = new ServerSession(new CountingObexTransport(pair[1], mPackets),
+                new ObjectHandler(mObject), null, packetSize);
+        mServer.setSingleResponseModeEnabled(srm);
+        mClient = new ClientSession(new CountingObexTransport(pair[0], mPackets), packetSize);
+        mClient.setSingleResponseModeEnabled(srm);
+        mClient.connect(null);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mClient.disconnect(null);
+        mClient.close();
+        mServer.close();
+    }
+
+    @Benchmark
+    public int put(Packets packets) throws IOException {
+        long start = mPackets.get();
+        HeaderSet request = new HeaderSet();
+        request.setHeader(HeaderSet.NAME, "object");
+        request.setHeader(HeaderSet.LENGTH, Long.valueOf(mObject.length));
+        Operation op = mClient.put(request);
+        OutputStream out = op.openOutputStream();
+        out.write(mObject);
+        out.close();
+        int responseCode = op.getResponseCode();
+        op.close();
+        packets.packets += mPackets.get() - start;
+        return responseCode;
+    }
+
+    @Benchmark
+    public long get(Packets packets) throws IOException {
+        long start = mPackets.get();
+        HeaderSet request = new HeaderSet();
+        request.setHeader(HeaderSet.NAME, "object");
+        Operation op = mClient.get(request);
+        InputStream in = op.openInputStream();
+        byte[] buffer = new byte[0x10000];
+        long received = 0;
+        int length;
+        while ((length = in.read(buffer)) != -1) {
+            received += length;
+        }
+        in.close();
+        op.close();
+        packets.packets += mPackets.get() - start;
+        return received;
+    }
+
+    /***
+     * Drops the objects put and serves <code>object</code> to every GET.
+     */
+    /**package*/ static final class ObjectHandler extends ServerRequestHandler {
+
+        private final byte[] mObject;
+
+        private final byte[] mBuffer = new byte[0x10000];
+
+        ObjectHandler(byte[] object) {
+            mObject = object;
+        }
+
+        @Override
+        public int onConnect(HeaderSet request, HeaderSet reply) {
+            return ResponseCodes.OBEX_HTTP_OK;
+        }
+
+        @Override
+        public int onPut(Operation operation) {
+            try {
+                InputStream in = operation.openInputStream();
+                while (in.read(mBuffer) != -1) {
+                    // drop it
+                }
+                in.close();
+                return ResponseCodes.OBEX_HTTP_OK;
+            } catch (IOException e) {
+                return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+            }
+        }
+
+        @Override
+        public int onGet(Operation operation) {
+            try {
+                HeaderSet reply = new HeaderSet();
+                reply.setHeader(HeaderSet.LENGTH, Long.valueOf(mObject.length));
+                operation.sendHeaders(reply);
+                OutputStream out = operation.openOutputStream();
+                out.write(mObject);
+                out.close();
+                return ResponseCodes.OBEX_HTTP_OK;
+            } catch (IOException e) {
+                return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/**
+ * Copyright (c) 2008-2009, Motorola, Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of the Motorola, Inc. nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gopawpaw.core.bluetooth.extend.javax.obex;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/***
+ * Measures framing one request packet from a stream. <code>reader</code>
+ * uses <code>ObexPacketReader</code>, as the sessions do; <code>bytewise</code>
+ * reads the opcode and the length a byte at a time and the rest into a new
+ * array, as <code>ServerSession</code> and <code>ServerOperation</code> used
+ * to.
+ * <P>
+ * The stream replays the same PUT packet of <code>packetSize</code> bytes
+ * from memory, so the score is the framing cost alone. On a socket every
+ * stream read is a call into the kernel, so the <code>reads</code> counter,
+ * the stream reads per second, matters more than the score there.
+ * @hide
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PacketReaderBenchmark {
+
+    @Param({"256", "4096", "65534"})
+    public int packetSize;
+
+    /*** The stream reads, reported per second */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Reads {
+        public long reads;
+    }
+
+    private ReplayInputStream mInput;
+
+    private ObexPacketReader mReader;
+
+    @Setup
+    public void setUp() {
+        byte[] packet = new byte[packetSize];
+        packet[0] = (byte)ObexHelper.OBEX_OPCODE_PUT;
+        packet[1] = (byte)(packetSize >> 8);
+        packet[2] = (byte)packetSize;
+        packet[3] = (byte)HeaderSet.BODY;
+        packet[4] = (byte)((packetSize - 3) >> 8);
+        packet[5] = (byte)(packetSize - 3);
+        mInput = new ReplayInputStream(packet);
+        mReader = new ObexPacketReader(mInput, packetSize);
+    }
+
+    @Benchmark
+    public int reader(Reads reads) throws IOException {
+        long start = mInput.mReads;
+        int opcode = mReader.readPacket();
+        reads.reads += mInput.mReads - start;
+        return opcode + mReader.getLength();
+    }
+
+    @Benchmark
+    public int bytewise(Reads reads) throws IOException {
+        long start = mInput.mReads;
+        int opcode = mInput.read();
+        int length = mInput.read();
+        length = (length << 8) + mInput.read();
+        byte[] headers = new byte[length - 3];
+        int received = 0;
+        while (received != headers.length) {
+            received += mInput.read(headers, received, headers.length - received);
+        }
+        reads.reads += mInput.mReads - start;
+        return opcode + headers.length;
+    }
+
+    /***
+     * Returns the same packet over and over and counts the calls made to it.
+     */
+    private static final class ReplayInputStream extends InputStream {
+
+        private final byte[] mPacket;
+
+        private int mIndex;
+
+        long mReads;
+
+        ReplayInputStream(byte[] packet) {
+            mPacket = packet;
+        }
+
+        @Override
+        public int read() {
+            mReads++;
+            int b = mPacket[mIndex++] & 0xFF;
+            if (mIndex == mPacket.length) {
+                mIndex = 0;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int offset, int length) {
+            mReads++;
+            int count = Math.min(length, mPacket.length - mIndex);
+            System.arraycopy(mPacket, mIndex, b, offset, count);
+            mIndex += count;
+            if (mIndex == mPacket.length) {
+                mIndex = 0;
+            }
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return mPacket.length - mIndex;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright (c) 2008-2009, Motorola, Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of the Motorola, Inc. nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gopawpaw.core.bluetooth.extend.javax.obex;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/***
+ * Measures how <code>PrivateOutputStream</code> queues a body and hands it
+ * out packet by packet, for different write sizes. The operation behind the
+ * stream takes a packet of <code>packetSize</code> bytes whenever the stream
+ * asks it to continue, the way <code>ClientOperation</code> does, but sends
+ * nothing.
+ * <P>
+ * One operation writes and drains <code>objectSize</code> bytes. Run with
+ * <code>-prof gc</code> to see that the chunks are reused: the allocation per
+ * operation should not grow with the object.
+ * <P>
+ * The benchmark only uses <code>readBytes(byte[], int, int)</code>, so it
+ * also builds against the <code>ByteArrayOutputStream</code> based stream
+ * that came before the chunk queue, which gives the baseline.
+ * @hide
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PrivateOutputStreamBenchmark {
+
+    @Param({"1", "100", "1000", "8192", "65536"})
+    public int writeSize;
+
+    @Param({"4096", "65534"})
+    public int packetSize;
+
+    @Param({"1048576"})
+    public int objectSize;
+
+    private byte[] mData;
+
+    private DrainingStream mParent;
+
+    @Setup
+    public void setUp() {
+        mData = new byte[writeSize];
+        mParent = new DrainingStream(packetSize);
+    }
+
+    @Benchmark
+    public long writeAndDrain() throws IOException {
+        PrivateOutputStream out = new PrivateOutputStream(mParent, packetSize);
+        mParent.mStream = out;
+        mParent.mDrained = 0;
+        for (int written = 0; written < objectSize; written += writeSize) {
+            if (writeSize == 1) {
+                out.write(0);
+            } else {
+                out.write(mData, 0, Math.min(writeSize, objectSize - written));
+            }
+        }
+        out.close();
+        return mParent.mDrained;
+    }
+
+    /***
+     * Stands in for the operation: copies a packet out of the stream into a
+     * packet buffer each time the stream asks to continue.
+     */
+    private static final class DrainingStream implements BaseStream {
+
+        private final byte[] mPacket;
+
+        PrivateOutputStream mStream;
+
+        long mDrained;
+
+        DrainingStream(int packetSize) {
+            mPacket = new byte[packetSize];
+        }
+
+        public void ensureOpen() {
+        }
+
+        public void ensureNotDone() {
+        }
+
+        public boolean continueOperation(boolean sendEmpty, boolean inStream) {
+            drain();
+            return true;
+        }
+
+        public void streamClosed(boolean inStream) {
+            while (mStream.size() > 0) {
+                drain();
+            }
+        }
+
+        /***
+         * Takes at most one packet, never asking for more than is queued, as
+         * <code>ClientOperation</code> does.
+         */
+        private void drain() {
+            int length = Math.min(mStream.size(), mPacket.length);
+            if (length > 0) {
+                mDrained += mStream.readBytes(mPacket, 0, length);
+            }
+        }
+    }
+}
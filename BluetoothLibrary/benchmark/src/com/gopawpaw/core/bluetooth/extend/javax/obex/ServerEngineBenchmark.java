@@ -0,0 +1,147 @@
+/**
+ * Copyright (c) 2008-2009, Motorola, Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of the Motorola, Inc. nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gopawpaw.core.bluetooth.extend.javax.obex;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/***
+ * Measures many clients pushing at once to one <code>ObexServerEngine</code>
+ * with <code>workerThreads</code> workers. Each of the <code>sessions</code>
+ * client sessions has a thread of its own and puts <code>objectSize</code>
+ * bytes per operation, so one operation moves
+ * <code>sessions * objectSize</code> bytes through the locks of the client
+ * sessions, their body streams and the engine.
+ * @hide
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ServerEngineBenchmark {
+
+    @Param({"50", "500"})
+    public int sessions;
+
+    @Param({"8"})
+    public int workerThreads;
+
+    @Param({"262144"})
+    public int objectSize;
+
+    private byte[] mObject;
+
+    private ObexServerEngine mEngine;
+
+    private ExecutorService mClients;
+
+    private final ArrayList<ClientSession> mSessions = new ArrayList<ClientSession>();
+
+    @Setup
+    public void setUp() throws IOException {
+        mObject = new byte[objectSize];
+        mEngine = new ObexServerEngine(workerThreads);
+        mClients = Executors.newFixedThreadPool(sessions);
+        for (int i = 0; i < sessions; i++) {
+            LoopbackObexTransport[] pair = LoopbackObexTransport.createPair();
+            mEngine.addSession(pair[1], new ObexThroughputBenchmark.ObjectHandler(mObject), null);
+            ClientSession session = new ClientSession(pair[0]);
+            session.connect(null);
+            mSessions.add(session);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        for (ClientSession session : mSessions) {
+            session.close();
+        }
+        mSessions.clear();
+        mClients.shutdown();
+        mEngine.shutdown();
+    }
+
+    @Benchmark
+    public int putAll() throws InterruptedException, ExecutionException {
+        ArrayList<Future<Integer>> puts = new ArrayList<Future<Integer>>(sessions);
+        for (final ClientSession session : mSessions) {
+            puts.add(mClients.submit(new Callable<Integer>() {
+                public Integer call() throws IOException {
+                    return Integer.valueOf(put(session));
+                }
+            }));
+        }
+        int ok = 0;
+        for (Future<Integer> put : puts) {
+            if (put.get().intValue() == ResponseCodes.OBEX_HTTP_OK) {
+                ok++;
+            }
+        }
+        return ok;
+    }
+
+    private int put(ClientSession session) throws IOException {
+        HeaderSet request = new HeaderSet();
+        request.setHeader(HeaderSet.NAME, "object");
+        request.setHeader(HeaderSet.LENGTH, Long.valueOf(mObject.length));
+        Operation op = session.put(request);
+        OutputStream out = op.openOutputStream();
+        out.write(mObject);
+        out.close();
+        int responseCode = op.getResponseCode();
+        op.close();
+        return responseCode;
+    }
+}
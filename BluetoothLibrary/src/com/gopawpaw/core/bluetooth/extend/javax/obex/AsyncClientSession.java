@@ -0,0 +1,313 @@
+/**
+ * Copyright (c) 2008-2009, Motorola, Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of the Motorola, Inc. nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gopawpaw.core.bluetooth.extend.javax.obex;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/***
+ * Runs the requests of a <code>ClientSession</code> on a shared executor and
+ * returns an <code>ObexFuture</code> for each of them, so an application can
+ * drive many OBEX sessions without a thread of its own for each.
+ * <P>
+ * The requests of one session are queued and run one after the other, in the
+ * order they were made, since a session performs one request at a time. Each
+ * request is handed to the executor on its own, so the sessions sharing an
+ * executor take turns between requests. A request holds a thread of the
+ * executor while it runs, so the executor bounds how many requests of
+ * different sessions run at once.
+ * <P>
+ * A PUT or GET sends or receives the whole body, see <code>put()</code> and
+ * <code>get()</code>. A request that fails does not stop the queue; the
+ * requests after it run and fail in turn if the session is broken. Cancelling
+ * a running PUT or GET with <code>cancel(true)</code> closes the session, see
+ * <code>ObexFuture</code>.
+ * @hide
+ */
+public final class AsyncClientSession {
+
+    private final ClientSession mSession;
+
+    private final Executor mExecutor;
+
+    /*** The requests that have not started yet */
+    private final LinkedList<ObexFuture<?>> mQueue = new LinkedList<ObexFuture<?>>();
+
+    /*** Whether a request is running or handed to the executor */
+    private boolean mActive;
+
+    private final Runnable mRunner = new Runnable() {
+        public void run() {
+            runNext();
+        }
+    };
+
+    /***
+     * @param session the session to run the requests of; it must not be used
+     *        directly while requests are queued
+     * @param executor the executor to run the requests on, usually shared by
+     *        many sessions
+     */
+    public AsyncClientSession(ClientSession session, Executor executor) {
+        if ((session == null) || (executor == null)) {
+            throw new NullPointerException("Session and executor may not be null");
+        }
+        mSession = session;
+        mExecutor = executor;
+    }
+
+    /***
+     * Returns the session the requests run on.
+     */
+    public ClientSession getSession() {
+        return mSession;
+    }
+
+    /***
+     * Queues a CONNECT, see <code>ClientSession.connect()</code>.
+     * @return the future of the headers received
+     */
+    public ObexFuture<HeaderSet> connect(final HeaderSet header) {
+        return enqueue(new ObexFuture<HeaderSet>() {
+            HeaderSet execute() throws IOException {
+                return mSession.connect(header);
+            }
+        });
+    }
+
+    /***
+     * Queues a DISCONNECT, see <code>ClientSession.disconnect()</code>.
+     * @return the future of the headers received
+     */
+    public ObexFuture<HeaderSet> disconnect(final HeaderSet header) {
+        return enqueue(new ObexFuture<HeaderSet>() {
+            HeaderSet execute() throws IOException {
+                return mSession.disconnect(header);
+            }
+        });
+    }
+
+    /***
+     * Queues a SETPATH, see <code>ClientSession.setPath()</code>.
+     * @return the future of the headers received
+     */
+    public ObexFuture<HeaderSet> setPath(final HeaderSet header, final boolean backup,
+            final boolean create) {
+        return enqueue(new ObexFuture<HeaderSet>() {
+            HeaderSet execute() throws IOException {
+                return mSession.setPath(header, backup, create);
+            }
+        });
+    }
+
+    /***
+     * Queues a DELETE, see <code>ClientSession.delete()</code>.
+     * @return the future of the headers received
+     */
+    public ObexFuture<HeaderSet> delete(final HeaderSet header) {
+        return enqueue(new ObexFuture<HeaderSet>() {
+            HeaderSet execute() throws IOException {
+                return mSession.delete(header);
+            }
+        });
+    }
+
+    /***
+     * Queues a PUT that sends everything <code>body</code> holds. The body is
+     * read on the thread of the executor, so it should not block on anything
+     * but the storage it comes from. It is not closed.
+     * @param header the headers to send
+     * @param body the object to send; <code>null</code> to send headers only
+     * @return the future of the headers received, whose
+     *         <code>responseCode</code> is the final response of the server
+     */
+    public ObexFuture<HeaderSet> put(final HeaderSet header, final InputStream body) {
+        return enqueue(new ObexFuture<HeaderSet>() {
+            HeaderSet execute() throws IOException {
+                ClientOperation op = (ClientOperation)mSession.put(header);
+                boolean aborted = false;
+                try {
+                    if (body != null) {
+                        OutputStream out = op.openOutputStream();
+                        byte[] buffer = new byte[op.getMaxPacketSize()];
+                        int length;
+                        while ((length = body.read(buffer)) != -1) {
+                            if (isCancelled()) {
+                                aborted = true;
+                                op.abort();
+                                return null;
+                            }
+                            out.write(buffer, 0, length);
+                        }
+                        out.close();
+                    }
+                    op.getResponseCode();
+                    return op.getReceivedHeader();
+                } finally {
+                    if (!aborted) {
+                        op.close();
+                    }
+                }
+            }
+
+            void interrupt() {
+                closeSession();
+            }
+        });
+    }
+
+    /***
+     * Queues a GET that writes the object received to <code>body</code>. The
+     * body is written on the thread of the executor. It is not closed.
+     * @param header the headers to send
+     * @param body the stream to write the object to; <code>null</code> to
+     *        receive headers only
+     * @return the future of the headers received, whose
+     *         <code>responseCode</code> is the final response of the server
+     */
+    public ObexFuture<HeaderSet> get(final HeaderSet header, final OutputStream body) {
+        return enqueue(new ObexFuture<HeaderSet>() {
+            HeaderSet execute() throws IOException {
+                ClientOperation op = (ClientOperation)mSession.get(header);
+                boolean aborted = false;
+                try {
+                    if (body != null) {
+                        InputStream in = op.openInputStream();
+                        byte[] buffer = new byte[op.getMaxPacketSize()];
+                        int length;
+                        while ((length = in.read(buffer)) != -1) {
+                            if (isCancelled()) {
+                                aborted = true;
+                                op.abort();
+                                return null;
+                            }
+                            body.write(buffer, 0, length);
+                        }
+                        in.close();
+                    }
+                    op.getResponseCode();
+                    return op.getReceivedHeader();
+                } finally {
+                    if (!aborted) {
+                        op.close();
+                    }
+                }
+            }
+
+            void interrupt() {
+                closeSession();
+            }
+        });
+    }
+
+    /***
+     * Closes the session to end a PUT or GET cancelled while it is blocked on
+     * the transport. The blocked thread holds the lock of the operation, so
+     * an ABORT can not be sent from here.
+     */
+    private void closeSession() {
+        try {
+            mSession.close();
+        } catch (IOException e) {
+            // the transport is closed either way
+        }
+    }
+
+    /***
+     * Returns the number of requests that have not started yet.
+     */
+    public int getQueuedCount() {
+        synchronized (mQueue) {
+            return mQueue.size();
+        }
+    }
+
+    private <V> ObexFuture<V> enqueue(ObexFuture<V> future) {
+        synchronized (mQueue) {
+            mQueue.add(future);
+            if (mActive) {
+                return future;
+            }
+            mActive = true;
+        }
+        schedule();
+        return future;
+    }
+
+    /***
+     * Hands the runner to the executor, or fails every queued request if the
+     * executor refuses it.
+     */
+    private void schedule() {
+        try {
+            mExecutor.execute(mRunner);
+        } catch (RejectedExecutionException e) {
+            LinkedList<ObexFuture<?>> rejected;
+            synchronized (mQueue) {
+                rejected = new LinkedList<ObexFuture<?>>(mQueue);
+                mQueue.clear();
+                mActive = false;
+            }
+            for (ObexFuture<?> future : rejected) {
+                future.fail(new IOException("Executor rejected the request"));
+            }
+        }
+    }
+
+    /***
+     * Runs the next request of the queue and hands the runner back to the
+     * executor if more are queued.
+     */
+    private void runNext() {
+        ObexFuture<?> future;
+        synchronized (mQueue) {
+            future = mQueue.poll();
+            if (future == null) {
+                mActive = false;
+                return;
+            }
+        }
+        future.run();
+        synchronized (mQueue) {
+            if (mQueue.isEmpty()) {
+                mActive = false;
+                return;
+            }
+        }
+        schedule();
+    }
+}
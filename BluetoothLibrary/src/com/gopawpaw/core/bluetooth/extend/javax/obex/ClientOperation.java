@@ -37,7 +37,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
-import java.io.ByteArrayOutputStream;
+import java.util.concurrent.locks.ReentrantLock;
 
 /***
  * This class implements the <code>Operation</code> interface. It will read and
@@ -46,6 +46,13 @@ import java.io.ByteArrayOutputStream;
  */
 public final class ClientOperation implements Operation, BaseStream {
 
+    /***
+     * Guards the state of the operation while a packet is exchanged. A lock
+     * rather than <code>synchronized</code>, so a thread that blocks on the
+     * transport while holding it does not pin the thread it is scheduled on.
+     */
+    private final ReentrantLock mLock = new ReentrantLock();
+
     private ClientSession mParent;
 
     private boolean mInputOpen;
@@ -72,6 +79,28 @@ public final class ClientOperation implements Operation, BaseStream {
 
     private boolean mEndOfBodySent;
 
+    /*** Whether the first request asked the server for Single Response Mode */
+    private boolean mSrmRequested;
+
+    /*** Whether the server agreed to Single Response Mode */
+    private boolean mSrmEnabled;
+
+    /***
+     * Whether packets are currently exchanged in Single Response Mode; false
+     * while the server asks the client to wait for its next response
+     */
+    private boolean mSrmActive;
+
+    private boolean mGetFinalSent;
+
+    private int mPutPipelineWindow;
+
+    /*** Whether the server has answered a PUT packet with CONTINUE */
+    private boolean mPutPipelineStarted;
+
+    /*** The number of PUT packets written whose response has not been read */
+    private int mPendingResponses;
+
     /***
      * Creates new OperationImpl to read and write data to a server
      * @param maxSize the maximum packet size
@@ -90,6 +119,7 @@ public final class ClientOperation implements Operation, BaseStream {
         mOperationDone = false;
         mMaxPacketSize = maxSize;
         mGetOperation = type;
+        mPutPipelineWindow = type ? 1 : p.getPutPipelineWindow();
 
         mPrivateInputOpen = false;
         mPrivateOutputOpen = false;
@@ -100,14 +130,7 @@ public final class ClientOperation implements Operation, BaseStream {
 
         mRequestHeader = new HeaderSet();
 
-        int[] headerList = header.getHeaderList();
-
-        if (headerList != null) {
-
-            for (int i = 0; i < headerList.length; i++) {
-                mRequestHeader.setHeader(headerList[i], header.getHeader(headerList[i]));
-            }
-        }
+        mRequestHeader.copyHeadersFrom(header);
 
         if ((header).mAuthChall != null) {
             mRequestHeader.mAuthChall = new byte[(header).mAuthChall.length];
@@ -121,6 +144,12 @@ public final class ClientOperation implements Operation, BaseStream {
                     (header).mAuthResp.length);
 
         }
+
+        if (mParent.isSingleResponseModeEnabled()) {
+            mSrmRequested = true;
+            mRequestHeader.setHeader(HeaderSet.SINGLE_RESPONSE_MODE, Byte
+                    .valueOf(ObexHelper.OBEX_SRM_ENABLE));
+        }
     }
 
     /***
@@ -130,30 +159,50 @@ public final class ClientOperation implements Operation, BaseStream {
      * @throws IOException if the transaction has already ended or if an OBEX
      *         server called this method
      */
-    public synchronized void abort() throws IOException {
-        ensureOpen();
-        //no compatible with sun-ri
-        if ((mOperationDone) && (mReplyHeader.responseCode != ResponseCodes.OBEX_HTTP_CONTINUE)) {
-            throw new IOException("Operation has already ended");
-        }
+    public void abort() throws IOException {
+        mLock.lock();
+        try {
+            ensureOpen();
+            //no compatible with sun-ri
+            if ((mOperationDone)
+                    && (mReplyHeader.responseCode != ResponseCodes.OBEX_HTTP_CONTINUE)) {
+                throw new IOException("Operation has already ended");
+            }
 
-        mExceptionMessage = "Operation aborted";
-        if ((!mOperationDone) && (mReplyHeader.responseCode == ResponseCodes.OBEX_HTTP_CONTINUE)) {
-            mOperationDone = true;
-            /**
-             * Since we are not sending any headers or returning any headers then
-             * we just need to write and read the same bytes
-             */
-            mParent.sendRequest(ObexHelper.OBEX_OPCODE_ABORT, null, mReplyHeader, null);
+            mExceptionMessage = "Operation aborted";
+            if ((!mOperationDone)
+                    && (mReplyHeader.responseCode == ResponseCodes.OBEX_HTTP_CONTINUE)) {
+                mOperationDone = true;
+                if (mSrmActive && mGetFinalSent) {
+                    /**
+                     * The server is streaming the response and does not read
+                     * requests until it is done, so drop the rest of the response
+                     * instead of sending an ABORT
+                     */
+                    while (mReplyHeader.responseCode == ResponseCodes.OBEX_HTTP_CONTINUE) {
+                        mParent.readResponse(ObexHelper.OBEX_OPCODE_GET_FINAL,
+                                ClientSession.NO_RESEND, mReplyHeader, null);
+                    }
+                } else {
+                    readPendingResponses();
+                    /**
+                     * Since we are not sending any headers or returning any headers then
+                     * we just need to write and read the same bytes
+                     */
+                    mParent.sendRequest(ObexHelper.OBEX_OPCODE_ABORT, null, mReplyHeader, null);
+
+                    if (mReplyHeader.responseCode != ResponseCodes.OBEX_HTTP_OK) {
+                        throw new IOException("Invalid response code from server");
+                    }
+                }
 
-            if (mReplyHeader.responseCode != ResponseCodes.OBEX_HTTP_OK) {
-                throw new IOException("Invalid response code from server");
+                mExceptionMessage = null;
             }
 
-            mExceptionMessage = null;
+            close();
+        } finally {
+            mLock.unlock();
         }
-
-        close();
     }
 
     /***
@@ -166,14 +215,19 @@ public final class ClientOperation implements Operation, BaseStream {
      *         <code>createHeaderSet</code> in a <code>ClientSession</code>
      *         object
      */
-    public synchronized int getResponseCode() throws IOException {
-        //avoid dup validateConnection
-        if ((mReplyHeader.responseCode == -1)
-                || (mReplyHeader.responseCode == ResponseCodes.OBEX_HTTP_CONTINUE)) {
-            validateConnection();
-        }
+    public int getResponseCode() throws IOException {
+        mLock.lock();
+        try {
+            //avoid dup validateConnection
+            if ((mReplyHeader.responseCode == -1)
+                    || (mReplyHeader.responseCode == ResponseCodes.OBEX_HTTP_CONTINUE)) {
+                validateConnection();
+            }
 
-        return mReplyHeader.responseCode;
+            return mReplyHeader.responseCode;
+        } finally {
+            mLock.unlock();
+        }
     }
 
     /***
@@ -304,7 +358,12 @@ public final class ClientOperation implements Operation, BaseStream {
         mInputOpen = false;
         mPrivateInputOpen = false;
         mPrivateOutputOpen = false;
-        mParent.setRequestInactive();
+        try {
+            // leave no response behind for the next request of the session
+            readPendingResponses();
+        } finally {
+            mParent.setRequestInactive();
+        }
     }
 
     /***
@@ -340,12 +399,7 @@ public final class ClientOperation implements Operation, BaseStream {
             throw new IOException("Headers may not be null");
         }
 
-        int[] headerList = headers.getHeaderList();
-        if (headerList != null) {
-            for (int i = 0; i < headerList.length; i++) {
-                mRequestHeader.setHeader(headerList[i], headers.getHeader(headerList[i]));
-            }
-        }
+        mRequestHeader.copyHeadersFrom(headers);
     }
 
     /***
@@ -396,7 +450,6 @@ public final class ClientOperation implements Operation, BaseStream {
      */
     private boolean sendRequest(int opCode) throws IOException {
         boolean returnValue = false;
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
         int bodyLength = -1;
         byte[] headerArray = ObexHelper.createHeader(mRequestHeader, true);
         if (mPrivateOutput != null) {
@@ -437,9 +490,10 @@ public final class ClientOperation implements Operation, BaseStream {
                     throw new IOException("OBEX Packet exceeds max packet size");
                 }
 
-                byte[] sendHeader = new byte[end - start];
-                System.arraycopy(headerArray, start, sendHeader, 0, sendHeader.length);
-                if (!mParent.sendRequest(opCode, sendHeader, mReplyHeader, mPrivateInput)) {
+                byte[] packet = mParent.getPacketBuffer(mMaxPacketSize);
+                System.arraycopy(headerArray, start, packet, ObexHelper.BASE_PACKET_LENGTH, end
+                        - start);
+                if (!exchangePacket(opCode, ObexHelper.BASE_PACKET_LENGTH + end - start)) {
                     return false;
                 }
 
@@ -455,10 +509,19 @@ public final class ClientOperation implements Operation, BaseStream {
             } else {
                 return false;
             }
-        } else {
-            out.write(headerArray);
         }
 
+        /**
+         * Encode the packet straight into the session's packet buffer: the
+         * headers first, then the body header and the body bytes taken from
+         * the output stream.  The opcode and length are filled in by
+         * ClientSession.writePacket().
+         */
+        byte[] packet = mParent.getPacketBuffer(mMaxPacketSize);
+        int offset = ObexHelper.BASE_PACKET_LENGTH;
+        System.arraycopy(headerArray, 0, packet, offset, headerArray.length);
+        offset += headerArray.length;
+
         if (bodyLength > 0) {
             /**
              * Determine if we can send the whole body or just part of
@@ -471,8 +534,6 @@ public final class ClientOperation implements Operation, BaseStream {
                 bodyLength = mMaxPacketSize - headerArray.length - 6;
             }
 
-            byte[] body = mPrivateOutput.readBytes(bodyLength);
-
             /**
              * Since this is a put request if the final bit is set or
              * the output stream is closed we need to send the 0x49
@@ -480,46 +541,43 @@ public final class ClientOperation implements Operation, BaseStream {
              */
             if ((mPrivateOutput.isClosed()) && (!returnValue) && (!mEndOfBodySent)
                     && ((opCode & 0x80) != 0)) {
-                out.write(0x49);
+                packet[offset] = 0x49;
                 mEndOfBodySent = true;
             } else {
-                out.write(0x48);
+                packet[offset] = 0x48;
             }
 
-            bodyLength += 3;
-            out.write((byte)(bodyLength >> 8));
-            out.write((byte)bodyLength);
+            mPrivateOutput.readBytes(packet, offset + 3, bodyLength);
 
-            if (body != null) {
-                out.write(body);
-            }
+            bodyLength += 3;
+            packet[offset + 1] = (byte)(bodyLength >> 8);
+            packet[offset + 2] = (byte)bodyLength;
+            offset += bodyLength;
         }
 
         if (mPrivateOutputOpen && bodyLength <= 0 && !mEndOfBodySent) {
+            packet = mParent.getPacketBuffer(offset + 3);
             // only 0x82 or 0x83 can send 0x49
             if ((opCode & 0x80) == 0) {
-                out.write(0x48);
+                packet[offset] = 0x48;
             } else {
-                out.write(0x49);
+                packet[offset] = 0x49;
                 mEndOfBodySent = true;
 
             }
 
             bodyLength = 3;
-            out.write((byte)(bodyLength >> 8));
-            out.write((byte)bodyLength);
+            packet[offset + 1] = (byte)(bodyLength >> 8);
+            packet[offset + 2] = (byte)bodyLength;
+            offset += bodyLength;
         }
 
-        if (out.size() == 0) {
-            if (!mParent.sendRequest(opCode, null, mReplyHeader, mPrivateInput)) {
-                return false;
-            }
-            return returnValue;
-        }
-        if ((out.size() > 0)
-                && (!mParent.sendRequest(opCode, out.toByteArray(), mReplyHeader, mPrivateInput))) {
+        if (!exchangePacket(opCode, offset)) {
             return false;
         }
+        if (offset == ObexHelper.BASE_PACKET_LENGTH) {
+            return returnValue;
+        }
 
         // send all of the output data in 0x48, 
         // send 0x49 with empty body
@@ -529,50 +587,176 @@ public final class ClientOperation implements Operation, BaseStream {
         return returnValue;
     }
 
+    /***
+     * Sends an empty request of the type provided, or only reads the next
+     * response where Single Response Mode makes the request unnecessary.
+     * @param opCode the request code to send to the server
+     * @return <code>true</code> if the operation completed successfully;
+     *         <code>false</code> if an authentication response failed to pass
+     * @throws IOException if an IO error occurs
+     */
+    private boolean sendEmptyRequest(int opCode) throws IOException {
+        mParent.getPacketBuffer(ObexHelper.BASE_PACKET_LENGTH);
+        return exchangePacket(opCode, ObexHelper.BASE_PACKET_LENGTH);
+    }
+
+    /***
+     * Sends the request encoded in the packet buffer of the session and reads
+     * the reply, leaving out the half that Single Response Mode makes
+     * unnecessary: the server does not answer PUT packets, and once the final
+     * GET has been sent it streams the response without further requests, so
+     * the request is not written then.
+     * @param opCode the request code to send to the server
+     * @param packetLength the total length of the packet in the packet buffer
+     * @return <code>true</code> if the operation completed successfully;
+     *         <code>false</code> if an authentication response failed to pass
+     * @throws IOException if an IO error occurs
+     */
+    private boolean exchangePacket(int opCode, int packetLength) throws IOException {
+        boolean result;
+        if (mSrmActive && (opCode == ObexHelper.OBEX_OPCODE_PUT)) {
+            mParent.writePacket(opCode, packetLength);
+            return true;
+        }
+
+        if ((opCode == ObexHelper.OBEX_OPCODE_PUT) && mPutPipelineStarted
+                && (mPutPipelineWindow > 1) && (!mSrmEnabled)) {
+            mParent.writePacket(opCode, packetLength);
+            mPendingResponses++;
+            if (mPendingResponses >= mPutPipelineWindow) {
+                readPendingResponse();
+            }
+            return true;
+        }
+
+        if (mPendingResponses > 0) {
+            readPendingResponses();
+            if (mReplyHeader.responseCode != ResponseCodes.OBEX_HTTP_CONTINUE) {
+                // a packet in flight was refused, so this one is not sent
+                return true;
+            }
+        }
+
+        if (mSrmActive && mGetFinalSent && (opCode == ObexHelper.OBEX_OPCODE_GET_FINAL)) {
+            result = mParent.readResponse(opCode, ClientSession.NO_RESEND, mReplyHeader,
+                    mPrivateInput);
+        } else {
+            result = mParent.sendPacket(opCode, packetLength, mReplyHeader, mPrivateInput);
+            if (opCode == ObexHelper.OBEX_OPCODE_GET_FINAL) {
+                mGetFinalSent = true;
+            }
+        }
+        if ((opCode == ObexHelper.OBEX_OPCODE_PUT)
+                && (mReplyHeader.responseCode == ResponseCodes.OBEX_HTTP_CONTINUE)) {
+            mPutPipelineStarted = true;
+        }
+        checkForSrm();
+        return result;
+    }
+
+    /***
+     * Reads the response to the oldest PUT packet in flight. If it is not a
+     * CONTINUE, the responses to the other packets in flight are read as well
+     * and dropped, so the operation ends with the first response that refused
+     * a packet.
+     * @throws IOException if an IO error occurs
+     */
+    private void readPendingResponse() throws IOException {
+        mPendingResponses--;
+        // later packets have replaced this one in the packet buffer
+        mParent.readResponse(ObexHelper.OBEX_OPCODE_PUT, ClientSession.NO_RESEND,
+                mReplyHeader, mPrivateInput);
+        if (mReplyHeader.responseCode != ResponseCodes.OBEX_HTTP_CONTINUE) {
+            HeaderSet discard = new HeaderSet();
+            while (mPendingResponses > 0) {
+                mPendingResponses--;
+                mParent.readResponse(ObexHelper.OBEX_OPCODE_PUT, ClientSession.NO_RESEND,
+                        discard, null);
+            }
+            mOperationDone = true;
+        }
+    }
+
+    /***
+     * Reads the responses to all PUT packets in flight.
+     * @throws IOException if an IO error occurs
+     */
+    private void readPendingResponses() throws IOException {
+        while (mPendingResponses > 0) {
+            readPendingResponse();
+        }
+    }
+
+    /***
+     * Updates the Single Response Mode state from the last response. SRM is
+     * enabled once the server echoes the SRM header of the first request, and
+     * is suspended for one packet whenever the server sends the wait
+     * parameter.
+     * @throws IOException if an IO error occurs
+     */
+    private void checkForSrm() throws IOException {
+        Byte srm = (Byte)mReplyHeader.getHeader(HeaderSet.SINGLE_RESPONSE_MODE);
+        if (mSrmRequested && (srm != null) && (srm.byteValue() == ObexHelper.OBEX_SRM_ENABLE)) {
+            mSrmEnabled = true;
+        }
+        if (mSrmEnabled) {
+            Byte srmp = (Byte)mReplyHeader.getHeader(HeaderSet.SINGLE_RESPONSE_MODE_PARAMETER);
+            // the parameter only applies to the packet that carried it
+            mReplyHeader.setHeader(HeaderSet.SINGLE_RESPONSE_MODE_PARAMETER, null);
+            mSrmActive = (srmp == null) || (srmp.byteValue() != ObexHelper.OBEX_SRMP_WAIT);
+        }
+    }
+
     /***
      * This method starts the processing thread results. It will send the
      * initial request. If the response takes more then one packet, a thread
      * will be started to handle additional requests
      * @throws IOException if an IO error occurs
      */
-    private synchronized void startProcessing() throws IOException {
+    private void startProcessing() throws IOException {
+        mLock.lock();
+        try {
+            if (mPrivateInput == null) {
+                mPrivateInput = new PrivateInputStream(this);
+            }
+            boolean more = true;
 
-        if (mPrivateInput == null) {
-            mPrivateInput = new PrivateInputStream(this);
-        }
-        boolean more = true;
+            if (mGetOperation) {
+                if (!mOperationDone) {
+                    mReplyHeader.responseCode = ResponseCodes.OBEX_HTTP_CONTINUE;
+                    while ((more)
+                            && (mReplyHeader.responseCode == ResponseCodes.OBEX_HTTP_CONTINUE)) {
+                        more = sendRequest(0x03);
+                    }
 
-        if (mGetOperation) {
-            if (!mOperationDone) {
-                mReplyHeader.responseCode = ResponseCodes.OBEX_HTTP_CONTINUE;
-                while ((more) && (mReplyHeader.responseCode == ResponseCodes.OBEX_HTTP_CONTINUE)) {
-                    more = sendRequest(0x03);
+                    if (mReplyHeader.responseCode == ResponseCodes.OBEX_HTTP_CONTINUE) {
+                        sendEmptyRequest(0x83);
+                    }
+                    if (mReplyHeader.responseCode != ResponseCodes.OBEX_HTTP_CONTINUE) {
+                        mOperationDone = true;
+                    }
+                }
+            } else {
+
+                if (!mOperationDone) {
+                    mReplyHeader.responseCode = ResponseCodes.OBEX_HTTP_CONTINUE;
+                    while ((more)
+                            && (mReplyHeader.responseCode == ResponseCodes.OBEX_HTTP_CONTINUE)) {
+                        more = sendRequest(0x02);
+
+                    }
                 }
 
                 if (mReplyHeader.responseCode == ResponseCodes.OBEX_HTTP_CONTINUE) {
-                    mParent.sendRequest(0x83, null, mReplyHeader, mPrivateInput);
+                    sendEmptyRequest(0x82);
                 }
+
                 if (mReplyHeader.responseCode != ResponseCodes.OBEX_HTTP_CONTINUE) {
                     mOperationDone = true;
                 }
             }
-        } else {
-
-            if (!mOperationDone) {
-                mReplyHeader.responseCode = ResponseCodes.OBEX_HTTP_CONTINUE;
-                while ((more) && (mReplyHeader.responseCode == ResponseCodes.OBEX_HTTP_CONTINUE)) {
-                    more = sendRequest(0x02);
-
-                }
-            }
-
-            if (mReplyHeader.responseCode == ResponseCodes.OBEX_HTTP_CONTINUE) {
-                mParent.sendRequest(0x82, null, mReplyHeader, mPrivateInput);
-            }
-
-            if (mReplyHeader.responseCode != ResponseCodes.OBEX_HTTP_CONTINUE) {
-                mOperationDone = true;
-            }
+        } finally {
+            mLock.unlock();
         }
     }
 
@@ -584,53 +768,57 @@ public final class ClientOperation implements Operation, BaseStream {
      *        output stream
      * @throws IOException if an IO error occurs
      */
-    public synchronized boolean continueOperation(boolean sendEmpty, boolean inStream)
+    public boolean continueOperation(boolean sendEmpty, boolean inStream)
             throws IOException {
+        mLock.lock();
+        try {
+            if (mGetOperation) {
+                if ((inStream) && (!mOperationDone)) {
+                    // to deal with inputstream in get operation
+                    sendEmptyRequest(0x83);
+                    /**
+                      * Determine if that was not the last packet in the operation
+                      */
+                    if (mReplyHeader.responseCode != ResponseCodes.OBEX_HTTP_CONTINUE) {
+                        mOperationDone = true;
+                    }
 
-        if (mGetOperation) {
-            if ((inStream) && (!mOperationDone)) {
-                // to deal with inputstream in get operation
-                mParent.sendRequest(0x83, null, mReplyHeader, mPrivateInput);
-                /**
-                  * Determine if that was not the last packet in the operation
-                  */
-                if (mReplyHeader.responseCode != ResponseCodes.OBEX_HTTP_CONTINUE) {
-                    mOperationDone = true;
-                }
+                    return true;
 
-                return true;
+                } else if ((!inStream) && (!mOperationDone)) {
+                    // to deal with outputstream in get operation
 
-            } else if ((!inStream) && (!mOperationDone)) {
-                // to deal with outputstream in get operation
+                    if (mPrivateInput == null) {
+                        mPrivateInput = new PrivateInputStream(this);
+                    }
+                    sendRequest(0x03);
+                    return true;
 
-                if (mPrivateInput == null) {
-                    mPrivateInput = new PrivateInputStream(this);
+                } else if (mOperationDone) {
+                    return false;
                 }
-                sendRequest(0x03);
-                return true;
 
-            } else if (mOperationDone) {
-                return false;
-            }
+            } else {
+                if ((!inStream) && (!mOperationDone)) {
+                    // to deal with outputstream in put operation
+                    if (mReplyHeader.responseCode == -1) {
+                        mReplyHeader.responseCode = ResponseCodes.OBEX_HTTP_CONTINUE;
+                    }
+                    sendRequest(0x02);
+                    return true;
+                } else if ((inStream) && (!mOperationDone)) {
+                    // How to deal with inputstream  in put operation ?
+                    return false;
 
-        } else {
-            if ((!inStream) && (!mOperationDone)) {
-                // to deal with outputstream in put operation
-                if (mReplyHeader.responseCode == -1) {
-                    mReplyHeader.responseCode = ResponseCodes.OBEX_HTTP_CONTINUE;
+                } else if (mOperationDone) {
+                    return false;
                 }
-                sendRequest(0x02);
-                return true;
-            } else if ((inStream) && (!mOperationDone)) {
-                // How to deal with inputstream  in put operation ?
-                return false;
 
-            } else if (mOperationDone) {
-                return false;
             }
-
+            return false;
+        } finally {
+            mLock.unlock();
         }
-        return false;
     }
 
     /***
@@ -690,7 +878,7 @@ public final class ClientOperation implements Operation, BaseStream {
                     }
                 }
                 while (mReplyHeader.responseCode == ResponseCodes.OBEX_HTTP_CONTINUE) {
-                    mParent.sendRequest(0x83, null, mReplyHeader, mPrivateInput);
+                    sendEmptyRequest(0x83);
                 }
                 mOperationDone = true;
             } else if ((!inStream) && (!mOperationDone)) {
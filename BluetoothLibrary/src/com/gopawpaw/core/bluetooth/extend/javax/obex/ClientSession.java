@@ -32,10 +32,10 @@
 
 package com.gopawpaw.core.bluetooth.extend.javax.obex;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.concurrent.locks.ReentrantLock;
 
 /***
  * This class in an implementation of the OBEX ClientSession.
@@ -43,6 +43,9 @@ import java.io.OutputStream;
  */
 public final class ClientSession extends ObexSession {
 
+    /*** Guards the request and connection state, like ClientOperation.mLock */
+    private final ReentrantLock mLock = new ReentrantLock();
+
     private boolean mOpen;
 
     // Determines if an OBEX layer connection has been established
@@ -54,17 +57,70 @@ public final class ClientSession extends ObexSession {
      * The max Packet size must be at least 256 according to the OBEX
      * specification.
      */
-    private int maxPacketSize = 256;
+    private int maxPacketSize = ObexHelper.MIN_PACKET_SIZE_INT;
+
+    /**
+     * The max packet size this client advertises in CONNECT. The negotiated
+     * size is the smaller of this and the size the server advertises.
+     */
+    private final int mLocalMaxPacketSize;
 
     private boolean mRequestActive;
 
+    private final ObexTransport mTransport;
+
     private final InputStream mInput;
 
     private final OutputStream mOutput;
 
+    /**
+     * Reusable buffer that every outgoing request packet is encoded into, so
+     * a packet reaches the transport in a single write without intermediate
+     * copies.
+     */
+    private byte[] mPacketBuffer;
+
+    /**
+     * Reads every response packet into a reusable buffer it is parsed from.
+     */
+    private final ObexPacketReader mReader;
+
+    /**
+     * Whether PUT and GET operations ask the server for Single Response Mode.
+     */
+    private boolean mSrmSupported;
+
+    /**
+     * How many PUT packets may be written before the response to the first of
+     * them is read, for servers that do not support Single Response Mode.
+     */
+    private int mPutPipelineWindow = 1;
+
+    /**
+     * The deadline of the blocking reads and writes; null if they may block
+     * forever.
+     */
+    private ObexWatchdog.Guard mGuard;
+
     public ClientSession(final ObexTransport trans) throws IOException {
+        this(trans, ObexHelper.MAX_PACKET_SIZE_INT);
+    }
+
+    /***
+     * Creates a client session that advertises the max packet size provided
+     * when it connects.
+     * @param trans the transport to run the session over
+     * @param localMaxPacketSize the largest packet this client will accept;
+     *        between <code>ObexHelper.MIN_PACKET_SIZE_INT</code> and
+     *        <code>ObexHelper.MAX_PACKET_SIZE_INT</code>
+     * @throws IOException if the transport streams can not be opened
+     */
+    public ClientSession(final ObexTransport trans, int localMaxPacketSize) throws IOException {
+        mLocalMaxPacketSize = ObexHelper.validateMaxPacketSize(localMaxPacketSize);
+        mTransport = trans;
         mInput = trans.openInputStream();
         mOutput = trans.openOutputStream();
+        mReader = new ObexPacketReader(mInput, mLocalMaxPacketSize);
         mOpen = true;
         mRequestActive = false;
     }
@@ -94,7 +150,7 @@ public final class ClientSession extends ObexSession {
         * Byte 1&2: Connect Packet Length
         * Byte 3: OBEX Version Number (Presently, 0x10)
         * Byte 4: Flags (For TCP 0x00)
-        * Byte 5&6: Max OBEX Packet Length (Defined in MAX_PACKET_SIZE)
+        * Byte 5&6: Max OBEX Packet Length (the local max packet size)
         * Byte 7 to n: headers
         */
         byte[] requestPacket = new byte[totalLength];
@@ -102,8 +158,8 @@ public final class ClientSession extends ObexSession {
         // handle the length and 0x80.
         requestPacket[0] = (byte)0x10;
         requestPacket[1] = (byte)0x00;
-        requestPacket[2] = (byte)(ObexHelper.MAX_PACKET_SIZE_INT >> 8);
-        requestPacket[3] = (byte)(ObexHelper.MAX_PACKET_SIZE_INT & 0xFF);
+        requestPacket[2] = (byte)(mLocalMaxPacketSize >> 8);
+        requestPacket[3] = (byte)(mLocalMaxPacketSize & 0xFF);
         if (head != null) {
             System.arraycopy(head, 0, requestPacket, 4, head.length);
         }
@@ -161,6 +217,94 @@ public final class ClientSession extends ObexSession {
         return new ClientOperation(maxPacketSize, this, head, true);
     }
 
+    /***
+     * Returns the max packet size negotiated with the server. Until CONNECT
+     * completes this is the OBEX minimum.
+     * @return the largest packet that may be sent in this session
+     */
+    public int getMaxPacketSize() {
+        return maxPacketSize;
+    }
+
+    /***
+     * Returns how many reads of the transport returned each size, see
+     * <code>ObexPacketReader.getReadSizeHistogram()</code>. Bucket 0 counts
+     * the reads that returned nothing, and bucket <code>n</code> the reads
+     * that returned from <code>2^(n-1)</code> to <code>2^n - 1</code> bytes.
+     * @return a copy of the read size histogram of this session
+     */
+    public int[] getReadSizeHistogram() {
+        return mReader.getReadSizeHistogram();
+    }
+
+    /***
+     * Returns the max packet size this client advertises in CONNECT.
+     * @return the local max packet size
+     */
+    public int getLocalMaxPacketSize() {
+        return mLocalMaxPacketSize;
+    }
+
+    /***
+     * Enables or disables Single Response Mode for the PUT and GET operations
+     * started after this call. When enabled, operations ask the server for SRM
+     * and, if the server agrees, send or receive the body without waiting for
+     * a response to every packet.
+     * @param enabled <code>true</code> to request SRM
+     */
+    public void setSingleResponseModeEnabled(boolean enabled) {
+        mSrmSupported = enabled;
+    }
+
+    /***
+     * Returns whether new operations ask the server for Single Response Mode.
+     * @return <code>true</code> if SRM is requested
+     */
+    public boolean isSingleResponseModeEnabled() {
+        return mSrmSupported;
+    }
+
+    /***
+     * Sets how many PUT packets of an operation may be in flight before the
+     * client reads the CONTINUE response to the oldest of them. Pipelining
+     * only starts after the server has answered the first packet with
+     * CONTINUE, and is not used while Single Response Mode is active. The
+     * default of 1 waits for every response, as the OBEX specification
+     * requires; larger windows are meant for servers known to read requests
+     * ahead of their replies.
+     * @param packets the number of packets that may be in flight
+     * @throws IllegalArgumentException if <code>packets</code> is less than 1
+     */
+    public void setPutPipelineWindow(int packets) {
+        if (packets < 1) {
+            throw new IllegalArgumentException("Pipeline window must be at least 1");
+        }
+        mPutPipelineWindow = packets;
+    }
+
+    /***
+     * Returns how many PUT packets may be in flight in new operations.
+     * @return the PUT pipeline window
+     */
+    public int getPutPipelineWindow() {
+        return mPutPipelineWindow;
+    }
+
+    /***
+     * Puts a deadline on every write of a request and every wait for a
+     * response, see <code>ObexWatchdog</code>. When a deadline passes, the
+     * transport is closed and the operation fails with an
+     * <code>InterruptedIOException</code>.
+     * @param watchdog the watchdog to use; <code>null</code> to block without
+     *        a deadline
+     */
+    public void setWatchdog(ObexWatchdog watchdog) {
+        if (mGuard != null) {
+            mGuard.unregister();
+        }
+        mGuard = (watchdog == null) ? null : watchdog.register(mTransport);
+    }
+
     /***
      * 0xCB Connection Id an identifier used for OBEX connection multiplexing
      */
@@ -227,9 +371,12 @@ public final class ClientSession extends ObexSession {
         /** response code , and header are ignored
          * */
 
-        synchronized (this) {
+        mLock.lock();
+        try {
             mObexConnected = false;
             setRequestInactive();
+        } finally {
+            mLock.unlock();
         }
 
         return returnHeaderSet;
@@ -366,9 +513,14 @@ public final class ClientSession extends ObexSession {
      * Verifies that the connection is open.
      * @throws IOException if the connection is closed
      */
-    public synchronized void ensureOpen() throws IOException {
-        if (!mOpen) {
-            throw new IOException("Connection closed");
+    public void ensureOpen() throws IOException {
+        mLock.lock();
+        try {
+            if (!mOpen) {
+                throw new IOException("Connection closed");
+            }
+        } finally {
+            mLock.unlock();
         }
     }
 
@@ -376,19 +528,29 @@ public final class ClientSession extends ObexSession {
      * Set request inactive. Allows Put and get operation objects to tell this
      * object when they are done.
      */
-    /**package*/synchronized void setRequestInactive() {
-        mRequestActive = false;
+    /**package*/void setRequestInactive() {
+        mLock.lock();
+        try {
+            mRequestActive = false;
+        } finally {
+            mLock.unlock();
+        }
     }
 
     /***
      * Set request to active.
      * @throws IOException if already active
      */
-    private synchronized void setRequestActive() throws IOException {
-        if (mRequestActive) {
-            throw new IOException("OBEX request is already being performed");
+    private void setRequestActive() throws IOException {
+        mLock.lock();
+        try {
+            if (mRequestActive) {
+                throw new IOException("OBEX request is already being performed");
+            }
+            mRequestActive = true;
+        } finally {
+            mLock.unlock();
         }
-        mRequestActive = true;
     }
 
     /***
@@ -414,72 +576,184 @@ public final class ClientSession extends ObexSession {
             }
         }
 
-        int bytesReceived;
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        out.write((byte)opCode);
-
-        // Determine if there are any headers to send
+        int packetLength = ObexHelper.BASE_PACKET_LENGTH;
+        byte[] packet;
         if (head == null) {
-            out.write(0x00);
-            out.write(0x03);
+            packet = getPacketBuffer(packetLength);
         } else {
-            out.write((byte)((head.length + 3) >> 8));
-            out.write((byte)(head.length + 3));
-            out.write(head);
+            packetLength += head.length;
+            packet = getPacketBuffer(packetLength);
+            System.arraycopy(head, 0, packet, ObexHelper.BASE_PACKET_LENGTH, head.length);
+        }
+
+        return sendPacket(opCode, packetLength, header, privateInput);
+    }
+
+    /***
+     * Returns the reusable packet buffer of this session, growing it if it is
+     * smaller than <code>size</code>. Callers encode the headers and body of
+     * a request starting at <code>ObexHelper.BASE_PACKET_LENGTH</code> and
+     * then call <code>sendPacket()</code>; the opcode and length bytes are
+     * filled in there.
+     * @param size the number of bytes the packet needs
+     * @return the packet buffer
+     */
+    /**package*/byte[] getPacketBuffer(int size) {
+        if ((mPacketBuffer == null) || (mPacketBuffer.length < size)) {
+            // size it for the negotiated packet size so it is allocated once
+            mPacketBuffer = new byte[Math.max(size, maxPacketSize)];
+        }
+        return mPacketBuffer;
+    }
+
+    /***
+     * Sends the request that has been encoded into the packet buffer returned
+     * by <code>getPacketBuffer()</code> with a single write, then waits for the
+     * reply and updates the header set object provided in the same way as
+     * <code>sendRequest()</code>.
+     * @param opCode the type of request to send to the client
+     * @param packetLength the total length of the packet, including the opcode
+     *        and length bytes
+     * @param header the header object to update with the response
+     * @param privateInput the input stream used by the Operation object; null
+     *        if this is called on a CONNECT, SETPATH or DISCONNECT
+     * @return <code>true</code> if the operation completed successfully;
+     *         <code>false</code> if an authentication response failed to pass
+     * @throws IOException if an IO error occurs
+     */
+    /**package*/boolean sendPacket(int opCode, int packetLength, HeaderSet header,
+            PrivateInputStream privateInput) throws IOException {
+        writePacket(opCode, packetLength);
+        return readResponse(opCode, packetLength, header, privateInput);
+    }
+
+    /***
+     * Writes the request that has been encoded into the packet buffer without
+     * waiting for a reply. Used on its own for the PUT packets the server does
+     * not answer in Single Response Mode.
+     * @param opCode the type of request to send to the client
+     * @param packetLength the total length of the packet, including the opcode
+     *        and length bytes
+     * @throws IOException if an IO error occurs
+     */
+    /**package*/void writePacket(int opCode, int packetLength) throws IOException {
+        if (packetLength > ObexHelper.MAX_PACKET_SIZE_INT) {
+            throw new IOException("header too large ");
         }
 
+        byte[] packet = mPacketBuffer;
+        packet[0] = (byte)opCode;
+        packet[1] = (byte)(packetLength >> 8);
+        packet[2] = (byte)packetLength;
+
         // Write the request to the output stream and flush the stream
-        mOutput.write(out.toByteArray());
-        mOutput.flush();
+        ObexWatchdog.Guard guard = mGuard;
+        if (guard == null) {
+            mOutput.write(packet, 0, packetLength);
+            mOutput.flush();
+            return;
+        }
+        guard.arm(opCode);
+        try {
+            mOutput.write(packet, 0, packetLength);
+            mOutput.flush();
+        } catch (IOException e) {
+            guard.checkExpired();
+            throw e;
+        } finally {
+            guard.disarm();
+        }
+    }
+
+    /***
+     * Reads the next response packet into the packet reader, within the
+     * deadline of the request it answers if there is a watchdog.
+     * @param opCode the type of request the response belongs to
+     * @return the response code
+     * @throws IOException if an IO error occurs or the deadline passed
+     */
+    private int readPacket(int opCode) throws IOException {
+        ObexWatchdog.Guard guard = mGuard;
+        if (guard == null) {
+            return mReader.readRequiredPacket();
+        }
+        guard.arm(opCode);
+        try {
+            return mReader.readRequiredPacket();
+        } catch (IOException e) {
+            guard.checkExpired();
+            throw e;
+        } finally {
+            guard.disarm();
+        }
+    }
+
+    /***
+     * The packet length passed to <code>readResponse()</code> for a response
+     * whose request is no longer in the packet buffer.
+     */
+    /**package*/ static final int NO_RESEND = -1;
 
-        header.responseCode = mInput.read();
+    /***
+     * Reads the next response from the server and updates the header set
+     * object provided. Used on its own for the GET response packets the server
+     * streams in Single Response Mode.
+     * @param opCode the type of request the response belongs to
+     * @param packetLength the length of the request in the packet buffer; it is
+     *        sent again if the server answers with an authentication challenge.
+     *        <code>NO_RESEND</code> if the packet buffer no longer holds the
+     *        request, because later packets have been written since; a
+     *        challenge then ends the request with the UNAUTHORIZED response.
+     * @param header the header object to update with the response
+     * @param privateInput the input stream used by the Operation object; null
+     *        if this is called on a CONNECT, SETPATH or DISCONNECT
+     * @return <code>true</code> if the operation completed successfully;
+     *         <code>false</code> if an authentication response failed to pass
+     * @throws IOException if an IO error occurs
+     */
+    /**package*/boolean readResponse(int opCode, int packetLength, HeaderSet header,
+            PrivateInputStream privateInput) throws IOException {
+        byte[] packet = mPacketBuffer;
+
+        header.responseCode = readPacket(opCode);
 
-        int length = ((mInput.read() << 8) | (mInput.read()));
+        int length = mReader.getLength();
 
         if (length > ObexHelper.MAX_PACKET_SIZE_INT) {
             throw new IOException("Packet received exceeds packet size limit");
         }
         if (length > ObexHelper.BASE_PACKET_LENGTH) {
-            byte[] data = null;
+            byte[] data = mReader.getBuffer();
+            int dataOffset;
             if (opCode == ObexHelper.OBEX_OPCODE_CONNECT) {
+                if (length < 7) {
+                    throw new IOException("Invalid CONNECT response length " + length);
+                }
                 @SuppressWarnings("unused")
-                int version = mInput.read();
+                int version = data[3] & 0xFF;
                 @SuppressWarnings("unused")
-                int flags = mInput.read();
-                maxPacketSize = (mInput.read() << 8) + mInput.read();
+                int flags = data[4] & 0xFF;
+                maxPacketSize = ((data[5] & 0xFF) << 8) | (data[6] & 0xFF);
 
                 //check with local max size
-                if (maxPacketSize > ObexHelper.MAX_PACKET_SIZE_INT) {
-                    maxPacketSize = ObexHelper.MAX_PACKET_SIZE_INT;
+                if (maxPacketSize > mLocalMaxPacketSize) {
+                    maxPacketSize = mLocalMaxPacketSize;
                 }
 
                 if (length > 7) {
-                    data = new byte[length - 7];
-
-                    bytesReceived = mInput.read(data);
-                    while (bytesReceived != (length - 7)) {
-                        bytesReceived += mInput.read(data, bytesReceived, data.length
-                                - bytesReceived);
-                    }
+                    dataOffset = 7;
                 } else {
                     return true;
                 }
             } else {
-                data = new byte[length - 3];
-                bytesReceived = mInput.read(data);
-
-                while (bytesReceived != (length - 3)) {
-                    bytesReceived += mInput.read(data, bytesReceived, data.length - bytesReceived);
-                }
+                dataOffset = 3;
                 if (opCode == ObexHelper.OBEX_OPCODE_ABORT) {
                     return true;
                 }
             }
 
-            byte[] body = ObexHelper.updateHeaderSet(header, data);
-            if ((privateInput != null) && (body != null)) {
-                privateInput.writeBytes(body, 1);
-            }
+            ObexHelper.updateHeaderSet(header, data, dataOffset, length - dataOffset,
+                    privateInput);
 
             if (header.mConnectionID != null) {
                 mConnectionId = new byte[4];
@@ -494,19 +768,23 @@ public final class ClientSession extends ObexSession {
             }
 
             if ((header.responseCode == ResponseCodes.OBEX_HTTP_UNAUTHORIZED)
-                    && (header.mAuthChall != null)) {
+                    && (header.mAuthChall != null) && (packetLength != NO_RESEND)) {
 
                 if (handleAuthChall(header)) {
-                    out.write((byte)HeaderSet.AUTH_RESPONSE);
-                    out.write((byte)((header.mAuthResp.length + 3) >> 8));
-                    out.write((byte)(header.mAuthResp.length + 3));
-                    out.write(header.mAuthResp);
+                    // resend the same headers followed by the auth response
+                    int headLength = packetLength - ObexHelper.BASE_PACKET_LENGTH;
+                    int authLength = header.mAuthResp.length + 3;
+                    byte[] sendHeaders = new byte[headLength + authLength];
+                    System.arraycopy(packet, ObexHelper.BASE_PACKET_LENGTH, sendHeaders, 0,
+                            headLength);
+                    sendHeaders[headLength] = (byte)HeaderSet.AUTH_RESPONSE;
+                    sendHeaders[headLength + 1] = (byte)(authLength >> 8);
+                    sendHeaders[headLength + 2] = (byte)authLength;
+                    System.arraycopy(header.mAuthResp, 0, sendHeaders, headLength + 3,
+                            header.mAuthResp.length);
                     header.mAuthChall = null;
                     header.mAuthResp = null;
 
-                    byte[] sendHeaders = new byte[out.size() - 3];
-                    System.arraycopy(out.toByteArray(), 3, sendHeaders, 0, sendHeaders.length);
-
                     return sendRequest(opCode, sendHeaders, header, privateInput);
                 }
             }
@@ -517,6 +795,9 @@ public final class ClientSession extends ObexSession {
 
     public void close() throws IOException {
         mOpen = false;
+        if (mGuard != null) {
+            mGuard.unregister();
+        }
         mInput.close();
         mOutput.close();
     }
@@ -32,9 +32,10 @@
 
 package com.gopawpaw.core.bluetooth.extend.javax.obex;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Date;
 import java.security.SecureRandom;
 
 /***
@@ -177,39 +178,87 @@ public final class HeaderSet {
      */
     public static final int OBJECT_CLASS = 0x4F;
 
-    private Long mCount; // 4 byte unsigned integer
-
-    private String mName; // null terminated Unicode text string
-
-    private String mType; // null terminated ASCII text string
-
-    private Long mLength; // 4 byte unsigend integer
-
-    private Calendar mIsoTime; // String of the form YYYYMMDDTHHMMSSZ
-
-    private Calendar mByteTime; // 4 byte unsigned integer
+    /***
+     * Represents the OBEX Single Response Mode header. This header is used to
+     * enable or disable Single Response Mode (SRM) for a PUT or GET operation.
+     * <P>
+     * The value of <code>SINGLE_RESPONSE_MODE</code> is 0x97 (151).
+     */
+    public static final int SINGLE_RESPONSE_MODE = 0x97;
 
-    private String mDescription; // null terminated Unicode text String
+    /***
+     * Represents the OBEX Single Response Mode Parameter header. This header
+     * is used to ask the peer to wait for the next packet while SRM is enabled.
+     * <P>
+     * The value of <code>SINGLE_RESPONSE_MODE_PARAMETER</code> is 0x98 (152).
+     */
+    public static final int SINGLE_RESPONSE_MODE_PARAMETER = 0x98;
 
-    private byte[] mTarget; // byte sequence
+    /***
+     * The slot of every valid header identifier among the headers of its
+     * kind, or -1 for identifiers that may not be set with
+     * <code>setHeader()</code>. The two high bits of an identifier give its
+     * kind: Unicode text, byte sequence, 1 byte or 4 bytes.
+     */
+    private static final byte[] SLOTS = new byte[256];
 
-    private byte[] mHttpHeader; // byte sequence
+    private static final int OBJECT_SLOTS;
 
-    private byte[] mWho; // length prefixed byte sequence
+    private static final int BYTE_SLOTS;
 
-    private byte[] mAppParam; // byte sequence of the form tag length value
+    private static final int INT_SLOTS;
 
-    private byte[] mObjectClass; // byte sequence
+    static {
+        Arrays.fill(SLOTS, (byte)-1);
+        int objects = 0;
+        int bytes = 0;
+        int ints = 0;
+        int[] objectIds = {
+                NAME, DESCRIPTION, TYPE, TIME_ISO_8601, TARGET, HTTP, WHO,
+                APPLICATION_PARAMETER, OBJECT_CLASS
+        };
+        for (int id : objectIds) {
+            SLOTS[id] = (byte)objects++;
+        }
+        for (int i = 0; i < 16; i++) {
+            SLOTS[0x30 + i] = (byte)objects++;
+            SLOTS[0x70 + i] = (byte)objects++;
+            SLOTS[0xB0 + i] = (byte)bytes++;
+            SLOTS[0xF0 + i] = (byte)ints++;
+        }
+        SLOTS[SINGLE_RESPONSE_MODE] = (byte)bytes++;
+        SLOTS[SINGLE_RESPONSE_MODE_PARAMETER] = (byte)bytes++;
+        SLOTS[COUNT] = (byte)ints++;
+        SLOTS[LENGTH] = (byte)ints++;
+        SLOTS[TIME_4_BYTE] = (byte)ints++;
+        OBJECT_SLOTS = objects;
+        BYTE_SLOTS = bytes;
+        INT_SLOTS = ints;
+    }
 
-    private String[] mUnicodeUserDefined; //null terminated unicode string
+    /*** One bit for each header that is set, by header identifier */
+    private final long[] mPresent = new long[4];
 
-    private byte[][] mSequenceUserDefined; // byte sequence user defined
+    /***
+     * The Unicode text and byte sequence headers, identifiers 0x00 to 0x7F, by
+     * slot. TYPE is kept as a <code>String</code> and TIME_ISO_8601 as a
+     * <code>Calendar</code>, or any text header as a <code>RawValue</code>
+     * until it is first asked for. Allocated when the first of them is set.
+     */
+    private Object[] mObjectValues;
 
-    private Byte[] mByteUserDefined; // 1 byte
+    /*** The 1 byte headers, identifiers 0x80 to 0xBF, by slot */
+    private byte[] mByteValues;
 
-    private Long[] mIntegerUserDefined; // 4 byte unsigned integer
+    /*** The 4 byte unsigned integer headers, identifiers 0xC0 to 0xFF, by slot */
+    private long[] mIntValues;
 
-    private final SecureRandom mRandom;
+    /***
+     * The TIME_4_BYTE header as a <code>Calendar</code>: the one it was set
+     * to, or the one made from the seconds received the first time it was
+     * asked for.
+     */
+    private Calendar mByteTime;
 
     /**package*/ byte[] nonce;
 
@@ -221,17 +270,40 @@ public final class HeaderSet {
 
     public int responseCode;
 
+    /*** Incremented whenever a header is set or removed */
+    private int mModCount;
+
+    /*** The last encoding made by ObexHelper.createHeader() */
+    private byte[] mEncoded;
+
+    /*** The state of this header set when mEncoded was made */
+    private int mEncodedModCount;
+
+    private byte[] mEncodedConnectionID;
+
+    private byte[] mEncodedAuthChall;
+
+    private byte[] mEncodedAuthResp;
+
     /***
      * Creates new <code>HeaderSet</code> object.
      * @param size the max packet size for this connection
      */
     public HeaderSet() {
-        mUnicodeUserDefined = new String[16];
-        mSequenceUserDefined = new byte[16][];
-        mByteUserDefined = new Byte[16];
-        mIntegerUserDefined = new Long[16];
         responseCode = -1;
-        mRandom = new SecureRandom();
+    }
+
+    /***
+     * Returns the slot of a header identifier.
+     * @throws IllegalArgumentException if the identifier may not be set with
+     *         <code>setHeader()</code>
+     */
+    private static int slotOf(int headerID) {
+        int slot = ((headerID & ~0xFF) == 0) ? SLOTS[headerID] : -1;
+        if (slot < 0) {
+            throw new IllegalArgumentException("Invalid Header Identifier");
+        }
+        return slot;
     }
 
     /***
@@ -248,184 +320,70 @@ public final class HeaderSet {
      *         defined in the description of this interface\
      */
     public void setHeader(int headerID, Object headerValue) {
-        long temp = -1;
+        int slot = slotOf(headerID);
+        mModCount++;
 
-        switch (headerID) {
-            case COUNT:
-                if (!(headerValue instanceof Long)) {
-                    if (headerValue == null) {
-                        mCount = null;
-                        break;
-                    }
-                    throw new IllegalArgumentException("Count must be a Long");
-                }
-                temp = ((Long)headerValue).longValue();
-                if ((temp < 0L) || (temp > 0xFFFFFFFFL)) {
-                    throw new IllegalArgumentException("Count must be between 0 and 0xFFFFFFFF");
-                }
-                mCount = (Long)headerValue;
-                break;
-            case NAME:
-                if ((headerValue != null) && (!(headerValue instanceof String))) {
-                    throw new IllegalArgumentException("Name must be a String");
-                }
-                mName = (String)headerValue;
-                break;
-            case TYPE:
-                if ((headerValue != null) && (!(headerValue instanceof String))) {
-                    throw new IllegalArgumentException("Type must be a String");
-                }
-                mType = (String)headerValue;
-                break;
-            case LENGTH:
-                if (!(headerValue instanceof Long)) {
-                    if (headerValue == null) {
-                        mLength = null;
-                        break;
-                    }
-                    throw new IllegalArgumentException("Length must be a Long");
-                }
-                temp = ((Long)headerValue).longValue();
-                if ((temp < 0L) || (temp > 0xFFFFFFFFL)) {
-                    throw new IllegalArgumentException("Length must be between 0 and 0xFFFFFFFF");
-                }
-                mLength = (Long)headerValue;
-                break;
-            case TIME_ISO_8601:
-                if ((headerValue != null) && (!(headerValue instanceof Calendar))) {
-                    throw new IllegalArgumentException("Time ISO 8601 must be a Calendar");
-                }
-                mIsoTime = (Calendar)headerValue;
-                break;
-            case TIME_4_BYTE:
-                if ((headerValue != null) && (!(headerValue instanceof Calendar))) {
-                    throw new IllegalArgumentException("Time 4 Byte must be a Calendar");
-                }
-                mByteTime = (Calendar)headerValue;
-                break;
-            case DESCRIPTION:
-                if ((headerValue != null) && (!(headerValue instanceof String))) {
-                    throw new IllegalArgumentException("Description must be a String");
+        if (headerValue == null) {
+            removeHeader(headerID);
+            return;
+        }
+
+        switch (headerID & 0xC0) {
+            case 0x00:
+                // null terminated Unicode text
+                if (!(headerValue instanceof String)) {
+                    throw new IllegalArgumentException(headerName(headerID) + " must be a String");
                 }
-                mDescription = (String)headerValue;
+                setObject(headerID, slot, headerValue);
                 break;
-            case TARGET:
-                if (headerValue == null) {
-                    mTarget = null;
-                } else {
-                    if (!(headerValue instanceof byte[])) {
-                        throw new IllegalArgumentException("Target must be a byte array");
-                    } else {
-                        mTarget = new byte[((byte[])headerValue).length];
-                        System.arraycopy(headerValue, 0, mTarget, 0, mTarget.length);
+            case 0x40:
+                if (headerID == TYPE) {
+                    // null terminated ASCII text
+                    if (!(headerValue instanceof String)) {
+                        throw new IllegalArgumentException("Type must be a String");
                     }
-                }
-                break;
-            case HTTP:
-                if (headerValue == null) {
-                    mHttpHeader = null;
-                } else {
-                    if (!(headerValue instanceof byte[])) {
-                        throw new IllegalArgumentException("HTTP must be a byte array");
-                    } else {
-                        mHttpHeader = new byte[((byte[])headerValue).length];
-                        System.arraycopy(headerValue, 0, mHttpHeader, 0, mHttpHeader.length);
+                    setObject(headerID, slot, headerValue);
+                } else if (headerID == TIME_ISO_8601) {
+                    // sent as a String of the form YYYYMMDDTHHMMSSZ
+                    if (!(headerValue instanceof Calendar)) {
+                        throw new IllegalArgumentException("Time ISO 8601 must be a Calendar");
                     }
-                }
-                break;
-            case WHO:
-                if (headerValue == null) {
-                    mWho = null;
+                    setObject(headerID, slot, headerValue);
                 } else {
                     if (!(headerValue instanceof byte[])) {
-                        throw new IllegalArgumentException("WHO must be a byte array");
-                    } else {
-                        mWho = new byte[((byte[])headerValue).length];
-                        System.arraycopy(headerValue, 0, mWho, 0, mWho.length);
+                        throw new IllegalArgumentException(headerName(headerID)
+                                + " must be a byte array");
                     }
+                    setObject(headerID, slot, ((byte[])headerValue).clone());
                 }
                 break;
-            case OBJECT_CLASS:
-                if (headerValue == null) {
-                    mObjectClass = null;
-                } else {
-                    if (!(headerValue instanceof byte[])) {
-                        throw new IllegalArgumentException("Object Class must be a byte array");
-                    } else {
-                        mObjectClass = new byte[((byte[])headerValue).length];
-                        System.arraycopy(headerValue, 0, mObjectClass, 0, mObjectClass.length);
-                    }
-                }
-                break;
-            case APPLICATION_PARAMETER:
-                if (headerValue == null) {
-                    mAppParam = null;
-                } else {
-                    if (!(headerValue instanceof byte[])) {
-                        throw new IllegalArgumentException(
-                                "Application Parameter must be a byte array");
-                    } else {
-                        mAppParam = new byte[((byte[])headerValue).length];
-                        System.arraycopy(headerValue, 0, mAppParam, 0, mAppParam.length);
-                    }
+            case 0x80:
+                if (!(headerValue instanceof Byte)) {
+                    throw new IllegalArgumentException(headerName(headerID) + " must be a Byte");
                 }
+                setByteHeader(headerID, ((Byte)headerValue).byteValue());
                 break;
             default:
-                // Verify that it was not a Unicode String user Defined
-                if ((headerID >= 0x30) && (headerID <= 0x3F)) {
-                    if ((headerValue != null) && (!(headerValue instanceof String))) {
-                        throw new IllegalArgumentException(
-                                "Unicode String User Defined must be a String");
+                if (headerID == TIME_4_BYTE) {
+                    if (!(headerValue instanceof Calendar)) {
+                        throw new IllegalArgumentException("Time 4 Byte must be a Calendar");
                     }
-                    mUnicodeUserDefined[headerID - 0x30] = (String)headerValue;
-
+                    // sent as the seconds since January 1, 1970
+                    Calendar time = (Calendar)headerValue;
+                    setIntHeader(TIME_4_BYTE, time.getTime().getTime() / 1000L);
+                    mByteTime = time;
                     break;
                 }
-                // Verify that it was not a byte sequence user defined value
-                if ((headerID >= 0x70) && (headerID <= 0x7F)) {
-
-                    if (headerValue == null) {
-                        mSequenceUserDefined[headerID - 0x70] = null;
-                    } else {
-                        if (!(headerValue instanceof byte[])) {
-                            throw new IllegalArgumentException(
-                                    "Byte Sequence User Defined must be a byte array");
-                        } else {
-                            mSequenceUserDefined[headerID - 0x70] = new byte[((byte[])headerValue).length];
-                            System.arraycopy(headerValue, 0, mSequenceUserDefined[headerID - 0x70],
-                                    0, mSequenceUserDefined[headerID - 0x70].length);
-                        }
-                    }
-                    break;
+                if (!(headerValue instanceof Long)) {
+                    throw new IllegalArgumentException(headerName(headerID) + " must be a Long");
                 }
-                // Verify that it was not a Byte user Defined
-                if ((headerID >= 0xB0) && (headerID <= 0xBF)) {
-                    if ((headerValue != null) && (!(headerValue instanceof Byte))) {
-                        throw new IllegalArgumentException("ByteUser Defined must be a Byte");
-                    }
-                    mByteUserDefined[headerID - 0xB0] = (Byte)headerValue;
-
-                    break;
+                long value = ((Long)headerValue).longValue();
+                if ((value < 0L) || (value > 0xFFFFFFFFL)) {
+                    throw new IllegalArgumentException(headerName(headerID)
+                            + " must be between 0 and 0xFFFFFFFF");
                 }
-                // Verify that is was not the 4 byte unsigned integer user
-                // defined header
-                if ((headerID >= 0xF0) && (headerID <= 0xFF)) {
-                    if (!(headerValue instanceof Long)) {
-                        if (headerValue == null) {
-                            mIntegerUserDefined[headerID - 0xF0] = null;
-                            break;
-                        }
-                        throw new IllegalArgumentException("Integer User Defined must be a Long");
-                    }
-                    temp = ((Long)headerValue).longValue();
-                    if ((temp < 0L) || (temp > 0xFFFFFFFFL)) {
-                        throw new IllegalArgumentException(
-                                "Integer User Defined must be between 0 and 0xFFFFFFFF");
-                    }
-                    mIntegerUserDefined[headerID - 0xF0] = (Long)headerValue;
-                    break;
-                }
-                throw new IllegalArgumentException("Invalid Header Identifier");
+                setIntHeader(headerID, value);
+                break;
         }
     }
 
@@ -442,50 +400,33 @@ public final class HeaderSet {
      *         the operation or if the connection has been closed
      */
     public Object getHeader(int headerID) throws IOException {
+        int slot = slotOf(headerID);
+        if (!hasHeader(headerID)) {
+            return null;
+        }
 
-        switch (headerID) {
-            case COUNT:
-                return mCount;
-            case NAME:
-                return mName;
-            case TYPE:
-                return mType;
-            case LENGTH:
-                return mLength;
-            case TIME_ISO_8601:
-                return mIsoTime;
-            case TIME_4_BYTE:
-                return mByteTime;
-            case DESCRIPTION:
-                return mDescription;
-            case TARGET:
-                return mTarget;
-            case HTTP:
-                return mHttpHeader;
-            case WHO:
-                return mWho;
-            case OBJECT_CLASS:
-                return mObjectClass;
-            case APPLICATION_PARAMETER:
-                return mAppParam;
-            default:
-                // Verify that it was not a Unicode String user Defined
-                if ((headerID >= 0x30) && (headerID <= 0x3F)) {
-                    return mUnicodeUserDefined[headerID - 0x30];
-                }
-                // Verify that it was not a byte sequence user defined header
-                if ((headerID >= 0x70) && (headerID <= 0x7F)) {
-                    return mSequenceUserDefined[headerID - 0x70];
-                }
-                // Verify that it was not a byte user defined header
-                if ((headerID >= 0xB0) && (headerID <= 0xBF)) {
-                    return mByteUserDefined[headerID - 0xB0];
+        switch (headerID & 0xC0) {
+            case 0x00:
+            case 0x40:
+                Object value = mObjectValues[slot];
+                if (value instanceof RawValue) {
+                    value = decode(headerID, (RawValue)value);
+                    // the same header, so the encoding made from it is still valid
+                    mObjectValues[slot] = value;
                 }
-                // Verify that it was not a integer user defined header
-                if ((headerID >= 0xF0) && (headerID <= 0xFF)) {
-                    return mIntegerUserDefined[headerID - 0xF0];
+                return value;
+            case 0x80:
+                return Byte.valueOf(mByteValues[slot]);
+            default:
+                if (headerID == TIME_4_BYTE) {
+                    if (mByteTime == null) {
+                        Calendar time = Calendar.getInstance();
+                        time.setTime(new Date(mIntValues[slot] * 1000L));
+                        mByteTime = time;
+                    }
+                    return mByteTime;
                 }
-                throw new IllegalArgumentException("Invalid Header Identifier");
+                return Long.valueOf(mIntValues[slot]);
         }
     }
 
@@ -501,84 +442,289 @@ public final class HeaderSet {
      *         the operation or the connection has been closed
      */
     public int[] getHeaderList() throws IOException {
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-
-        if (mCount != null) {
-            out.write(COUNT);
+        int count = 0;
+        for (int i = 0; i < mPresent.length; i++) {
+            count += Long.bitCount(mPresent[i]);
         }
-        if (mName != null) {
-            out.write(NAME);
-        }
-        if (mType != null) {
-            out.write(TYPE);
-        }
-        if (mLength != null) {
-            out.write(LENGTH);
+        if (count == 0) {
+            return null;
         }
-        if (mIsoTime != null) {
-            out.write(TIME_ISO_8601);
+
+        int[] result = new int[count];
+        int index = 0;
+        for (int i = 0; i < mPresent.length; i++) {
+            long bits = mPresent[i];
+            while (bits != 0) {
+                result[index++] = (i << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+            }
         }
-        if (mByteTime != null) {
-            out.write(TIME_4_BYTE);
+        return result;
+    }
+
+    /***
+     * Sets every header that is set in <code>source</code> to the same value
+     * in this header set, without boxing the values as <code>getHeader()</code>
+     * and <code>setHeader()</code> would. The headers that are not set in
+     * <code>source</code> are left as they are.
+     * @param source the header set to copy from
+     */
+    /**package*/ void copyHeadersFrom(HeaderSet source) {
+        for (int i = 0; i < source.mPresent.length; i++) {
+            long bits = source.mPresent[i];
+            while (bits != 0) {
+                int headerID = (i << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                int slot = SLOTS[headerID];
+                switch (headerID & 0xC0) {
+                    case 0x00:
+                    case 0x40:
+                        Object value = source.mObjectValues[slot];
+                        setObject(headerID, slot,
+                                (value instanceof byte[]) ? ((byte[])value).clone() : value);
+                        break;
+                    case 0x80:
+                        setByteHeader(headerID, source.mByteValues[slot]);
+                        break;
+                    default:
+                        setIntHeader(headerID, source.mIntValues[slot]);
+                        if (headerID == TIME_4_BYTE) {
+                            mByteTime = source.mByteTime;
+                        }
+                        break;
+                }
+            }
         }
-        if (mDescription != null) {
-            out.write(DESCRIPTION);
+        mModCount++;
+    }
+
+    /***
+     * Returns whether a header is set, without looking at its value.
+     * @param headerID the header identifier
+     * @return <code>true</code> if <code>getHeader()</code> would return a
+     *         value
+     */
+    /**package*/ boolean hasHeader(int headerID) {
+        return (mPresent[(headerID >> 6) & 3] & (1L << headerID)) != 0;
+    }
+
+    /***
+     * Returns the value of a 4 byte header that is set, without boxing it;
+     * for TIME_4_BYTE, the seconds since January 1, 1970.
+     */
+    /**package*/ long getIntHeader(int headerID) {
+        return mIntValues[SLOTS[headerID]];
+    }
+
+    /***
+     * Returns the value of a 1 byte header that is set, without boxing it.
+     */
+    /**package*/ byte getByteHeader(int headerID) {
+        return mByteValues[SLOTS[headerID]];
+    }
+
+    /***
+     * Sets a 4 byte header without boxing it. The value is not checked; the
+     * parser reads it from 4 bytes.
+     * @throws IllegalArgumentException if the identifier is not a 4 byte
+     *         header that may be set
+     */
+    /**package*/ void setIntHeader(int headerID, long value) {
+        int slot = slotOf(headerID);
+        if ((headerID & 0xC0) != 0xC0) {
+            throw new IllegalArgumentException("Invalid Header Identifier");
         }
-        if (mTarget != null) {
-            out.write(TARGET);
+        if (mIntValues == null) {
+            mIntValues = new long[INT_SLOTS];
         }
-        if (mHttpHeader != null) {
-            out.write(HTTP);
+        mIntValues[slot] = value;
+        if (headerID == TIME_4_BYTE) {
+            mByteTime = null;
         }
-        if (mWho != null) {
-            out.write(WHO);
+        mPresent[3] |= 1L << headerID;
+        mModCount++;
+    }
+
+    /***
+     * Sets a 1 byte header without boxing it.
+     * @throws IllegalArgumentException if the identifier is not a 1 byte
+     *         header that may be set
+     */
+    /**package*/ void setByteHeader(int headerID, byte value) {
+        int slot = slotOf(headerID);
+        if ((headerID & 0xC0) != 0x80) {
+            throw new IllegalArgumentException("Invalid Header Identifier");
         }
-        if (mAppParam != null) {
-            out.write(APPLICATION_PARAMETER);
+        if (mByteValues == null) {
+            mByteValues = new byte[BYTE_SLOTS];
         }
-        if (mObjectClass != null) {
-            out.write(OBJECT_CLASS);
+        mByteValues[slot] = value;
+        mPresent[2] |= 1L << headerID;
+        mModCount++;
+    }
+
+    /***
+     * Sets a text header to the bytes received for it, without decoding them.
+     * <code>getHeader()</code> decodes them the first time it is asked for
+     * the header, so the headers a handler never reads are never decoded.
+     * @param headerID a Unicode text header, TYPE or TIME_ISO_8601
+     * @param array the array holding the value as received; the bytes are
+     *        copied
+     * @param offset the index of the first byte of the value
+     * @param length the number of bytes of the value
+     * @throws IllegalArgumentException if the identifier is not a text header
+     *         that may be set
+     */
+    /**package*/ void setRawHeader(int headerID, byte[] array, int offset, int length) {
+        int slot = slotOf(headerID);
+        if (((headerID & 0xC0) != 0x00) && (headerID != TYPE) && (headerID != TIME_ISO_8601)) {
+            throw new IllegalArgumentException("Invalid Header Identifier");
         }
+        byte[] bytes = new byte[length];
+        System.arraycopy(array, offset, bytes, 0, length);
+        setObject(headerID, slot, new RawValue(bytes));
+        mModCount++;
+    }
 
-        for (int i = 0x30; i < 0x40; i++) {
-            if (mUnicodeUserDefined[i - 0x30] != null) {
-                out.write(i);
+    /***
+     * Decodes a text header received with <code>setRawHeader()</code>.
+     * @throws IOException if the bytes are not a valid value of the header
+     */
+    private static Object decode(int headerID, RawValue raw) throws IOException {
+        byte[] bytes = raw.mBytes;
+        try {
+            if (headerID == TYPE) {
+                // Remove trailing null
+                int length = bytes.length;
+                if ((length > 0) && (bytes[length - 1] == 0)) {
+                    length--;
+                }
+                return new String(bytes, 0, length, "ISO8859_1");
+            }
+            if (headerID == TIME_ISO_8601) {
+                return ObexHelper.parseIsoTime(bytes);
             }
+            return ObexHelper.convertToUnicode(bytes, 0, bytes.length, true);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Header was not formatted properly");
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Header was not formatted properly");
         }
+    }
 
-        for (int i = 0x70; i < 0x80; i++) {
-            if (mSequenceUserDefined[i - 0x70] != null) {
-                out.write(i);
-            }
+    /***
+     * Removes a header; the same as setting it to <code>null</code>.
+     */
+    /**package*/ void removeHeader(int headerID) {
+        if (!hasHeader(headerID)) {
+            return;
+        }
+        mPresent[headerID >> 6] &= ~(1L << headerID);
+        if ((headerID & 0x80) == 0) {
+            // let the value be collected
+            mObjectValues[SLOTS[headerID]] = null;
+        } else if (headerID == TIME_4_BYTE) {
+            mByteTime = null;
         }
+        mModCount++;
+    }
 
-        for (int i = 0xB0; i < 0xC0; i++) {
-            if (mByteUserDefined[i - 0xB0] != null) {
-                out.write(i);
-            }
+    /***
+     * Removes every header. The connection ID and the authentication headers
+     * are kept.
+     */
+    /**package*/ void clearHeaders() {
+        for (int i = 0; i < mPresent.length; i++) {
+            mPresent[i] = 0;
         }
+        if (mObjectValues != null) {
+            Arrays.fill(mObjectValues, null);
+        }
+        mByteTime = null;
+        mModCount++;
+    }
 
-        for (int i = 0xF0; i < 0x100; i++) {
-            if (mIntegerUserDefined[i - 0xF0] != null) {
-                out.write(i);
-            }
+    private void setObject(int headerID, int slot, Object value) {
+        if (mObjectValues == null) {
+            mObjectValues = new Object[OBJECT_SLOTS];
         }
+        mObjectValues[slot] = value;
+        mPresent[headerID >> 6] |= 1L << headerID;
+    }
 
-        byte[] headers = out.toByteArray();
-        out.close();
+    /***
+     * The bytes of a received text header that has not been decoded yet.
+     * They are never modified, so header sets may share them.
+     */
+    private static final class RawValue {
+        final byte[] mBytes;
 
-        if ((headers == null) || (headers.length == 0)) {
-            return null;
+        RawValue(byte[] bytes) {
+            mBytes = bytes;
         }
+    }
 
-        int[] result = new int[headers.length];
-        for (int i = 0; i < headers.length; i++) {
-            // Convert the byte to a positive integer.  That is, an integer
-            // between 0 and 256.
-            result[i] = headers[i] & 0xFF;
+    /***
+     * Returns the name of a header for error messages.
+     */
+    private static String headerName(int headerID) {
+        switch (headerID) {
+            case COUNT:
+                return "Count";
+            case NAME:
+                return "Name";
+            case LENGTH:
+                return "Length";
+            case DESCRIPTION:
+                return "Description";
+            case TARGET:
+                return "Target";
+            case HTTP:
+                return "HTTP";
+            case WHO:
+                return "WHO";
+            case APPLICATION_PARAMETER:
+                return "Application Parameter";
+            case OBJECT_CLASS:
+                return "Object Class";
+            case SINGLE_RESPONSE_MODE:
+                return "Single Response Mode";
+            case SINGLE_RESPONSE_MODE_PARAMETER:
+                return "Single Response Mode Parameter";
+            default:
+                return "User Defined header 0x" + Integer.toHexString(headerID);
         }
+    }
 
-        return result;
+    /***
+     * Returns the encoding stored by <code>setEncodedHeader()</code> if no
+     * header has changed since.
+     * <P>
+     * A <code>Calendar</code> that is modified after it was set is not
+     * noticed; it must be set again to be sent with its new value.
+     * @return the encoded headers or <code>null</code> if there is no valid
+     *         encoding
+     */
+    /**package*/byte[] getEncodedHeader() {
+        if ((mEncoded == null) || (mEncodedModCount != mModCount)
+                || (mEncodedAuthChall != mAuthChall) || (mEncodedAuthResp != mAuthResp)
+                || !Arrays.equals(mEncodedConnectionID, mConnectionID)) {
+            return null;
+        }
+        return mEncoded;
+    }
+
+    /***
+     * Stores the encoding of the current headers, so that packets sent with
+     * the same headers do not encode them again.
+     * @param encoded the encoded headers; it must not be modified afterwards
+     */
+    /**package*/void setEncodedHeader(byte[] encoded) {
+        mEncoded = encoded;
+        mEncodedModCount = mModCount;
+        mEncodedAuthChall = mAuthChall;
+        mEncodedAuthResp = mAuthResp;
+        mEncodedConnectionID = (mConnectionID == null) ? null : mConnectionID.clone();
     }
 
     /***
@@ -600,9 +746,7 @@ public final class HeaderSet {
             throws IOException {
 
         nonce = new byte[16];
-        for (int i = 0; i < 16; i++) {
-            nonce[i] = (byte)mRandom.nextInt();
-        }
+        NonceSource.RANDOM.nextBytes(nonce);
 
         mAuthChall = ObexHelper.computeAuthenticationChallenge(nonce, realm, access, userID);
     }
@@ -625,4 +769,14 @@ public final class HeaderSet {
             return responseCode;
         }
     }
+
+    /***
+     * Holds the random source of the nonces of authentication challenges. It
+     * is created and seeded the first time a challenge is made, not once per
+     * header set, and shared by all of them; <code>SecureRandom</code> is
+     * thread safe.
+     */
+    private static final class NonceSource {
+        static final SecureRandom RANDOM = new SecureRandom();
+    }
 }
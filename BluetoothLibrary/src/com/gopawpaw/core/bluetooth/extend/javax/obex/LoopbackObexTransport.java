@@ -0,0 +1,318 @@
+/**
+ * Copyright (c) 2008-2009, Motorola, Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of the Motorola, Inc. nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gopawpaw.core.bluetooth.extend.javax.obex;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/***
+ * An in-memory <code>ObexTransport</code>. Transports are created in connected
+ * pairs, so a <code>ClientSession</code> can run against a
+ * <code>ServerSession</code> in the same process without a Bluetooth socket.
+ * <P>
+ * Each direction of a pair can add a fixed latency to every write and limit
+ * the bandwidth of the link, to approximate an RFCOMM channel when measuring
+ * the protocol. Written data is delivered in the order it was written once its
+ * latency and its share of the bandwidth have passed.
+ * @hide
+ */
+public final class LoopbackObexTransport implements ObexTransport {
+
+    /*** The number of bytes a writer may queue before it blocks */
+    private static final int DEFAULT_CAPACITY = 0x20000;
+
+    private final Pipe mIn;
+
+    private final Pipe mOut;
+
+    private LoopbackObexTransport(Pipe in, Pipe out) {
+        mIn = in;
+        mOut = out;
+    }
+
+    /***
+     * Creates a connected pair of transports without latency or bandwidth
+     * limit.
+     * @return the two ends of the connection
+     */
+    public static LoopbackObexTransport[] createPair() {
+        return createPair(0, 0);
+    }
+
+    /***
+     * Creates a connected pair of transports.
+     * @param latencyMillis the delay added to every write, in milliseconds
+     * @param bytesPerSecond the bandwidth of each direction; 0 for no limit
+     * @return the two ends of the connection
+     */
+    public static LoopbackObexTransport[] createPair(long latencyMillis, int bytesPerSecond) {
+        if ((latencyMillis < 0) || (bytesPerSecond < 0)) {
+            throw new IllegalArgumentException("Latency and bandwidth must not be negative");
+        }
+        Pipe forward = new Pipe(DEFAULT_CAPACITY, latencyMillis, bytesPerSecond);
+        Pipe backward = new Pipe(DEFAULT_CAPACITY, latencyMillis, bytesPerSecond);
+        return new LoopbackObexTransport[] {
+                new LoopbackObexTransport(backward, forward),
+                new LoopbackObexTransport(forward, backward)
+        };
+    }
+
+    public void create() throws IOException {
+    }
+
+    public void listen() throws IOException {
+    }
+
+    public void connect() throws IOException {
+    }
+
+    public void disconnect() throws IOException {
+    }
+
+    /***
+     * Closes both directions. Reads on either end return the data already
+     * delivered and then the end of stream.
+     */
+    public void close() throws IOException {
+        mIn.close();
+        mOut.close();
+    }
+
+    public InputStream openInputStream() throws IOException {
+        return mIn.mInput;
+    }
+
+    public OutputStream openOutputStream() throws IOException {
+        return mOut.mOutput;
+    }
+
+    public DataInputStream openDataInputStream() throws IOException {
+        return new DataInputStream(openInputStream());
+    }
+
+    public DataOutputStream openDataOutputStream() throws IOException {
+        return new DataOutputStream(openOutputStream());
+    }
+
+    /***
+     * One direction of the connection: a queue of written chunks, each with
+     * the time it becomes readable.
+     */
+    private static final class Pipe {
+
+        private final LinkedList<byte[]> mChunks = new LinkedList<byte[]>();
+
+        private final LinkedList<Long> mDeliveryTimes = new LinkedList<Long>();
+
+        private final int mCapacity;
+
+        private final long mLatencyNanos;
+
+        private final int mBytesPerSecond;
+
+        /*** Read position in the first chunk */
+        private int mHeadIndex;
+
+        private int mQueued;
+
+        /*** When the link has sent everything written so far */
+        private long mLinkFreeAt;
+
+        private boolean mClosed;
+
+        private final InputStream mInput = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return (Pipe.this.read(b, 0, 1) == -1) ? -1 : (b[0] & 0xFF);
+            }
+
+            @Override
+            public int read(byte[] b, int offset, int length) throws IOException {
+                if ((offset | length) < 0 || length > b.length - offset) {
+                    throw new IndexOutOfBoundsException();
+                }
+                if (length == 0) {
+                    return 0;
+                }
+                return Pipe.this.read(b, offset, length);
+            }
+
+            @Override
+            public int available() throws IOException {
+                return Pipe.this.available();
+            }
+
+            @Override
+            public void close() throws IOException {
+                Pipe.this.close();
+            }
+        };
+
+        private final OutputStream mOutput = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                Pipe.this.write(new byte[] {
+                    (byte)b
+                }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int offset, int length) throws IOException {
+                if ((offset | length) < 0 || length > b.length - offset) {
+                    throw new IndexOutOfBoundsException();
+                }
+                if (length > 0) {
+                    Pipe.this.write(b, offset, length);
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                Pipe.this.close();
+            }
+        };
+
+        Pipe(int capacity, long latencyMillis, int bytesPerSecond) {
+            mCapacity = capacity;
+            mLatencyNanos = latencyMillis * 1000000L;
+            mBytesPerSecond = bytesPerSecond;
+        }
+
+        synchronized void write(byte[] b, int offset, int length) throws IOException {
+            while (!mClosed && (mQueued > 0) && (mQueued + length > mCapacity)) {
+                waitFor(0);
+            }
+            if (mClosed) {
+                throw new IOException("Transport closed");
+            }
+
+            long now = System.nanoTime();
+            long sent = Math.max(now, mLinkFreeAt);
+            if (mBytesPerSecond > 0) {
+                sent += length * 1000000000L / mBytesPerSecond;
+            }
+            mLinkFreeAt = sent;
+
+            byte[] chunk = new byte[length];
+            System.arraycopy(b, offset, chunk, 0, length);
+            mChunks.addLast(chunk);
+            mDeliveryTimes.addLast(Long.valueOf(sent + mLatencyNanos));
+            mQueued += length;
+            notifyAll();
+        }
+
+        synchronized int read(byte[] b, int offset, int length) throws IOException {
+            while (true) {
+                if (!mChunks.isEmpty()) {
+                    long delay = mDeliveryTimes.getFirst().longValue() - System.nanoTime();
+                    if (delay <= 0) {
+                        break;
+                    }
+                    waitFor(delay);
+                } else if (mClosed) {
+                    return -1;
+                } else {
+                    waitFor(0);
+                }
+            }
+
+            // copy every chunk that has been delivered, up to length bytes
+            int result = 0;
+            long now = System.nanoTime();
+            while ((result < length) && !mChunks.isEmpty()
+                    && (mDeliveryTimes.getFirst().longValue() <= now)) {
+                byte[] head = mChunks.getFirst();
+                int count = Math.min(length - result, head.length - mHeadIndex);
+                System.arraycopy(head, mHeadIndex, b, offset + result, count);
+                mHeadIndex += count;
+                result += count;
+                if (mHeadIndex == head.length) {
+                    mChunks.removeFirst();
+                    mDeliveryTimes.removeFirst();
+                    mHeadIndex = 0;
+                }
+            }
+            mQueued -= result;
+            notifyAll();
+            return result;
+        }
+
+        /***
+         * Counts the bytes delivered so far. Once the pipe is closed and
+         * drained there is nothing left to wait for, so it throws like the
+         * stream of a socket that has been shut down, which lets a poller
+         * notice a peer that went away.
+         */
+        synchronized int available() throws IOException {
+            if (mClosed && mChunks.isEmpty()) {
+                throw new IOException("Transport closed");
+            }
+            int result = -mHeadIndex;
+            long now = System.nanoTime();
+            Iterator<byte[]> chunks = mChunks.iterator();
+            Iterator<Long> times = mDeliveryTimes.iterator();
+            while (chunks.hasNext() && (times.next().longValue() <= now)) {
+                result += chunks.next().length;
+            }
+            return Math.max(result, 0);
+        }
+
+        synchronized void close() {
+            mClosed = true;
+            notifyAll();
+        }
+
+        /***
+         * Waits until notified, or for at most <code>nanos</code> if it is
+         * positive.
+         */
+        private void waitFor(long nanos) throws IOException {
+            try {
+                if (nanos > 0) {
+                    wait(nanos / 1000000L, (int)(nanos % 1000000L));
+                } else {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/**
+ * Copyright (c) 2008-2009, Motorola, Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of the Motorola, Inc. nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gopawpaw.core.bluetooth.extend.javax.obex;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/***
+ * The result of a request started with <code>AsyncClientSession</code>.
+ * <P>
+ * Besides waiting with <code>get()</code>, a caller may add listeners, which
+ * are called once the request has completed, failed or been cancelled. A
+ * listener is called on the thread that completed the future: a thread of the
+ * executor of the session, or the thread that called <code>cancel()</code>.
+ * Listeners should therefore return quickly; they may start the next request
+ * of the session.
+ * <P>
+ * A request that is cancelled before it starts is skipped by its session.
+ * Cancelling a PUT or GET in progress completes the future at once. With
+ * <code>cancel(false)</code> the session sends an ABORT, see
+ * <code>ClientOperation.abort()</code>, once the packet it is exchanging
+ * completes; a remote device that stops answering holds the session until
+ * then. <code>cancel(true)</code> closes the session instead, which ends the
+ * exchange at once, and the requests queued after it fail.
+ * CONNECT, DISCONNECT, SETPATH and DELETE consist of a single exchange and run
+ * to their end, only their result is dropped.
+ * @hide
+ */
+public abstract class ObexFuture<V> implements Future<V> {
+
+    /***
+     * Called when a request has completed, failed or been cancelled.
+     */
+    public interface Listener<V> {
+        /***
+         * @param future the future of the request; <code>isDone()</code>
+         *        returns <code>true</code>
+         */
+        void onComplete(ObexFuture<V> future);
+    }
+
+    private static final int PENDING = 0;
+
+    private static final int RUNNING = 1;
+
+    private static final int DONE = 2;
+
+    private int mState = PENDING;
+
+    private boolean mCancelled;
+
+    private V mResult;
+
+    private Throwable mFailure;
+
+    private ArrayList<Listener<V>> mListeners;
+
+    /**package*/ ObexFuture() {
+    }
+
+    /***
+     * Performs the request on the thread of the executor.
+     * @return the result of the request
+     * @throws IOException if the request failed
+     */
+    /**package*/ abstract V execute() throws IOException;
+
+    /***
+     * Adds a listener, which is called at once if the request is done.
+     * @param listener the listener to call
+     */
+    public void addListener(Listener<V> listener) {
+        synchronized (this) {
+            if (mState != DONE) {
+                if (mListeners == null) {
+                    mListeners = new ArrayList<Listener<V>>(1);
+                }
+                mListeners.add(listener);
+                return;
+            }
+        }
+        listener.onComplete(this);
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean running;
+        synchronized (this) {
+            if (mState == DONE) {
+                return false;
+            }
+            mCancelled = true;
+            running = (mState == RUNNING);
+        }
+        complete(null, null);
+        if (running && mayInterruptIfRunning) {
+            interrupt();
+        }
+        return true;
+    }
+
+    /***
+     * Called on the thread of <code>cancel(true)</code> while the request
+     * runs, to end a request that is blocked on the transport. Does nothing
+     * by default.
+     */
+    /**package*/ void interrupt() {
+    }
+
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    public synchronized boolean isDone() {
+        return mState == DONE;
+    }
+
+    public synchronized V get() throws InterruptedException, ExecutionException {
+        while (mState != DONE) {
+            wait();
+        }
+        return result();
+    }
+
+    public synchronized V get(long timeout, TimeUnit unit) throws InterruptedException,
+            ExecutionException, TimeoutException {
+        long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+        while (mState != DONE) {
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) {
+                throw new TimeoutException();
+            }
+            wait(wait);
+        }
+        return result();
+    }
+
+    /***
+     * Runs the request unless it was cancelled before it started.
+     */
+    /**package*/ void run() {
+        synchronized (this) {
+            if (mState != PENDING) {
+                return;
+            }
+            mState = RUNNING;
+        }
+        try {
+            complete(execute(), null);
+        } catch (IOException e) {
+            complete(null, e);
+        } catch (RuntimeException e) {
+            complete(null, e);
+        }
+    }
+
+    /***
+     * Completes the future with a failure, if it is not done yet.
+     */
+    /**package*/ void fail(Throwable failure) {
+        complete(null, failure);
+    }
+
+    private void complete(V result, Throwable failure) {
+        ArrayList<Listener<V>> listeners;
+        synchronized (this) {
+            if (mState == DONE) {
+                // cancelled while it ran
+                return;
+            }
+            mState = DONE;
+            mResult = result;
+            mFailure = failure;
+            listeners = mListeners;
+            mListeners = null;
+            notifyAll();
+        }
+        if (listeners != null) {
+            for (Listener<V> listener : listeners) {
+                listener.onComplete(this);
+            }
+        }
+    }
+
+    private V result() throws ExecutionException {
+        if (mCancelled) {
+            throw new CancellationException();
+        }
+        if (mFailure != null) {
+            throw new ExecutionException(mFailure);
+        }
+        return mResult;
+    }
+}
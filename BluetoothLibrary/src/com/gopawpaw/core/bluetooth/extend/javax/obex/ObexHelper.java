@@ -38,7 +38,6 @@ import java.io.UnsupportedEncodingException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Calendar;
-import java.util.Date;
 import java.util.TimeZone;
 
 /***
@@ -70,6 +69,13 @@ public final class ObexHelper {
      */
     public static final int MAX_PACKET_SIZE_INT = 0xFFFE;
 
+    /***
+     * The smallest max packet size a session may advertise. The OBEX
+     * specification requires every implementation to accept packets of at
+     * least this size.
+     */
+    public static final int MIN_PACKET_SIZE_INT = 256;
+
     public static final int OBEX_OPCODE_CONNECT = 0x80;
 
     public static final int OBEX_OPCODE_DISCONNECT = 0x81;
@@ -90,6 +96,18 @@ public final class ObexHelper {
 
     public static final int OBEX_OPCODE_ABORT = 0xFF;
 
+    /*** Value of the Single Response Mode header disabling SRM */
+    public static final byte OBEX_SRM_DISABLE = 0x00;
+
+    /*** Value of the Single Response Mode header enabling SRM */
+    public static final byte OBEX_SRM_ENABLE = 0x01;
+
+    /*** Value of the Single Response Mode header announcing SRM support */
+    public static final byte OBEX_SRM_SUPPORT = 0x02;
+
+    /*** Value of the Single Response Mode Parameter header asking to wait */
+    public static final byte OBEX_SRMP_WAIT = 0x01;
+
     public static final int OBEX_AUTH_REALM_CHARSET_ASCII = 0x00;
 
     public static final int OBEX_AUTH_REALM_CHARSET_ISO_8859_1 = 0x01;
@@ -112,9 +130,50 @@ public final class ObexHelper {
 
     public static final int OBEX_AUTH_REALM_CHARSET_UNICODE = 0xFF;
 
+    /***
+     * Checks that a local max packet size is within the range allowed by the
+     * OBEX specification and this implementation.
+     * @param size the max packet size to check
+     * @return <code>size</code>
+     * @throws IllegalArgumentException if <code>size</code> is smaller than
+     *         <code>MIN_PACKET_SIZE_INT</code> or larger than
+     *         <code>MAX_PACKET_SIZE_INT</code>
+     */
+    public static int validateMaxPacketSize(int size) {
+        if ((size < MIN_PACKET_SIZE_INT) || (size > MAX_PACKET_SIZE_INT)) {
+            throw new IllegalArgumentException("Max packet size must be between "
+                    + MIN_PACKET_SIZE_INT + " and " + MAX_PACKET_SIZE_INT);
+        }
+        return size;
+    }
+
     /***
      * Updates the HeaderSet with the headers received in the byte array
      * provided. Invalid headers are ignored.
+     * @param header the HeaderSet to update
+     * @param headerArray the byte array containing headers
+     * @return the result of the last start body or end body header provided;
+     *         the first byte in the result will specify if a body or end of
+     *         body is received
+     * @throws IOException if an invalid header was found
+     */
+    public static byte[] updateHeaderSet(HeaderSet header, byte[] headerArray) throws IOException {
+        int bodyIndex = parseHeaders(header, headerArray, 0, headerArray.length, null);
+        if (bodyIndex == -1) {
+            return null;
+        }
+
+        int length = (((0xFF & headerArray[bodyIndex + 1]) << 8)
+                | (0xFF & headerArray[bodyIndex + 2])) - 3;
+        byte[] body = new byte[length + 1];
+        body[0] = headerArray[bodyIndex];
+        System.arraycopy(headerArray, bodyIndex + 3, body, 1, length);
+        return body;
+    }
+
+    /***
+     * Updates the HeaderSet with the headers received in the part of the byte
+     * array provided. Invalid headers are ignored.
      * <P>
      * The first two bits of an OBEX Header specifies the type of object that is
      * being sent. The table below specifies the meaning of the high bits.
@@ -147,185 +206,220 @@ public final class ObexHelper {
      * </TABLE>
      * This method uses the information in this table to determine the type of
      * Java object to create and passes that object with the full header to
-     * setHeader() to update the HeaderSet object. Invalid headers will cause an
-     * exception to be thrown. When it is thrown, it is ignored.
+     * setHeader() to update the HeaderSet object. Values are decoded straight
+     * from the array, and the data of every body and end of body header is
+     * written to <code>body</code> as it is found, so receiving a body does not
+     * allocate. Unicode text, TYPE and TIME_ISO_8601 headers are kept as the
+     * bytes received and only decoded by <code>HeaderSet.getHeader()</code>,
+     * which reports a value that can not be decoded as an
+     * <code>IOException</code>.
      * @param header the HeaderSet to update
      * @param headerArray the byte array containing headers
-     * @return the result of the last start body or end body header provided;
-     *         the first byte in the result will specify if a body or end of
-     *         body is received
+     * @param offset the index of the first header in <code>headerArray</code>
+     * @param length the number of bytes of headers
+     * @param body the stream to add body data to; <code>null</code> to drop it
+     * @return the identifier of the last body or end of body header found, or
+     *         -1 if there was none
      * @throws IOException if an invalid header was found
      */
-    public static byte[] updateHeaderSet(HeaderSet header, byte[] headerArray) throws IOException {
-        int index = 0;
-        int length = 0;
+    public static int updateHeaderSet(HeaderSet header, byte[] headerArray, int offset,
+            int length, PrivateInputStream body) throws IOException {
+        int bodyIndex = parseHeaders(header, headerArray, offset, length, body);
+        return (bodyIndex == -1) ? -1 : (0xFF & headerArray[bodyIndex]);
+    }
+
+    /***
+     * Parses the headers in the part of the byte array provided into the
+     * HeaderSet, see <code>updateHeaderSet()</code>.
+     * @return the index of the last body or end of body header found, or -1 if
+     *         there was none
+     */
+    private static int parseHeaders(HeaderSet header, byte[] headerArray, int offset, int length,
+            PrivateInputStream body) throws IOException {
+        int index = offset;
+        int end = offset + length;
+        int valueLength;
         int headerID;
-        byte[] value = null;
-        byte[] body = null;
+        int bodyIndex = -1;
         HeaderSet headerImpl = header;
-        try {
-            while (index < headerArray.length) {
-                headerID = 0xFF & headerArray[index];
-                switch (headerID & (0xC0)) {
+        while (index < end) {
+            headerID = 0xFF & headerArray[index];
+            switch (headerID & (0xC0)) {
 
+                /**
+                 * 0x00 is a unicode null terminate string with the first
+                 * two bytes after the header identifier being the length
+                 */
+                case 0x00:
+                    // Fall through
                     /**
-                     * 0x00 is a unicode null terminate string with the first
+                     * 0x40 is a byte sequence with the first
                      * two bytes after the header identifier being the length
                      */
-                    case 0x00:
-                        // Fall through
-                        /**
-                         * 0x40 is a byte sequence with the first
-                         * two bytes after the header identifier being the length
-                         */
-                    case 0x40:
-                        boolean trimTail = true;
-                        index++;
-                        length = 0xFF & headerArray[index];
-                        length = length << 8;
-                        index++;
-                        length += 0xFF & headerArray[index];
-                        length -= 3;
-                        index++;
-                        value = new byte[length];
-                        System.arraycopy(headerArray, index, value, 0, length);
-                        if (length == 0 || (length > 0 && (value[length - 1] != 0))) {
-                            trimTail = false;
-                        }
-                        switch (headerID) {
-                            case HeaderSet.TYPE:
-                                try {
-                                    // Remove trailing null
-                                    if (trimTail == false) {
-                                        headerImpl.setHeader(headerID, new String(value, 0,
-                                                value.length, "ISO8859_1"));
-                                    } else {
-                                        headerImpl.setHeader(headerID, new String(value, 0,
-                                                value.length - 1, "ISO8859_1"));
-                                    }
-                                } catch (UnsupportedEncodingException e) {
-                                    throw e;
-                                }
-                                break;
-
-                            case HeaderSet.AUTH_CHALLENGE:
-                                headerImpl.mAuthChall = new byte[length];
-                                System.arraycopy(headerArray, index, headerImpl.mAuthChall, 0,
-                                        length);
-                                break;
-
-                            case HeaderSet.AUTH_RESPONSE:
-                                headerImpl.mAuthResp = new byte[length];
-                                System.arraycopy(headerArray, index, headerImpl.mAuthResp, 0,
-                                        length);
-                                break;
-
-                            case HeaderSet.BODY:
-                                /** Fall Through */
-                            case HeaderSet.END_OF_BODY:
-                                body = new byte[length + 1];
-                                body[0] = (byte)headerID;
-                                System.arraycopy(headerArray, index, body, 1, length);
-                                break;
-
-                            case HeaderSet.TIME_ISO_8601:
-                                try {
-                                    String dateString = new String(value, "ISO8859_1");
-                                    Calendar temp = Calendar.getInstance();
-                                    if ((dateString.length() == 16)
-                                            && (dateString.charAt(15) == 'Z')) {
-                                        temp.setTimeZone(TimeZone.getTimeZone("UTC"));
-                                    }
-                                    temp.set(Calendar.YEAR, Integer.parseInt(dateString.substring(
-                                            0, 4)));
-                                    temp.set(Calendar.MONTH, Integer.parseInt(dateString.substring(
-                                            4, 6)));
-                                    temp.set(Calendar.DAY_OF_MONTH, Integer.parseInt(dateString
-                                            .substring(6, 8)));
-                                    temp.set(Calendar.HOUR_OF_DAY, Integer.parseInt(dateString
-                                            .substring(9, 11)));
-                                    temp.set(Calendar.MINUTE, Integer.parseInt(dateString
-                                            .substring(11, 13)));
-                                    temp.set(Calendar.SECOND, Integer.parseInt(dateString
-                                            .substring(13, 15)));
-                                    headerImpl.setHeader(HeaderSet.TIME_ISO_8601, temp);
-                                } catch (UnsupportedEncodingException e) {
-                                    throw e;
-                                }
-                                break;
+                case 0x40:
+                    int headerIndex = index;
+                    checkHeaderBounds(index + 3, end);
+                    index++;
+                    valueLength = 0xFF & headerArray[index];
+                    valueLength = valueLength << 8;
+                    index++;
+                    valueLength += 0xFF & headerArray[index];
+                    valueLength -= 3;
+                    index++;
+                    if (valueLength < 0) {
+                        throw new IOException("Header was not formatted properly");
+                    }
+                    checkHeaderBounds(index + valueLength, end);
+                    switch (headerID) {
+                        case HeaderSet.TYPE:
+                            /** Fall Through */
+                        case HeaderSet.TIME_ISO_8601:
+                            // decoded when the header is asked for
+                            headerImpl.setRawHeader(headerID, headerArray, index, valueLength);
+                            break;
+
+                        case HeaderSet.AUTH_CHALLENGE:
+                            headerImpl.mAuthChall = new byte[valueLength];
+                            System.arraycopy(headerArray, index, headerImpl.mAuthChall, 0,
+                                    valueLength);
+                            break;
+
+                        case HeaderSet.AUTH_RESPONSE:
+                            headerImpl.mAuthResp = new byte[valueLength];
+                            System.arraycopy(headerArray, index, headerImpl.mAuthResp, 0,
+                                    valueLength);
+                            break;
+
+                        case HeaderSet.BODY:
+                            /** Fall Through */
+                        case HeaderSet.END_OF_BODY:
+                            bodyIndex = headerIndex;
+                            if ((body != null) && (valueLength > 0)) {
+                                body.writeBytes(headerArray, index, valueLength);
+                            }
+                            break;
 
-                            default:
-                                if ((headerID & 0xC0) == 0x00) {
-                                    headerImpl.setHeader(headerID, ObexHelper.convertToUnicode(
-                                            value, true));
+                        default:
+                            if ((headerID & 0xC0) == 0x00) {
+                                if (valueLength == 0) {
+                                    // an empty Unicode header is no header
+                                    headerImpl.setHeader(headerID, null);
                                 } else {
-                                    headerImpl.setHeader(headerID, value);
+                                    // decoded when the header is asked for
+                                    headerImpl.setRawHeader(headerID, headerArray, index,
+                                            valueLength);
                                 }
-                        }
+                            } else {
+                                byte[] value = new byte[valueLength];
+                                System.arraycopy(headerArray, index, value, 0, valueLength);
+                                headerImpl.setHeader(headerID, value);
+                            }
+                    }
 
-                        index += length;
-                        break;
+                    index += valueLength;
+                    break;
 
-                    /**
-                     * 0x80 is a byte header.  The only valid byte headers are
-                     * the 16 user defined byte headers.
-                     */
-                    case 0x80:
-                        index++;
-                        try {
-                            headerImpl.setHeader(headerID, Byte.valueOf(headerArray[index]));
-                        } catch (Exception e) {
-                            // Not a valid header so ignore
-                        }
-                        index++;
-                        break;
+                /**
+                 * 0x80 is a byte header.  The only valid byte headers are
+                 * the 16 user defined byte headers and the two Single
+                 * Response Mode headers.
+                 */
+                case 0x80:
+                    checkHeaderBounds(index + 2, end);
+                    index++;
+                    try {
+                        headerImpl.setByteHeader(headerID, headerArray[index]);
+                    } catch (Exception e) {
+                        // Not a valid header so ignore
+                    }
+                    index++;
+                    break;
 
-                    /**
-                     * 0xC0 is a 4 byte unsigned integer header and with the
-                     * exception of TIME_4_BYTE will be converted to a Long
-                     * and added.
-                     */
-                    case 0xC0:
-                        index++;
-                        value = new byte[4];
-                        System.arraycopy(headerArray, index, value, 0, 4);
-                        try {
-                            if (headerID != HeaderSet.TIME_4_BYTE) {
-                                // Determine if it is a connection ID.  These
-                                // need to be handled differently
-                                if (headerID == HeaderSet.CONNECTION_ID) {
-                                    headerImpl.mConnectionID = new byte[4];
-                                    System.arraycopy(value, 0, headerImpl.mConnectionID, 0, 4);
-                                } else {
-                                    headerImpl.setHeader(headerID, Long
-                                            .valueOf(convertToLong(value)));
-                                }
-                            } else {
-                                Calendar temp = Calendar.getInstance();
-                                temp.setTime(new Date(convertToLong(value) * 1000L));
-                                headerImpl.setHeader(HeaderSet.TIME_4_BYTE, temp);
-                            }
-                        } catch (Exception e) {
-                            // Not a valid header so ignore
-                            throw new IOException("Header was not formatted properly");
+                /**
+                 * 0xC0 is a 4 byte unsigned integer header and with the
+                 * exception of CONNECTION_ID is stored as a long.
+                 */
+                case 0xC0:
+                    checkHeaderBounds(index + 5, end);
+                    index++;
+                    try {
+                        // Determine if it is a connection ID.  These
+                        // need to be handled differently
+                        if (headerID == HeaderSet.CONNECTION_ID) {
+                            headerImpl.mConnectionID = new byte[4];
+                            System.arraycopy(headerArray, index, headerImpl.mConnectionID,
+                                    0, 4);
+                        } else {
+                            // TIME_4_BYTE is kept as seconds until it is asked for
+                            headerImpl.setIntHeader(headerID, convertToLong(headerArray,
+                                    index, 4));
                         }
-                        index += 4;
-                        break;
-                }
-
+                    } catch (Exception e) {
+                        // Not a valid header so ignore
+                        throw new IOException("Header was not formatted properly");
+                    }
+                    index += 4;
+                    break;
             }
-        } catch (IOException e) {
-            throw new IOException("Header was not formatted properly");
+
         }
 
-        return body;
+        return bodyIndex;
+    }
+
+    /***
+     * Checks that a header ends within the headers of the packet. The packet
+     * buffer is reused, so reading past <code>end</code> would pick up bytes
+     * of an earlier packet rather than fail.
+     * @param headerEnd the index just past the last byte of the header
+     * @param end the index just past the last byte of the headers
+     * @throws IOException if the header exceeds the packet
+     */
+    private static void checkHeaderBounds(int headerEnd, int end) throws IOException {
+        if (headerEnd > end) {
+            throw new IOException("Header exceeds packet");
+        }
+    }
+
+    /***
+     * Parses the value of a TIME_ISO_8601 header, of the form
+     * YYYYMMDDTHHMMSS followed by a 'Z' for a UTC time.
+     * @param value the header value as received
+     * @return the time
+     * @throws IllegalArgumentException if the value is not a valid time
+     * @throws IndexOutOfBoundsException if the value is too short
+     */
+    /**package*/ static Calendar parseIsoTime(byte[] value) {
+        String dateString;
+        try {
+            dateString = new String(value, "ISO8859_1");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalArgumentException(e.toString());
+        }
+        Calendar temp = Calendar.getInstance();
+        if ((dateString.length() == 16) && (dateString.charAt(15) == 'Z')) {
+            temp.setTimeZone(TimeZone.getTimeZone("UTC"));
+        }
+        temp.set(Calendar.YEAR, Integer.parseInt(dateString.substring(0, 4)));
+        temp.set(Calendar.MONTH, Integer.parseInt(dateString.substring(4, 6)));
+        temp.set(Calendar.DAY_OF_MONTH, Integer.parseInt(dateString.substring(6, 8)));
+        temp.set(Calendar.HOUR_OF_DAY, Integer.parseInt(dateString.substring(9, 11)));
+        temp.set(Calendar.MINUTE, Integer.parseInt(dateString.substring(11, 13)));
+        temp.set(Calendar.SECOND, Integer.parseInt(dateString.substring(13, 15)));
+        return temp;
     }
 
     /***
      * Creates the header part of OBEX packet based on the header provided.
-     * TODO: Could use getHeaderList() to get the array of headers to include
-     * and then use the high two bits to determine the the type of the object
-     * and construct the byte array from that. This will make the size smaller.
+     * Numeric headers are written from the primitive values the
+     * <code>HeaderSet</code> keeps, and headers that are not set are skipped
+     * by testing one bit each.
+     * <P>
+     * The result is kept in the <code>HeaderSet</code> and returned again
+     * until a header changes, so continuation packets and retransmissions do
+     * not encode the same headers again. This includes the first packet of an
+     * operation, whose headers <code>getHeaderLength()</code> has usually just
+     * encoded. The array returned must therefore not be modified.
      * @param head the header used to construct the byte array
      * @param nullOut <code>true</code> if the header should be set to
      *        <code>null</code> once it is added to the array or
@@ -333,16 +427,27 @@ public final class ObexHelper {
      * @return the header of an OBEX packet
      */
     public static byte[] createHeader(HeaderSet head, boolean nullOut) {
-        Long intHeader = null;
+        byte[] encoded = head.getEncodedHeader();
+        if (encoded != null) {
+            /**
+             * Nulling out leaves nothing to do if at most the connection ID
+             * is set, which is the case for every continuation packet.
+             * Otherwise the headers just encoded are sent and then removed.
+             */
+            if (nullOut && (encoded.length != 0)
+                    && ((encoded.length != 5) || (encoded[0] != (byte)HeaderSet.CONNECTION_ID))) {
+                nullOutHeaders(head);
+            }
+            return encoded;
+        }
+
         String stringHeader = null;
         Calendar dateHeader = null;
-        Byte byteHeader = null;
         StringBuffer buffer = null;
         byte[] value = null;
         byte[] result = null;
-        byte[] lengthArray = new byte[2];
-        int length;
         HeaderSet headImpl = null;
+        boolean complete = false;
         ByteArrayOutputStream out = new ByteArrayOutputStream();
         headImpl = head;
 
@@ -351,73 +456,38 @@ public final class ObexHelper {
              * Determine if there is a connection ID to send.  If there is,
              * then it should be the first header in the packet.
              */
-            if ((headImpl.mConnectionID != null) && (headImpl.getHeader(HeaderSet.TARGET) == null)) {
+            if ((headImpl.mConnectionID != null) && !headImpl.hasHeader(HeaderSet.TARGET)) {
 
                 out.write((byte)HeaderSet.CONNECTION_ID);
                 out.write(headImpl.mConnectionID);
             }
 
             // Count Header
-            intHeader = (Long)headImpl.getHeader(HeaderSet.COUNT);
-            if (intHeader != null) {
-                out.write((byte)HeaderSet.COUNT);
-                value = ObexHelper.convertToByteArray(intHeader.longValue());
-                out.write(value);
-                if (nullOut) {
-                    headImpl.setHeader(HeaderSet.COUNT, null);
-                }
+            if (headImpl.hasHeader(HeaderSet.COUNT)) {
+                writeIntHeader(out, HeaderSet.COUNT, headImpl.getIntHeader(HeaderSet.COUNT));
             }
 
             // Name Header
-            stringHeader = (String)headImpl.getHeader(HeaderSet.NAME);
-            if (stringHeader != null) {
-                out.write((byte)HeaderSet.NAME);
-                value = ObexHelper.convertToUnicodeByteArray(stringHeader);
-                length = value.length + 3;
-                lengthArray[0] = (byte)(0xFF & (length >> 8));
-                lengthArray[1] = (byte)(0xFF & length);
-                out.write(lengthArray);
-                out.write(value);
-                if (nullOut) {
-                    headImpl.setHeader(HeaderSet.NAME, null);
-                }
+            if (headImpl.hasHeader(HeaderSet.NAME)) {
+                stringHeader = (String)headImpl.getHeader(HeaderSet.NAME);
+                writeSequenceHeader(out, HeaderSet.NAME,
+                        ObexHelper.convertToUnicodeByteArray(stringHeader), false);
             }
 
             // Type Header
-            stringHeader = (String)headImpl.getHeader(HeaderSet.TYPE);
-            if (stringHeader != null) {
-                out.write((byte)HeaderSet.TYPE);
-                try {
-                    value = stringHeader.getBytes("ISO8859_1");
-                } catch (UnsupportedEncodingException e) {
-                    throw e;
-                }
-
-                length = value.length + 4;
-                lengthArray[0] = (byte)(255 & (length >> 8));
-                lengthArray[1] = (byte)(255 & length);
-                out.write(lengthArray);
-                out.write(value);
-                out.write(0x00);
-                if (nullOut) {
-                    headImpl.setHeader(HeaderSet.TYPE, null);
-                }
+            if (headImpl.hasHeader(HeaderSet.TYPE)) {
+                stringHeader = (String)headImpl.getHeader(HeaderSet.TYPE);
+                writeSequenceHeader(out, HeaderSet.TYPE, stringHeader.getBytes("ISO8859_1"), true);
             }
 
             // Length Header
-            intHeader = (Long)headImpl.getHeader(HeaderSet.LENGTH);
-            if (intHeader != null) {
-                out.write((byte)HeaderSet.LENGTH);
-                value = ObexHelper.convertToByteArray(intHeader.longValue());
-                out.write(value);
-                if (nullOut) {
-                    headImpl.setHeader(HeaderSet.LENGTH, null);
-                }
+            if (headImpl.hasHeader(HeaderSet.LENGTH)) {
+                writeIntHeader(out, HeaderSet.LENGTH, headImpl.getIntHeader(HeaderSet.LENGTH));
             }
 
             // Time ISO Header
-            dateHeader = (Calendar)headImpl.getHeader(HeaderSet.TIME_ISO_8601);
-            if (dateHeader != null) {
+            if (headImpl.hasHeader(HeaderSet.TIME_ISO_8601)) {
+                dateHeader = (Calendar)headImpl.getHeader(HeaderSet.TIME_ISO_8601);
 
                 /**
                  * The ISO Header should take the form YYYYMMDDTHHMMSSZ.  The
@@ -460,124 +530,28 @@ public final class ObexHelper {
                     buffer.append("Z");
                 }
 
-                try {
-                    value = buffer.toString().getBytes("ISO8859_1");
-                } catch (UnsupportedEncodingException e) {
-                    throw e;
-                }
-
-                length = value.length + 3;
-                lengthArray[0] = (byte)(255 & (length >> 8));
-                lengthArray[1] = (byte)(255 & length);
-                out.write(HeaderSet.TIME_ISO_8601);
-                out.write(lengthArray);
-                out.write(value);
-                if (nullOut) {
-                    headImpl.setHeader(HeaderSet.TIME_ISO_8601, null);
-                }
+                writeSequenceHeader(out, HeaderSet.TIME_ISO_8601,
+                        buffer.toString().getBytes("ISO8859_1"), false);
             }
 
-            // Time 4 Byte Header
-            dateHeader = (Calendar)headImpl.getHeader(HeaderSet.TIME_4_BYTE);
-            if (dateHeader != null) {
-                out.write(HeaderSet.TIME_4_BYTE);
-
-                /**
-                 * Need to call getTime() twice.  The first call will return
-                 * a java.util.Date object.  The second call returns the number
-                 * of milliseconds since January 1, 1970.  We need to convert
-                 * it to seconds since the TIME_4_BYTE expects the number of
-                 * seconds since January 1, 1970.
-                 */
-                value = ObexHelper.convertToByteArray(dateHeader.getTime().getTime() / 1000L);
-                out.write(value);
-                if (nullOut) {
-                    headImpl.setHeader(HeaderSet.TIME_4_BYTE, null);
-                }
+            // Time 4 Byte Header, kept as the seconds since January 1, 1970
+            if (headImpl.hasHeader(HeaderSet.TIME_4_BYTE)) {
+                writeIntHeader(out, HeaderSet.TIME_4_BYTE,
+                        headImpl.getIntHeader(HeaderSet.TIME_4_BYTE));
             }
 
             // Description Header
-            stringHeader = (String)headImpl.getHeader(HeaderSet.DESCRIPTION);
-            if (stringHeader != null) {
-                out.write((byte)HeaderSet.DESCRIPTION);
-                value = ObexHelper.convertToUnicodeByteArray(stringHeader);
-                length = value.length + 3;
-                lengthArray[0] = (byte)(255 & (length >> 8));
-                lengthArray[1] = (byte)(255 & length);
-                out.write(lengthArray);
-                out.write(value);
-                if (nullOut) {
-                    headImpl.setHeader(HeaderSet.DESCRIPTION, null);
-                }
-            }
-
-            // Target Header
-            value = (byte[])headImpl.getHeader(HeaderSet.TARGET);
-            if (value != null) {
-                out.write((byte)HeaderSet.TARGET);
-                length = value.length + 3;
-                lengthArray[0] = (byte)(255 & (length >> 8));
-                lengthArray[1] = (byte)(255 & length);
-                out.write(lengthArray);
-                out.write(value);
-                if (nullOut) {
-                    headImpl.setHeader(HeaderSet.TARGET, null);
-                }
-            }
-
-            // HTTP Header
-            value = (byte[])headImpl.getHeader(HeaderSet.HTTP);
-            if (value != null) {
-                out.write((byte)HeaderSet.HTTP);
-                length = value.length + 3;
-                lengthArray[0] = (byte)(255 & (length >> 8));
-                lengthArray[1] = (byte)(255 & length);
-                out.write(lengthArray);
-                out.write(value);
-                if (nullOut) {
-                    headImpl.setHeader(HeaderSet.HTTP, null);
-                }
-            }
-
-            // Who Header
-            value = (byte[])headImpl.getHeader(HeaderSet.WHO);
-            if (value != null) {
-                out.write((byte)HeaderSet.WHO);
-                length = value.length + 3;
-                lengthArray[0] = (byte)(255 & (length >> 8));
-                lengthArray[1] = (byte)(255 & length);
-                out.write(lengthArray);
-                out.write(value);
-                if (nullOut) {
-                    headImpl.setHeader(HeaderSet.WHO, null);
-                }
+            if (headImpl.hasHeader(HeaderSet.DESCRIPTION)) {
+                stringHeader = (String)headImpl.getHeader(HeaderSet.DESCRIPTION);
+                writeSequenceHeader(out, HeaderSet.DESCRIPTION,
+                        ObexHelper.convertToUnicodeByteArray(stringHeader), false);
             }
 
-            // Connection ID Header
-            value = (byte[])headImpl.getHeader(HeaderSet.APPLICATION_PARAMETER);
-            if (value != null) {
-                out.write((byte)HeaderSet.APPLICATION_PARAMETER);
-                length = value.length + 3;
-                lengthArray[0] = (byte)(255 & (length >> 8));
-                lengthArray[1] = (byte)(255 & length);
-                out.write(lengthArray);
-                out.write(value);
-                if (nullOut) {
-                    headImpl.setHeader(HeaderSet.APPLICATION_PARAMETER, null);
-                }
-            }
-
-            // Object Class Header
-            value = (byte[])headImpl.getHeader(HeaderSet.OBJECT_CLASS);
-            if (value != null) {
-                out.write((byte)HeaderSet.OBJECT_CLASS);
-                length = value.length + 3;
-                lengthArray[0] = (byte)(255 & (length >> 8));
-                lengthArray[1] = (byte)(255 & length);
-                out.write(lengthArray);
-                out.write(value);
-                if (nullOut) {
-                    headImpl.setHeader(HeaderSet.OBJECT_CLASS, null);
+            // Target, HTTP, Who, Application Parameter and Object Class Headers
+            for (int i = 0; i < SEQUENCE_HEADERS.length; i++) {
+                if (headImpl.hasHeader(SEQUENCE_HEADERS[i])) {
+                    value = (byte[])headImpl.getHeader(SEQUENCE_HEADERS[i]);
+                    writeSequenceHeader(out, SEQUENCE_HEADERS[i], value, false);
                 }
             }
 
@@ -585,80 +559,52 @@ public final class ObexHelper {
             for (int i = 0; i < 16; i++) {
 
                 //Unicode String Header
-                stringHeader = (String)headImpl.getHeader(i + 0x30);
-                if (stringHeader != null) {
-                    out.write((byte)i + 0x30);
-                    value = ObexHelper.convertToUnicodeByteArray(stringHeader);
-                    length = value.length + 3;
-                    lengthArray[0] = (byte)(255 & (length >> 8));
-                    lengthArray[1] = (byte)(255 & length);
-                    out.write(lengthArray);
-                    out.write(value);
-                    if (nullOut) {
-                        headImpl.setHeader(i + 0x30, null);
-                    }
+                if (headImpl.hasHeader(i + 0x30)) {
+                    stringHeader = (String)headImpl.getHeader(i + 0x30);
+                    writeSequenceHeader(out, i + 0x30,
+                            ObexHelper.convertToUnicodeByteArray(stringHeader), false);
                 }
 
                 // Byte Sequence Header
-                value = (byte[])headImpl.getHeader(i + 0x70);
-                if (value != null) {
-                    out.write((byte)i + 0x70);
-                    length = value.length + 3;
-                    lengthArray[0] = (byte)(255 & (length >> 8));
-                    lengthArray[1] = (byte)(255 & length);
-                    out.write(lengthArray);
-                    out.write(value);
-                    if (nullOut) {
-                        headImpl.setHeader(i + 0x70, null);
-                    }
+                if (headImpl.hasHeader(i + 0x70)) {
+                    value = (byte[])headImpl.getHeader(i + 0x70);
+                    writeSequenceHeader(out, i + 0x70, value, false);
                 }
 
                 // Byte Header
-                byteHeader = (Byte)headImpl.getHeader(i + 0xB0);
-                if (byteHeader != null) {
+                if (headImpl.hasHeader(i + 0xB0)) {
                     out.write((byte)i + 0xB0);
-                    out.write(byteHeader.byteValue());
-                    if (nullOut) {
-                        headImpl.setHeader(i + 0xB0, null);
-                    }
+                    out.write(headImpl.getByteHeader(i + 0xB0));
                 }
 
                 // Integer header
-                intHeader = (Long)headImpl.getHeader(i + 0xF0);
-                if (intHeader != null) {
-                    out.write((byte)i + 0xF0);
-                    out.write(ObexHelper.convertToByteArray(intHeader.longValue()));
-                    if (nullOut) {
-                        headImpl.setHeader(i + 0xF0, null);
-                    }
+                if (headImpl.hasHeader(i + 0xF0)) {
+                    writeIntHeader(out, i + 0xF0, headImpl.getIntHeader(i + 0xF0));
                 }
             }
 
+            // Single Response Mode Header
+            if (headImpl.hasHeader(HeaderSet.SINGLE_RESPONSE_MODE)) {
+                out.write((byte)HeaderSet.SINGLE_RESPONSE_MODE);
+                out.write(headImpl.getByteHeader(HeaderSet.SINGLE_RESPONSE_MODE));
+            }
+
+            // Single Response Mode Parameter Header
+            if (headImpl.hasHeader(HeaderSet.SINGLE_RESPONSE_MODE_PARAMETER)) {
+                out.write((byte)HeaderSet.SINGLE_RESPONSE_MODE_PARAMETER);
+                out.write(headImpl.getByteHeader(HeaderSet.SINGLE_RESPONSE_MODE_PARAMETER));
+            }
+
             // Add the authentication challenge header
             if (headImpl.mAuthChall != null) {
-                out.write((byte)HeaderSet.AUTH_CHALLENGE);
-                length = headImpl.mAuthChall.length + 3;
-                lengthArray[0] = (byte)(255 & (length >> 8));
-                lengthArray[1] = (byte)(255 & length);
-                out.write(lengthArray);
-                out.write(headImpl.mAuthChall);
-                if (nullOut) {
-                    headImpl.mAuthChall = null;
-                }
+                writeSequenceHeader(out, HeaderSet.AUTH_CHALLENGE, headImpl.mAuthChall, false);
             }
 
             // Add the authentication response header
             if (headImpl.mAuthResp != null) {
-                out.write((byte)HeaderSet.AUTH_RESPONSE);
-                length = headImpl.mAuthResp.length + 3;
-                lengthArray[0] = (byte)(255 & (length >> 8));
-                lengthArray[1] = (byte)(255 & length);
-                out.write(lengthArray);
-                out.write(headImpl.mAuthResp);
-                if (nullOut) {
-                    headImpl.mAuthResp = null;
-                }
+                writeSequenceHeader(out, HeaderSet.AUTH_RESPONSE, headImpl.mAuthResp, false);
             }
+            complete = true;
 
         } catch (IOException e) {
         } finally {
@@ -669,10 +615,75 @@ public final class ObexHelper {
             }
         }
 
+        if (complete) {
+            if (!nullOut) {
+                headImpl.setEncodedHeader(result);
+            } else {
+                nullOutHeaders(headImpl);
+            }
+        }
+
         return result;
 
     }
 
+    /***
+     * Removes the headers <code>createHeader()</code> has added to a packet,
+     * leaving the connection ID, and caches the encoding of what is left.
+     * @param head the headers that have been sent
+     */
+    private static void nullOutHeaders(HeaderSet head) {
+        head.clearHeaders();
+        head.mAuthChall = null;
+        head.mAuthResp = null;
+        if (head.mConnectionID != null) {
+            // only the connection ID is left to send in later packets
+            byte[] remaining = new byte[5];
+            remaining[0] = (byte)HeaderSet.CONNECTION_ID;
+            System.arraycopy(head.mConnectionID, 0, remaining, 1, 4);
+            head.setEncodedHeader(remaining);
+        } else {
+            head.setEncodedHeader(new byte[0]);
+        }
+    }
+
+    /***
+     * The byte sequence headers without a special encoding, in the order
+     * <code>createHeader()</code> adds them.
+     */
+    private static final int[] SEQUENCE_HEADERS = {
+            HeaderSet.TARGET, HeaderSet.HTTP, HeaderSet.WHO, HeaderSet.APPLICATION_PARAMETER,
+            HeaderSet.OBJECT_CLASS
+    };
+
+    /***
+     * Writes a header whose value is preceded by its length.
+     * @param nullTerminate <code>true</code> to add a null byte after the
+     *        value
+     */
+    private static void writeSequenceHeader(ByteArrayOutputStream out, int headerID,
+            byte[] value, boolean nullTerminate) {
+        int length = value.length + (nullTerminate ? 4 : 3);
+        out.write(headerID);
+        out.write(length >> 8);
+        out.write(length);
+        out.write(value, 0, value.length);
+        if (nullTerminate) {
+            out.write(0x00);
+        }
+    }
+
+    /***
+     * Writes a 4 byte unsigned integer header.
+     */
+    private static void writeIntHeader(ByteArrayOutputStream out, int headerID, long value) {
+        out.write(headerID);
+        out.write((int)(value >> 24));
+        out.write((int)(value >> 16));
+        out.write((int)(value >> 8));
+        out.write((int)value);
+    }
+
     /***
      * Determines where the maximum divide is between headers. This method is
      * used by put and get operations to separate headers to a size that meets
@@ -756,11 +767,23 @@ public final class ObexHelper {
      * @return the byte array as a long
      */
     public static long convertToLong(byte[] b) {
+        return convertToLong(b, 0, b.length);
+    }
+
+    /***
+     * Converts part of a byte array to a long value, see
+     * <code>convertToLong(byte[])</code>.
+     * @param b the array holding the value
+     * @param offset the index of the most significant byte
+     * @param length the number of bytes of the value
+     * @return the long value of the bytes
+     */
+    public static long convertToLong(byte[] b, int offset, int length) {
         long result = 0;
         long value = 0;
         long power = 0;
 
-        for (int i = (b.length - 1); i >= 0; i--) {
+        for (int i = (offset + length - 1); i >= offset; i--) {
             value = b[i];
             if (value < 0) {
                 value += 256;
@@ -875,10 +898,29 @@ public final class ObexHelper {
      * @throws IllegalArgumentException if the byte array has an odd length
      */
     public static String convertToUnicode(byte[] b, boolean includesNull) {
-        if (b == null || b.length == 0) {
+        if (b == null) {
+            return null;
+        }
+        return convertToUnicode(b, 0, b.length, includesNull);
+    }
+
+    /***
+     * Converts part of a byte array to a Unicode string, see
+     * <code>convertToUnicode(byte[], boolean)</code>.
+     * @param b the array holding the string
+     * @param offset the index of the first byte of the string
+     * @param length the number of bytes of the string
+     * @param includesNull determine if the byte string provided contains the
+     *        UNICODE null character at the end or not; if it does, it will be
+     *        removed
+     * @return a Unicode string
+     * @throws IllegalArgumentException if the byte array has an odd length
+     */
+    public static String convertToUnicode(byte[] b, int offset, int length, boolean includesNull) {
+        if (b == null || length == 0) {
             return null;
         }
-        int arrayLength = b.length;
+        int arrayLength = length;
         if (!((arrayLength % 2) == 0)) {
             throw new IllegalArgumentException("Byte array not of a valid form");
         }
@@ -889,8 +931,8 @@ public final class ObexHelper {
 
         char[] c = new char[arrayLength];
         for (int i = 0; i < arrayLength; i++) {
-            int upper = b[2 * i];
-            int lower = b[(2 * i) + 1];
+            int upper = b[offset + (2 * i)];
+            int lower = b[offset + (2 * i) + 1];
             if (upper < 0) {
                 upper += 256;
             }
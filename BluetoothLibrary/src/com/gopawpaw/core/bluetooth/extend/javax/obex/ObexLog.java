@@ -0,0 +1,78 @@
+/**
+ * Copyright (c) 2008-2009, Motorola, Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of the Motorola, Inc. nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gopawpaw.core.bluetooth.extend.javax.obex;
+
+import android.util.Log;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/***
+ * Logs through <code>android.util.Log</code> on a device and through
+ * <code>java.util.logging</code> on any other JVM, so the OBEX classes also
+ * run off-device, for example against <code>LoopbackObexTransport</code> in
+ * the benchmarks. The <code>Log</code> class is only touched on a device.
+ * @hide
+ */
+/**package*/ final class ObexLog {
+
+    /*** Android reports Dalvik as the VM name for ART too */
+    private static final boolean ANDROID = "Dalvik".equals(System.getProperty("java.vm.name"));
+
+    private ObexLog() {
+    }
+
+    static void v(String tag, String msg) {
+        if (ANDROID) {
+            Log.v(tag, msg);
+        } else {
+            Logger.getLogger(tag).log(Level.FINEST, msg);
+        }
+    }
+
+    static void d(String tag, String msg) {
+        if (ANDROID) {
+            Log.d(tag, msg);
+        } else {
+            Logger.getLogger(tag).log(Level.FINE, msg);
+        }
+    }
+
+    static void w(String tag, String msg) {
+        if (ANDROID) {
+            Log.w(tag, msg);
+        } else {
+            Logger.getLogger(tag).log(Level.WARNING, msg);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/**
+ * Copyright (c) 2008-2009, Motorola, Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of the Motorola, Inc. nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gopawpaw.core.bluetooth.extend.javax.obex;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/***
+ * Reads whole OBEX packets from a stream into a reusable buffer. The opcode
+ * and the packet length are read with one bulk read and the rest of the
+ * packet with another, instead of one <code>read()</code> per byte, which
+ * is a system call per byte on an unbuffered socket stream. Both sides of
+ * a session read every packet through it.
+ * <P>
+ * The reader never reads past the end of the packet, so nothing is left
+ * buffered between two packets and <code>available()</code> of the stream
+ * still tells whether the next packet has started.
+ * <P>
+ * The end of the stream inside a packet is an error rather than a short
+ * read. So is a read that times out inside a packet: the rest of the packet
+ * is still on its way, so the reader can no longer find the start of the
+ * next one and fails every later read. A timeout before the first byte of a
+ * packet leaves the reader usable.
+ * <P>
+ * The reader counts the sizes returned by the reads of the stream, see
+ * <code>getReadSizeHistogram()</code>, which shows how the transport splits
+ * up the packets.
+ * @hide
+ */
+final class ObexPacketReader {
+
+    /*** The size of the opcode and the length at the start of every packet */
+    private static final int PREFIX_LENGTH = 3;
+
+    /*** One bucket for empty reads and one for each power of two up to 64 KB */
+    private static final int HISTOGRAM_BUCKETS = 18;
+
+    private final InputStream mInput;
+
+    private byte[] mBuffer;
+
+    private int mLength;
+
+    /*** Whether a read failed inside a packet, so the packets are out of sync */
+    private boolean mBroken;
+
+    /*** The number of reads that returned each size, by bucket */
+    private final int[] mReadSizes = new int[HISTOGRAM_BUCKETS];
+
+    /***
+     * Creates a reader.
+     * @param input the stream to read packets from
+     * @param initialSize the initial size of the packet buffer; it grows to
+     *        the largest packet received
+     */
+    ObexPacketReader(InputStream input, int initialSize) {
+        mInput = input;
+        mBuffer = new byte[Math.max(initialSize, PREFIX_LENGTH)];
+    }
+
+    /***
+     * Reads the next packet into the buffer.
+     * @return the opcode or response code of the packet, or -1 if the stream
+     *         ended before the packet started
+     * @throws IOException if the stream ended or a read timed out inside the
+     *         packet, the packet length is invalid, or an earlier packet was
+     *         not read completely
+     */
+    int readPacket() throws IOException {
+        if (mBroken) {
+            throw new IOException("Packet stream out of sync");
+        }
+        mLength = 0;
+        if (!readFully(0, PREFIX_LENGTH, true)) {
+            return -1;
+        }
+        int length = ((mBuffer[1] & 0xFF) << 8) | (mBuffer[2] & 0xFF);
+        if (length < PREFIX_LENGTH) {
+            mBroken = true;
+            throw new IOException("Invalid packet length " + length);
+        }
+        if (mBuffer.length < length) {
+            byte[] buffer = new byte[length];
+            System.arraycopy(mBuffer, 0, buffer, 0, PREFIX_LENGTH);
+            mBuffer = buffer;
+        }
+        readFully(PREFIX_LENGTH, length - PREFIX_LENGTH, false);
+        mLength = length;
+        return mBuffer[0] & 0xFF;
+    }
+
+    /***
+     * Reads the next packet, which must be there.
+     * @return the opcode or response code of the packet
+     * @throws IOException if the stream ended before or inside the packet, or
+     *         <code>readPacket()</code> failed
+     */
+    int readRequiredPacket() throws IOException {
+        int code = readPacket();
+        if (code == -1) {
+            throw new IOException("Connection closed by the remote device");
+        }
+        return code;
+    }
+
+    /***
+     * Returns the buffer holding the last packet read, starting with its
+     * opcode. Valid until the next call to <code>readPacket()</code>.
+     */
+    byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    /***
+     * Returns the length of the last packet read, including its opcode and
+     * length field.
+     */
+    int getLength() {
+        return mLength;
+    }
+
+    /***
+     * Returns the number of reads of the stream by size. Bucket 0 counts the
+     * reads that returned nothing, and bucket <code>n</code> the reads that
+     * returned from <code>2^(n-1)</code> to <code>2^n - 1</code> bytes.
+     * @return a copy of the histogram
+     */
+    synchronized int[] getReadSizeHistogram() {
+        int[] histogram = new int[HISTOGRAM_BUCKETS];
+        System.arraycopy(mReadSizes, 0, histogram, 0, HISTOGRAM_BUCKETS);
+        return histogram;
+    }
+
+    /***
+     * Reads exactly <code>count</code> bytes into the buffer.
+     * @param atStart <code>true</code> if the end of the stream is allowed
+     *        before the first byte
+     * @return <code>false</code> if the stream ended before the first byte
+     *         and <code>atStart</code> was set
+     * @throws IOException if the stream ended or a read timed out inside the
+     *         range
+     */
+    private boolean readFully(int offset, int count, boolean atStart) throws IOException {
+        int done = 0;
+        while (done < count) {
+            int got;
+            try {
+                got = mInput.read(mBuffer, offset + done, count - done);
+            } catch (InterruptedIOException e) {
+                if (!atStart || (done > 0)) {
+                    mBroken = true;
+                }
+                throw e;
+            }
+            if (got < 0) {
+                if (atStart && (done == 0)) {
+                    return false;
+                }
+                mBroken = true;
+                throw new IOException("Unexpected end of stream");
+            }
+            countRead(got);
+            done += got;
+        }
+        return true;
+    }
+
+    private synchronized void countRead(int size) {
+        mReadSizes[(size == 0) ? 0 : (32 - Integer.numberOfLeadingZeros(size))]++;
+    }
+}
@@ -0,0 +1,402 @@
+/**
+ * Copyright (c) 2008-2009, Motorola, Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of the Motorola, Inc. nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gopawpaw.core.bluetooth.extend.javax.obex;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/***
+ * Serves many OBEX server sessions with a small, fixed number of threads
+ * instead of one thread per <code>ServerSession</code>.
+ * <P>
+ * One poller thread watches the idle sessions for readiness through
+ * <code>InputStream.available()</code>, which RFCOMM sockets and
+ * <code>LoopbackObexTransport</code> report. When the start of a request has
+ * arrived, the session is handed to a shared pool of worker threads that
+ * processes the whole request, including every packet of a PUT or GET
+ * operation, with the same <code>ServerRequestHandler</code> callbacks as a
+ * threaded session. An idle session holds no thread.
+ * <P>
+ * Transports whose input stream cannot report available data are added as
+ * blocking sessions; each of them holds one worker thread while it is
+ * connected, so the pool must be sized for them.
+ * <P>
+ * A client that goes away without a DISCONNECT is noticed at once only if
+ * <code>available()</code> then fails, as it does on
+ * <code>LoopbackObexTransport</code>. An RFCOMM socket keeps reporting no
+ * data instead, so a polled session is also closed once it has waited longer
+ * than the idle timeout for its next request, one minute unless
+ * <code>setIdleTimeout()</code> changes it.
+ * @hide
+ */
+public final class ObexServerEngine {
+
+    private static final String TAG = "ObexServerEngine";
+
+    /*** The shortest and longest wait of the poller between two idle passes */
+    private static final long MIN_POLL_MILLIS = 1;
+
+    private static final long MAX_POLL_MILLIS = 20;
+
+    /*** How long a polled session may wait for its next request by default */
+    private static final long DEFAULT_IDLE_TIMEOUT = 60000;
+
+    private final ExecutorService mExecutor;
+
+    private final Thread mPoller;
+
+    /*** The sessions served by this engine */
+    private final ArrayList<Entry> mEntries = new ArrayList<Entry>();
+
+    private boolean mShutdown;
+
+    private long mIdleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+    private ObexWatchdog mWatchdog;
+
+    /***
+     * Creates an engine and starts its poller thread.
+     * @param workerThreads the number of threads that process requests
+     */
+    public ObexServerEngine(int workerThreads) {
+        if (workerThreads < 1) {
+            throw new IllegalArgumentException("At least one worker thread is needed");
+        }
+        mExecutor = Executors.newFixedThreadPool(workerThreads, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ObexServerEngine worker "
+                        + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mPoller = new Thread(new Runnable() {
+            public void run() {
+                poll();
+            }
+        }, "ObexServerEngine poller");
+        mPoller.setDaemon(true);
+        mPoller.start();
+    }
+
+    /***
+     * Creates a session for the connection and serves it with this engine.
+     * @param trans the connection to the client
+     * @param handler the event listener that will process requests
+     * @param auth the authenticator to use with this connection
+     * @return the session
+     * @throws IOException if an error occurred while opening the input and
+     *         output streams, or the engine is shut down
+     */
+    public ServerSession addSession(ObexTransport trans, ServerRequestHandler handler,
+            Authenticator auth) throws IOException {
+        return addSession(trans, handler, auth, ObexHelper.MAX_PACKET_SIZE_INT, true);
+    }
+
+    /***
+     * Creates a session for the connection and serves it with this engine.
+     * @param trans the connection to the client
+     * @param handler the event listener that will process requests
+     * @param auth the authenticator to use with this connection
+     * @param localMaxPacketLength the largest packet the session will accept
+     * @param pollable <code>true</code> if the input stream of the transport
+     *        reports available data; <code>false</code> to serve the session
+     *        with a worker thread that blocks on it
+     * @return the session
+     * @throws IOException if an error occurred while opening the input and
+     *         output streams, or the engine is shut down
+     */
+    public ServerSession addSession(ObexTransport trans, ServerRequestHandler handler,
+            Authenticator auth, int localMaxPacketLength, boolean pollable) throws IOException {
+        ServerSession session = new ServerSession(trans, handler, auth, localMaxPacketLength,
+                false);
+        final Entry entry = new Entry(session);
+        synchronized (this) {
+            if (mShutdown) {
+                session.close();
+                throw new IOException("Engine is shut down");
+            }
+            session.setWatchdog(mWatchdog);
+            // a blocking session stays busy, so the poller leaves it alone
+            entry.mBusy = !pollable;
+            mEntries.add(entry);
+            notifyAll();
+            if (pollable) {
+                return session;
+            }
+        }
+        try {
+            mExecutor.execute(new Runnable() {
+                public void run() {
+                    session(entry);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                mEntries.remove(entry);
+            }
+            session.close();
+            throw new IOException("Engine is shut down");
+        }
+        return session;
+    }
+
+    /***
+     * Sets how long a polled session may wait for its next request before it
+     * is closed.
+     * @param millis the idle timeout in milliseconds; 0 for none. The
+     *        default is one minute.
+     */
+    public synchronized void setIdleTimeout(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Idle timeout must not be negative");
+        }
+        mIdleTimeout = millis;
+    }
+
+    /***
+     * Sets the watchdog of the sessions added from now on, see
+     * <code>ServerSession.setWatchdog()</code>. A client that stalls in the
+     * middle of a request then frees its worker thread when the deadline
+     * passes.
+     * @param watchdog the watchdog to use; <code>null</code> for none, which
+     *        is the default
+     */
+    public synchronized void setWatchdog(ObexWatchdog watchdog) {
+        mWatchdog = watchdog;
+    }
+
+    /***
+     * Returns the number of open sessions served by this engine.
+     */
+    public synchronized int getSessionCount() {
+        return mEntries.size();
+    }
+
+    /***
+     * Closes every session and stops the threads of the engine.
+     */
+    public void shutdown() {
+        ArrayList<Entry> entries;
+        synchronized (this) {
+            mShutdown = true;
+            entries = new ArrayList<Entry>(mEntries);
+            mEntries.clear();
+            notifyAll();
+        }
+        mExecutor.shutdownNow();
+        for (Entry entry : entries) {
+            entry.mSession.close();
+        }
+    }
+
+    /***
+     * The poller: hands every idle session with data waiting to a worker,
+     * and waits a little longer after each pass that found nothing. While no
+     * session is idle it sleeps until <code>addSession()</code> or a worker
+     * finishing a request wakes it.
+     * <P>
+     * The idle sessions are probed outside the lock of the engine, so a
+     * transport that is slow to answer <code>available()</code> does not hold
+     * up the workers finishing requests. Only the poller marks an idle
+     * session busy, and only <code>shutdown()</code> removes one meanwhile.
+     */
+    private void poll() {
+        long wait = MIN_POLL_MILLIS;
+        ArrayList<Entry> idle = new ArrayList<Entry>();
+        ArrayList<Entry> ready = new ArrayList<Entry>();
+        ArrayList<Entry> closed = new ArrayList<Entry>();
+        while (true) {
+            long idleTimeout;
+            synchronized (this) {
+                if (mShutdown) {
+                    return;
+                }
+                for (Entry entry : mEntries) {
+                    if (!entry.mBusy) {
+                        idle.add(entry);
+                    }
+                }
+                idleTimeout = mIdleTimeout;
+            }
+
+            long now = System.currentTimeMillis();
+            for (Entry entry : idle) {
+                boolean readable;
+                try {
+                    readable = entry.mSession.isReadable();
+                } catch (IOException e) {
+                    // closed by the handler or the transport failed
+                    closed.add(entry);
+                    continue;
+                }
+                if (readable) {
+                    ready.add(entry);
+                } else if ((idleTimeout > 0) && (now - entry.mIdleSince > idleTimeout)) {
+                    closed.add(entry);
+                }
+            }
+            idle.clear();
+
+            synchronized (this) {
+                if (mShutdown) {
+                    return;
+                }
+                for (Entry entry : ready) {
+                    entry.mBusy = true;
+                }
+                mEntries.removeAll(closed);
+            }
+
+            for (Entry entry : closed) {
+                entry.mSession.close();
+            }
+            closed.clear();
+
+            for (Entry entry : ready) {
+                final Entry next = entry;
+                try {
+                    mExecutor.execute(new Runnable() {
+                        public void run() {
+                            request(next);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    return;
+                }
+            }
+
+            synchronized (this) {
+                if (ready.isEmpty()) {
+                    wait = Math.min(wait * 2, MAX_POLL_MILLIS);
+                } else {
+                    wait = MIN_POLL_MILLIS;
+                }
+                ready.clear();
+                if (mShutdown) {
+                    return;
+                }
+                try {
+                    if (hasIdleSession()) {
+                        wait(wait);
+                    } else {
+                        wait();
+                        wait = MIN_POLL_MILLIS;
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /***
+     * Returns whether a session is waiting for its next request. Called with
+     * the lock of the engine held.
+     */
+    private boolean hasIdleSession() {
+        for (Entry entry : mEntries) {
+            if (!entry.mBusy) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /***
+     * Processes one request of a polled session on a worker thread.
+     */
+    private void request(Entry entry) {
+        boolean more = false;
+        try {
+            more = entry.mSession.processRequest();
+        } catch (Exception e) {
+            ObexLog.d(TAG, e.toString());
+        }
+        synchronized (this) {
+            if (more && !mShutdown) {
+                entry.mBusy = false;
+                entry.mIdleSince = System.currentTimeMillis();
+                // the next request may already be waiting
+                notifyAll();
+                return;
+            }
+            mEntries.remove(entry);
+        }
+        entry.mSession.close();
+    }
+
+    /***
+     * Processes all requests of a blocking session on a worker thread.
+     */
+    private void session(Entry entry) {
+        try {
+            boolean more = true;
+            while (more && !entry.mSession.isClosed()) {
+                more = entry.mSession.processRequest();
+            }
+        } catch (Exception e) {
+            ObexLog.d(TAG, e.toString());
+        }
+        synchronized (this) {
+            mEntries.remove(entry);
+        }
+        entry.mSession.close();
+    }
+
+    private static final class Entry {
+        final ServerSession mSession;
+
+        /*** Whether a worker is processing a request of the session */
+        boolean mBusy;
+
+        /***
+         * When the last request of the session was processed. The poller
+         * reads it outside the lock, and a long is not written atomically
+         * on every VM.
+         */
+        volatile long mIdleSince;
+
+        Entry(ServerSession session) {
+            mSession = session;
+            mIdleSince = System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,297 @@
+/**
+ * Copyright (c) 2008-2009, Motorola, Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of the Motorola, Inc. nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gopawpaw.core.bluetooth.extend.javax.obex;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+
+/***
+ * Puts a deadline on every blocking read and write of the OBEX sessions it
+ * watches, so a remote device that stops answering can not hold a thread,
+ * and whatever that thread holds, forever.
+ * <P>
+ * A session arms its guard before it blocks on the transport and disarms it
+ * when the call returns. The deadline depends on the request the session is
+ * working on, see <code>setTimeout()</code>. When a deadline passes, the
+ * watchdog closes the transport of the session, which makes the blocked call
+ * fail; the session then reports the timeout as an
+ * <code>InterruptedIOException</code> and its owner cleans up as it does
+ * for any other transport error.
+ * <P>
+ * One thread serves every session. It sleeps until the earliest deadline, or
+ * until a session is armed while no deadline is pending.
+ * @hide
+ */
+public final class ObexWatchdog {
+
+    private static final String TAG = "ObexWatchdog";
+
+    /*** The timeout of every request type that has not been given one */
+    public static final long DEFAULT_TIMEOUT = 30000;
+
+    /*** Request types are kept without their final bit */
+    private static final int OPCODE_MASK = 0x7F;
+
+    private final long[] mTimeouts = new long[OPCODE_MASK + 1];
+
+    private final int[] mFired = new int[OPCODE_MASK + 1];
+
+    private int mFiredTotal;
+
+    private final ArrayList<Guard> mGuards = new ArrayList<Guard>();
+
+    /*** When the watchdog thread wakes up next; Long.MAX_VALUE if it waits for an arm */
+    private long mNextWake = Long.MAX_VALUE;
+
+    private boolean mShutdown;
+
+    /***
+     * Creates a watchdog with <code>DEFAULT_TIMEOUT</code> for every request
+     * type and starts its thread.
+     */
+    public ObexWatchdog() {
+        for (int i = 0; i < mTimeouts.length; i++) {
+            mTimeouts[i] = DEFAULT_TIMEOUT;
+        }
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                watch();
+            }
+        }, "ObexWatchdog");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /***
+     * Sets how long a session may block on one read or write while it works
+     * on a request of the type provided. The final bit of the opcode is
+     * ignored, so PUT and the final PUT share one timeout.
+     * @param opcode the request type, such as
+     *        <code>ObexHelper.OBEX_OPCODE_PUT</code>
+     * @param millis the timeout in milliseconds; 0 for none
+     */
+    public synchronized void setTimeout(int opcode, long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Timeout must not be negative");
+        }
+        mTimeouts[opcode & OPCODE_MASK] = millis;
+    }
+
+    /***
+     * Returns the timeout of the request type provided.
+     * @param opcode the request type
+     * @return the timeout in milliseconds; 0 for none
+     */
+    public synchronized long getTimeout(int opcode) {
+        return mTimeouts[opcode & OPCODE_MASK];
+    }
+
+    /***
+     * Returns how many times a deadline passed while a session was working on
+     * a request of the type provided.
+     * @param opcode the request type
+     * @return the number of transports closed for that request type
+     */
+    public synchronized int getFiredCount(int opcode) {
+        return mFired[opcode & OPCODE_MASK];
+    }
+
+    /***
+     * Returns how many times a deadline passed.
+     * @return the number of transports closed by this watchdog
+     */
+    public synchronized int getFiredCount() {
+        return mFiredTotal;
+    }
+
+    /***
+     * Stops the watchdog thread. Sessions that are still armed are no longer
+     * watched.
+     */
+    public synchronized void shutdown() {
+        mShutdown = true;
+        mGuards.clear();
+        notifyAll();
+    }
+
+    /***
+     * Starts watching a session.
+     * @param transport the transport to close when a deadline passes
+     * @return the guard the session arms and disarms
+     */
+    /**package*/ synchronized Guard register(ObexTransport transport) {
+        Guard guard = new Guard(this, transport);
+        if (!mShutdown) {
+            mGuards.add(guard);
+        }
+        return guard;
+    }
+
+    /**package*/ synchronized void unregister(Guard guard) {
+        guard.mDeadline = 0;
+        mGuards.remove(guard);
+    }
+
+    private synchronized void arm(Guard guard, int opcode) {
+        long timeout = mTimeouts[opcode & OPCODE_MASK];
+        if (timeout == 0) {
+            guard.mDeadline = 0;
+            return;
+        }
+        guard.mOpcode = opcode;
+        guard.mDeadline = System.currentTimeMillis() + timeout;
+        if (guard.mDeadline < mNextWake) {
+            notifyAll();
+        }
+    }
+
+    private synchronized void disarm(Guard guard) {
+        guard.mDeadline = 0;
+    }
+
+    /***
+     * The watchdog thread: closes the transports whose deadline has passed
+     * and sleeps until the next deadline.
+     */
+    private void watch() {
+        ArrayList<Guard> expired = new ArrayList<Guard>();
+        while (true) {
+            synchronized (this) {
+                while (true) {
+                    if (mShutdown) {
+                        return;
+                    }
+                    long now = System.currentTimeMillis();
+                    long next = Long.MAX_VALUE;
+                    for (Guard guard : mGuards) {
+                        if (guard.mDeadline == 0) {
+                            continue;
+                        }
+                        if (guard.mDeadline <= now) {
+                            guard.mDeadline = 0;
+                            guard.mExpired = true;
+                            mFired[guard.mOpcode & OPCODE_MASK]++;
+                            mFiredTotal++;
+                            expired.add(guard);
+                        } else if (guard.mDeadline < next) {
+                            next = guard.mDeadline;
+                        }
+                    }
+                    mNextWake = next;
+                    if (!expired.isEmpty()) {
+                        break;
+                    }
+                    try {
+                        wait((next == Long.MAX_VALUE) ? 0 : next - now);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+
+            for (Guard guard : expired) {
+                ObexLog.w(TAG, "No progress on request 0x" + Integer.toHexString(guard.mOpcode)
+                        + ", closing the transport");
+                try {
+                    guard.mTransport.close();
+                } catch (IOException e) {
+                    ObexLog.d(TAG, e.toString());
+                }
+            }
+            expired.clear();
+        }
+    }
+
+    /***
+     * The deadline of one session. Only the thread processing the session
+     * arms and disarms it.
+     */
+    /**package*/ static final class Guard {
+
+        private final ObexWatchdog mWatchdog;
+
+        private final ObexTransport mTransport;
+
+        /*** When the transport is closed; 0 while disarmed */
+        private long mDeadline;
+
+        private int mOpcode;
+
+        private boolean mExpired;
+
+        private Guard(ObexWatchdog watchdog, ObexTransport transport) {
+            mWatchdog = watchdog;
+            mTransport = transport;
+        }
+
+        /***
+         * Starts the deadline of a blocking call.
+         * @param opcode the request the session is working on
+         * @throws InterruptedIOException if an earlier deadline passed, so
+         *         the transport is closed
+         */
+        void arm(int opcode) throws InterruptedIOException {
+            checkExpired();
+            mWatchdog.arm(this, opcode);
+        }
+
+        /***
+         * Ends the deadline of a blocking call.
+         */
+        void disarm() {
+            mWatchdog.disarm(this);
+        }
+
+        /***
+         * Throws if a deadline passed. Called when a blocking call failed, to
+         * tell a timeout from other transport errors.
+         * @throws InterruptedIOException if a deadline passed
+         */
+        void checkExpired() throws InterruptedIOException {
+            int opcode;
+            synchronized (mWatchdog) {
+                if (!mExpired) {
+                    return;
+                }
+                opcode = mOpcode;
+            }
+            throw new InterruptedIOException("Remote device did not respond to request 0x"
+                    + Integer.toHexString(opcode) + " in time");
+        }
+
+        void unregister() {
+            mWatchdog.unregister(this);
+        }
+    }
+}
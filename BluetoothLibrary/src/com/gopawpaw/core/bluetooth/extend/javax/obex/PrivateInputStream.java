@@ -34,20 +34,42 @@ package com.gopawpaw.core.bluetooth.extend.javax.obex;
 
 import java.io.InputStream;
 import java.io.IOException;
+import java.util.concurrent.locks.ReentrantLock;
 
 /***
  * This object provides an input stream to the Operation objects used in this
  * package.
+ * <P>
+ * Received body data is kept in a ring buffer. Each packet is copied in once
+ * and the buffer is only reallocated when a packet does not fit in the space
+ * the reader has not consumed yet, so a long transfer settles on a single
+ * buffer about the size of one packet.
+ * <P>
+ * The reader sets the pace: the operation receives the next packet only when
+ * a read finds the buffer empty, so a remote device can not get ahead of it.
+ * The buffer never holds more than <code>MAX_BUFFERED_PACKETS</code> packets
+ * of the largest size; a body that would overflow it fails the operation.
+ * Once the stream is closed, body data is dropped instead of buffered.
  * @hide
  */
 public final class PrivateInputStream extends InputStream {
 
+    /*** Held while the reader waits for the operation to receive a packet */
+    private final ReentrantLock mLock = new ReentrantLock();
+
+    /*** How many packets of the largest size the buffer may hold */
+    /**package*/ static final int MAX_BUFFERED_PACKETS = 4;
+
+    private static final int MAX_CAPACITY = MAX_BUFFERED_PACKETS * ObexHelper.MAX_PACKET_SIZE_INT;
+
     private BaseStream mParent;
 
     private byte[] mData;
 
     private int mIndex;
 
+    private int mCount;
+
     private boolean mOpen;
 
     /***
@@ -58,6 +80,7 @@ public final class PrivateInputStream extends InputStream {
         mParent = p;
         mData = new byte[0];
         mIndex = 0;
+        mCount = 0;
         mOpen = true;
     }
 
@@ -71,9 +94,14 @@ public final class PrivateInputStream extends InputStream {
      * @throws IOException if an I/O error occurs
      */
     @Override
-    public synchronized int available() throws IOException {
-        ensureOpen();
-        return mData.length - mIndex;
+    public int available() throws IOException {
+        mLock.lock();
+        try {
+            ensureOpen();
+            return mCount;
+        } finally {
+            mLock.unlock();
+        }
     }
 
     /***
@@ -87,14 +115,21 @@ public final class PrivateInputStream extends InputStream {
      * @throws IOException if an I/O error occurs
      */
     @Override
-    public synchronized int read() throws IOException {
-        ensureOpen();
-        while (mData.length == mIndex) {
-            if (!mParent.continueOperation(true, true)) {
-                return -1;
+    public int read() throws IOException {
+        mLock.lock();
+        try {
+            ensureOpen();
+            while (mCount == 0) {
+                if (!mParent.continueOperation(true, true)) {
+                    return -1;
+                }
             }
+            int result = mData[mIndex] & 0xFF;
+            consume(1);
+            return result;
+        } finally {
+            mLock.unlock();
         }
-        return (mData[mIndex++] & 0xFF);
     }
 
     @Override
@@ -103,39 +138,45 @@ public final class PrivateInputStream extends InputStream {
     }
 
     @Override
-    public synchronized int read(byte[] b, int offset, int length) throws IOException {
+    public int read(byte[] b, int offset, int length) throws IOException {
+        mLock.lock();
+        try {
+            if (b == null) {
+                throw new IOException("buffer is null");
+            }
+            if ((offset | length) < 0 || length > b.length - offset) {
+                throw new ArrayIndexOutOfBoundsException("index outof bound");
+            }
+            ensureOpen();
 
-        if (b == null) {
-            throw new IOException("buffer is null");
-        }
-        if ((offset | length) < 0 || length > b.length - offset) {
-            throw new ArrayIndexOutOfBoundsException("index outof bound");
-        }
-        ensureOpen();
-
-        int currentDataLength = mData.length - mIndex;
-        int remainReadLength = length;
-        int offset1 = offset;
-        int result = 0;
-
-        while (currentDataLength <= remainReadLength) {
-            System.arraycopy(mData, mIndex, b, offset1, currentDataLength);
-            mIndex += currentDataLength;
-            offset1 += currentDataLength;
-            result += currentDataLength;
-            remainReadLength -= currentDataLength;
-
-            if (!mParent.continueOperation(true, true)) {
-                return result == 0 ? -1 : result;
+            int remainReadLength = length;
+            int offset1 = offset;
+            int result = 0;
+
+            while (remainReadLength > 0) {
+                if (mCount == 0) {
+                    if (!mParent.continueOperation(true, true)) {
+                        return result == 0 ? -1 : result;
+                    }
+                    continue;
+                }
+
+                // at most two copies: up to the end of the array, then the wrap
+                int copyLength = Math.min(remainReadLength, mCount);
+                int firstLength = Math.min(copyLength, mData.length - mIndex);
+                System.arraycopy(mData, mIndex, b, offset1, firstLength);
+                if (firstLength < copyLength) {
+                    System.arraycopy(mData, 0, b, offset1 + firstLength, copyLength - firstLength);
+                }
+                consume(copyLength);
+                offset1 += copyLength;
+                result += copyLength;
+                remainReadLength -= copyLength;
             }
-            currentDataLength = mData.length - mIndex;
-        }
-        if (remainReadLength > 0) {
-            System.arraycopy(mData, mIndex, b, offset1, remainReadLength);
-            mIndex += remainReadLength;
-            result += remainReadLength;
+            return result;
+        } finally {
+            mLock.unlock();
         }
-        return result;
     }
 
     /***
@@ -143,18 +184,78 @@ public final class PrivateInputStream extends InputStream {
      * input stream.
      * @param body the data to add to the stream
      * @param start the start of the body to array to copy
+     * @throws IOException if the data does not fit in the buffer
      */
-    public synchronized void writeBytes(byte[] body, int start) {
+    public void writeBytes(byte[] body, int start) throws IOException {
+        writeBytes(body, start, body.length - start);
+    }
 
-        int length = (body.length - start) + (mData.length - mIndex);
-        byte[] temp = new byte[length];
+    /***
+     * Allows the <code>OperationImpl</code> thread to add body data to the
+     * input stream.
+     * @param body the array holding the data to add to the stream
+     * @param offset the index of the first byte to add
+     * @param length the number of bytes to add
+     * @throws IOException if the data does not fit in the buffer
+     */
+    public void writeBytes(byte[] body, int offset, int length) throws IOException {
+        mLock.lock();
+        try {
+            if (!mOpen) {
+                // nobody reads it any more
+                return;
+            }
+            if (length > mData.length - mCount) {
+                if (length > MAX_CAPACITY - mCount) {
+                    throw new IOException("Body exceeds the input buffer");
+                }
+                grow(mCount + length);
+            }
 
-        System.arraycopy(mData, mIndex, temp, 0, mData.length - mIndex);
-        System.arraycopy(body, start, temp, mData.length - mIndex, body.length - start);
+            int writeIndex = mIndex + mCount;
+            if (writeIndex >= mData.length) {
+                writeIndex -= mData.length;
+            }
+            int firstLength = Math.min(length, mData.length - writeIndex);
+            System.arraycopy(body, offset, mData, writeIndex, firstLength);
+            if (firstLength < length) {
+                System.arraycopy(body, offset + firstLength, mData, 0, length - firstLength);
+            }
+            mCount += length;
+        } finally {
+            mLock.unlock();
+        }
+    }
 
+    /***
+     * Drops <code>length</code> bytes from the head of the ring buffer.
+     * @param length the number of bytes the reader has consumed
+     */
+    private void consume(int length) {
+        mCount -= length;
+        if (mCount == 0) {
+            // keep the next packet contiguous
+            mIndex = 0;
+        } else {
+            mIndex += length;
+            if (mIndex >= mData.length) {
+                mIndex -= mData.length;
+            }
+        }
+    }
+
+    /***
+     * Replaces the ring buffer with a larger one holding the unread data at
+     * its start.
+     * @param minCapacity the number of bytes the new buffer must hold
+     */
+    private void grow(int minCapacity) {
+        byte[] temp = new byte[Math.min(Math.max(minCapacity, mData.length * 2), MAX_CAPACITY)];
+        int firstLength = Math.min(mCount, mData.length - mIndex);
+        System.arraycopy(mData, mIndex, temp, 0, firstLength);
+        System.arraycopy(mData, 0, temp, firstLength, mCount - firstLength);
         mData = temp;
         mIndex = 0;
-        notifyAll();
     }
 
     /***
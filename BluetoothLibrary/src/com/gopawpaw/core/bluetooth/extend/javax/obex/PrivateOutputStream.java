@@ -34,18 +34,43 @@ package com.gopawpaw.core.bluetooth.extend.javax.obex;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.LinkedList;
+import java.util.concurrent.locks.ReentrantLock;
 
 /***
  * This object provides an output stream to the Operation objects used in this
  * package.
+ * <P>
+ * Written data is queued in fixed size chunks. A packet takes its body from
+ * the head of the queue, so the data still waiting for the next packet is
+ * never copied again, and drained chunks are reused for later writes.
  * @hide
  */
 public final class PrivateOutputStream extends OutputStream {
 
+    /*** Held while a full packet of written data is sent */
+    private final ReentrantLock mLock = new ReentrantLock();
+
+    /*** The smallest chunk allocated, used when the packet size is tiny */
+    private static final int MIN_CHUNK_SIZE = 256;
+
     private BaseStream mParent;
 
-    private ByteArrayOutputStream mArray;
+    private LinkedList<byte[]> mChunks;
+
+    /*** Read position in the first chunk of the queue */
+    private int mHeadIndex;
+
+    /*** Write position in the last chunk of the queue */
+    private int mTailIndex;
+
+    private int mSize;
+
+    private byte[] mSpareChunk;
+
+    private int mChunkSize;
 
     private boolean mOpen;
 
@@ -57,8 +82,9 @@ public final class PrivateOutputStream extends OutputStream {
      */
     public PrivateOutputStream(BaseStream p, int maxSize) {
         mParent = p;
-        mArray = new ByteArrayOutputStream();
+        mChunks = new LinkedList<byte[]>();
         mMaxPacketSize = maxSize;
+        mChunkSize = Math.max(maxSize, MIN_CHUNK_SIZE);
         mOpen = true;
     }
 
@@ -67,7 +93,7 @@ public final class PrivateOutputStream extends OutputStream {
      * @return the number of bytes written to the output stream
      */
     public int size() {
-        return mArray.size();
+        return mSize;
     }
 
     /***
@@ -79,12 +105,19 @@ public final class PrivateOutputStream extends OutputStream {
      * @throws IOException if an I/O error occurs
      */
     @Override
-    public synchronized void write(int b) throws IOException {
-        ensureOpen();
-        mParent.ensureNotDone();
-        mArray.write(b);
-        if (mArray.size() == mMaxPacketSize) {
-            mParent.continueOperation(true, false);
+    public void write(int b) throws IOException {
+        mLock.lock();
+        try {
+            ensureOpen();
+            mParent.ensureNotDone();
+            byte[] tail = tailChunk();
+            tail[mTailIndex++] = (byte)b;
+            mSize++;
+            if (mSize >= mMaxPacketSize) {
+                mParent.continueOperation(true, false);
+            }
+        } finally {
+            mLock.unlock();
         }
     }
 
@@ -94,31 +127,91 @@ public final class PrivateOutputStream extends OutputStream {
     }
 
     @Override
-    public synchronized void write(byte[] buffer, int offset, int count) throws IOException {
-        int offset1 = offset;
-        int remainLength = count;
+    public void write(byte[] buffer, int offset, int count) throws IOException {
+        mLock.lock();
+        try {
+            int offset1 = offset;
+            int remainLength = count;
 
-        if (buffer == null) {
-            throw new IOException("buffer is null");
-        }
-        if ((offset | count) < 0 || count > buffer.length - offset) {
-            throw new IndexOutOfBoundsException("index outof bound");
+            if (buffer == null) {
+                throw new IOException("buffer is null");
+            }
+            if ((offset | count) < 0 || count > buffer.length - offset) {
+                throw new IndexOutOfBoundsException("index outof bound");
+            }
+
+            ensureOpen();
+            mParent.ensureNotDone();
+            boolean sending = true;
+            while (remainLength > 0) {
+                // fill up the packet, then send it
+                int length = sending ? Math.min(remainLength, mMaxPacketSize - mSize)
+                        : remainLength;
+                if (length > 0) {
+                    append(buffer, offset1, length);
+                    offset1 += length;
+                    remainLength -= length;
+                }
+                if (mSize >= mMaxPacketSize) {
+                    // the rest is queued if the operation sends nothing more
+                    sending = mParent.continueOperation(true, false);
+                }
+            }
+        } finally {
+            mLock.unlock();
         }
+    }
 
-        ensureOpen();
-        mParent.ensureNotDone();
-        if (count < mMaxPacketSize) {
-            mArray.write(buffer, offset, count);
-        } else {
-            while (remainLength >= mMaxPacketSize) {
-                mArray.write(buffer, offset1, mMaxPacketSize);
-                offset1 += mMaxPacketSize;
-                remainLength = count - offset1;
-                mParent.continueOperation(true, false);
+    /***
+     * Reads up to <code>count</code> bytes from the channel straight into the
+     * chunk queue, without an intermediate buffer. Like <code>write()</code>,
+     * a packet is sent each time a full packet of data is queued.
+     * @param src the channel to read from, typically a file channel
+     * @param count the maximum number of bytes to transfer
+     * @return the number of bytes transferred; less than <code>count</code>
+     *         only if the end of the channel was reached or the operation
+     *         sends no more packets
+     * @throws IOException if reading the channel or sending a packet fails
+     */
+    public long transferFrom(ReadableByteChannel src, long count) throws IOException {
+        mLock.lock();
+        try {
+            if (src == null) {
+                throw new IOException("channel is null");
             }
-            if (remainLength > 0) {
-                mArray.write(buffer, offset1, remainLength);
+            if (count < 0) {
+                throw new IllegalArgumentException("count must not be negative");
             }
+
+            ensureOpen();
+            mParent.ensureNotDone();
+            long transferred = 0;
+            while (transferred < count) {
+                if (mSize >= mMaxPacketSize) {
+                    // write() left a full packet queued; send it first
+                    if (!mParent.continueOperation(true, false)) {
+                        break;
+                    }
+                    continue;
+                }
+                byte[] tail = tailChunk();
+                int length = (int)Math.min(count - transferred, tail.length - mTailIndex);
+                // stop at the packet boundary so the packet can go out
+                length = Math.min(length, mMaxPacketSize - mSize);
+                int read = src.read(ByteBuffer.wrap(tail, mTailIndex, length));
+                if (read <= 0) {
+                    break;
+                }
+                mTailIndex += read;
+                mSize += read;
+                transferred += read;
+                if (mSize >= mMaxPacketSize) {
+                    mParent.continueOperation(true, false);
+                }
+            }
+            return transferred;
+        } finally {
+            mLock.unlock();
         }
     }
 
@@ -127,18 +220,99 @@ public final class PrivateOutputStream extends OutputStream {
      * @param size the size of the array to return
      * @return the byte array that is written
      */
-    public synchronized byte[] readBytes(int size) {
-        if (mArray.size() > 0) {
-            byte[] temp = mArray.toByteArray();
-            mArray.reset();
-            byte[] result = new byte[size];
-            System.arraycopy(temp, 0, result, 0, size);
-            if (temp.length != size) {
-                mArray.write(temp, size, temp.length - size);
+    public byte[] readBytes(int size) {
+        mLock.lock();
+        try {
+            if (mSize > 0) {
+                byte[] result = new byte[size];
+                readBytes(result, 0, size);
+                return result;
+            } else {
+                return null;
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /***
+     * Moves the next <code>size</code> bytes that have been written to this
+     * stream into the array provided, typically the packet buffer of the
+     * session, so no intermediate array is needed.
+     * @param dest the array to copy the bytes into
+     * @param offset the index in <code>dest</code> to start at
+     * @param size the number of bytes to move
+     * @return the number of bytes moved
+     */
+    public int readBytes(byte[] dest, int offset, int size) {
+        mLock.lock();
+        try {
+            int remain = Math.min(size, mSize);
+            int moved = 0;
+            while (remain > 0) {
+                byte[] head = mChunks.getFirst();
+                int end = (mChunks.size() == 1) ? mTailIndex : head.length;
+                int length = Math.min(remain, end - mHeadIndex);
+                System.arraycopy(head, mHeadIndex, dest, offset + moved, length);
+                mHeadIndex += length;
+                moved += length;
+                remain -= length;
+                if (mHeadIndex == end) {
+                    recycle(mChunks.removeFirst());
+                    mHeadIndex = 0;
+                    if (mChunks.isEmpty()) {
+                        mTailIndex = 0;
+                    }
+                }
+            }
+            mSize -= moved;
+            return moved;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /***
+     * Copies data to the tail of the chunk queue.
+     */
+    private void append(byte[] buffer, int offset, int count) {
+        int remain = count;
+        int offset1 = offset;
+        while (remain > 0) {
+            byte[] tail = tailChunk();
+            int length = Math.min(remain, tail.length - mTailIndex);
+            System.arraycopy(buffer, offset1, tail, mTailIndex, length);
+            mTailIndex += length;
+            offset1 += length;
+            remain -= length;
+        }
+        mSize += count;
+    }
+
+    /***
+     * Returns the chunk to write to, adding a chunk to the queue if the last
+     * one is full.
+     */
+    private byte[] tailChunk() {
+        if (mChunks.isEmpty() || (mTailIndex == mChunks.getLast().length)) {
+            byte[] chunk = mSpareChunk;
+            if (chunk != null) {
+                mSpareChunk = null;
+            } else {
+                chunk = new byte[mChunkSize];
             }
-            return result;
-        } else {
-            return null;
+            mChunks.addLast(chunk);
+            mTailIndex = 0;
+        }
+        return mChunks.getLast();
+    }
+
+    /***
+     * Keeps one drained chunk around for the next write.
+     */
+    private void recycle(byte[] chunk) {
+        if (mSpareChunk == null) {
+            mSpareChunk = chunk;
         }
     }
 
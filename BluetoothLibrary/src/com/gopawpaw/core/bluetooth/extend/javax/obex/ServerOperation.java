@@ -38,6 +38,7 @@ import java.io.DataInputStream;
 import java.io.OutputStream;
 import java.io.DataOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.util.concurrent.locks.ReentrantLock;
 
 /***
  * This class implements the Operation interface for server side connections.
@@ -62,7 +63,7 @@ public final class ServerOperation implements Operation, BaseStream {
 
     public boolean finalBitSet;
 
-    private InputStream mInput;
+    private ObexPacketReader mReader;
 
     private ServerSession mParent;
 
@@ -88,22 +89,40 @@ public final class ServerOperation implements Operation, BaseStream {
 
     private boolean mHasBody;
 
+    /*** Whether Single Response Mode was agreed for this operation */
+    private boolean mSrmEnabled;
+
+    /*** Whether the reply confirming Single Response Mode has been sent */
+    private boolean mSrmActive;
+
+    /*** Whether the client asked to send another request before the next reply */
+    private boolean mSrmWaitingForRemote;
+
+    private boolean mDiscardBody;
+
+    /***
+     * Guards the state of the operation while a packet is exchanged. A lock
+     * rather than <code>synchronized</code>, so a thread that blocks on the
+     * transport while holding it does not pin the thread it is scheduled on.
+     */
+    private final ReentrantLock mLock = new ReentrantLock();
+
     /***
      * Creates new ServerOperation
      * @param p the parent that created this object
-     * @param in the input stream to read from
-     * @param out the output stream to write to
+     * @param reader the reader holding the initial request, which the next
+     *        requests are read with
      * @param request the initial request that was received from the client
      * @param maxSize the max packet size that the client will accept
      * @param listen the listener that is responding to the request
      * @throws IOException if an IO error occurs
      */
-    public ServerOperation(ServerSession p, InputStream in, int request, int maxSize,
-            ServerRequestHandler listen) throws IOException {
+    /**package*/ ServerOperation(ServerSession p, ObexPacketReader reader, int request,
+            int maxSize, ServerRequestHandler listen) throws IOException {
 
         isAborted = false;
         mParent = p;
-        mInput = in;
+        mReader = reader;
         mMaxPacketLength = maxSize;
         mClosed = false;
         requestHeader = new HeaderSet();
@@ -114,7 +133,6 @@ public final class ServerOperation implements Operation, BaseStream {
         mRequestFinished = false;
         mPrivateOutputOpen = false;
         mHasBody = false;
-        int bytesReceived;
 
         /**
          * Determine if this is a PUT request
@@ -150,8 +168,7 @@ public final class ServerOperation implements Operation, BaseStream {
             throw new IOException("ServerOperation can not handle such request");
         }
 
-        int length = in.read();
-        length = (length << 8) + in.read();
+        int length = reader.getLength();
 
         /**
          * Determine if the packet length is larger than this device can receive
@@ -165,18 +182,13 @@ public final class ServerOperation implements Operation, BaseStream {
          * Determine if any headers were sent in the initial request
          */
         if (length > 3) {
-            byte[] data = new byte[length - 3];
-            bytesReceived = in.read(data);
-
-            while (bytesReceived != data.length) {
-                bytesReceived += in.read(data, bytesReceived, data.length - bytesReceived);
-            }
-
-            byte[] body = ObexHelper.updateHeaderSet(requestHeader, data);
+            int bodyId = ObexHelper.updateHeaderSet(requestHeader, reader.getBuffer(), 3,
+                    length - 3, mPrivateInput);
 
-            if (body != null) {
+            if (bodyId != -1) {
                 mHasBody = true;
             }
+            checkForSrm();
 
             if (mListener.getConnectionId() != -1 && requestHeader.mConnectionID != null) {
                 mListener.setConnectionId(ObexHelper.convertToLong(requestHeader.mConnectionID));
@@ -205,9 +217,11 @@ public final class ServerOperation implements Operation, BaseStream {
 
             }
 
-            if (body != null) {
-                mPrivateInput.writeBytes(body, 1);
-            } else {
+            if (!mGetOperation) {
+                mListener.onPutHeaders(requestHeader, replyHeader);
+            }
+
+            if (bodyId == -1) {
                 while ((!mGetOperation) && (!finalBitSet)) {
                     sendReply(ResponseCodes.OBEX_HTTP_CONTINUE);
                     if (mPrivateInput.available() > 0) {
@@ -246,27 +260,32 @@ public final class ServerOperation implements Operation, BaseStream {
      * @return <code>true</code> if the operation was completed;
      *         <code>false</code> if no operation took place
      */
-    public synchronized boolean continueOperation(boolean sendEmpty, boolean inStream)
+    public boolean continueOperation(boolean sendEmpty, boolean inStream)
             throws IOException {
-        if (!mGetOperation) {
-            if (!finalBitSet) {
-                if (sendEmpty) {
-                    sendReply(ResponseCodes.OBEX_HTTP_CONTINUE);
-                    return true;
-                } else {
-                    if ((mResponseSize > 3) || (mPrivateOutput.size() > 0)) {
+        mLock.lock();
+        try {
+            if (!mGetOperation) {
+                if (!finalBitSet) {
+                    if (sendEmpty) {
                         sendReply(ResponseCodes.OBEX_HTTP_CONTINUE);
                         return true;
                     } else {
-                        return false;
+                        if ((mResponseSize > 3) || (mPrivateOutput.size() > 0)) {
+                            sendReply(ResponseCodes.OBEX_HTTP_CONTINUE);
+                            return true;
+                        } else {
+                            return false;
+                        }
                     }
+                } else {
+                    return false;
                 }
             } else {
-                return false;
+                sendReply(ResponseCodes.OBEX_HTTP_CONTINUE);
+                return true;
             }
-        } else {
-            sendReply(ResponseCodes.OBEX_HTTP_CONTINUE);
-            return true;
+        } finally {
+            mLock.unlock();
         }
     }
 
@@ -280,213 +299,258 @@ public final class ServerOperation implements Operation, BaseStream {
      *         reply
      * @throws IOException if an IO error occurs
      */
-    public synchronized boolean sendReply(int type) throws IOException {
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        int bytesReceived;
+    public boolean sendReply(int type) throws IOException {
+        mLock.lock();
+        try {
+            if (mSrmActive && (!mGetOperation) && (type == ResponseCodes.OBEX_HTTP_CONTINUE)) {
+                // the client does not wait for a reply to a PUT packet in SRM
+                return receiveRequest();
+            }
 
-        long id = mListener.getConnectionId();
-        if (id == -1) {
-            replyHeader.mConnectionID = null;
-        } else {
-            replyHeader.mConnectionID = ObexHelper.convertToByteArray(id);
-        }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
 
-        byte[] headerArray = ObexHelper.createHeader(replyHeader, true);
-        int bodyLength = -1;
-        int orginalBodyLength = -1;
+            long id = mListener.getConnectionId();
+            if (id == -1) {
+                replyHeader.mConnectionID = null;
+            } else {
+                replyHeader.mConnectionID = ObexHelper.convertToByteArray(id);
+            }
 
-        if (mPrivateOutput != null) {
-            bodyLength = mPrivateOutput.size();
-            orginalBodyLength = bodyLength;
-        }
+            byte[] headerArray = ObexHelper.createHeader(replyHeader, true);
+            int bodyLength = -1;
+            int orginalBodyLength = -1;
 
-        if ((ObexHelper.BASE_PACKET_LENGTH + headerArray.length) > mMaxPacketLength) {
+            if (mPrivateOutput != null) {
+                bodyLength = mPrivateOutput.size();
+                orginalBodyLength = bodyLength;
+            }
 
-            int end = 0;
-            int start = 0;
+            if ((ObexHelper.BASE_PACKET_LENGTH + headerArray.length) > mMaxPacketLength) {
 
-            while (end != headerArray.length) {
-                end = ObexHelper.findHeaderEnd(headerArray, start, mMaxPacketLength
-                        - ObexHelper.BASE_PACKET_LENGTH);
-                if (end == -1) {
+                int end = 0;
+                int start = 0;
 
-                    mClosed = true;
+                while (end != headerArray.length) {
+                    end = ObexHelper.findHeaderEnd(headerArray, start, mMaxPacketLength
+                            - ObexHelper.BASE_PACKET_LENGTH);
+                    if (end == -1) {
 
-                    if (mPrivateInput != null) {
-                        mPrivateInput.close();
-                    }
+                        mClosed = true;
+
+                        if (mPrivateInput != null) {
+                            mPrivateInput.close();
+                        }
 
-                    if (mPrivateOutput != null) {
-                        mPrivateOutput.close();
+                        if (mPrivateOutput != null) {
+                            mPrivateOutput.close();
+                        }
+                        mParent.sendResponse(ResponseCodes.OBEX_HTTP_INTERNAL_ERROR, null);
+                        throw new IOException("OBEX Packet exceeds max packet size");
                     }
-                    mParent.sendResponse(ResponseCodes.OBEX_HTTP_INTERNAL_ERROR, null);
-                    throw new IOException("OBEX Packet exceeds max packet size");
+                    byte[] sendHeader = new byte[end - start];
+                    System.arraycopy(headerArray, start, sendHeader, 0, sendHeader.length);
+
+                    mParent.sendResponse(type, sendHeader);
+                    start = end;
                 }
-                byte[] sendHeader = new byte[end - start];
-                System.arraycopy(headerArray, start, sendHeader, 0, sendHeader.length);
 
-                mParent.sendResponse(type, sendHeader);
-                start = end;
-            }
+                if (bodyLength > 0) {
+                    return true;
+                } else {
+                    return false;
+                }
 
-            if (bodyLength > 0) {
-                return true;
             } else {
-                return false;
+                out.write(headerArray);
             }
 
-        } else {
-            out.write(headerArray);
-        }
+            // For Get operation: if response code is OBEX_HTTP_OK, then this is the
+            // last packet; so set finalBitSet to true.
+            if (mGetOperation && type == ResponseCodes.OBEX_HTTP_OK) {
+                finalBitSet = true;
+            }
 
-        // For Get operation: if response code is OBEX_HTTP_OK, then this is the
-        // last packet; so set finalBitSet to true.
-        if (mGetOperation && type == ResponseCodes.OBEX_HTTP_OK) {
-            finalBitSet = true;
-        }
+            if ((finalBitSet) || (headerArray.length < (mMaxPacketLength - 20))) {
+                if (bodyLength > 0) {
+                    /**
+                     * Determine if I can send the whole body or just part of
+                     * the body.  Remember that there is the 3 bytes for the
+                     * response message and 3 bytes for the header ID and length
+                     */
+                    if (bodyLength > (mMaxPacketLength - headerArray.length - 6)) {
+                        bodyLength = mMaxPacketLength - headerArray.length - 6;
+                    }
 
-        if ((finalBitSet) || (headerArray.length < (mMaxPacketLength - 20))) {
-            if (bodyLength > 0) {
-                /**
-                 * Determine if I can send the whole body or just part of
-                 * the body.  Remember that there is the 3 bytes for the
-                 * response message and 3 bytes for the header ID and length
-                 */
-                if (bodyLength > (mMaxPacketLength - headerArray.length - 6)) {
-                    bodyLength = mMaxPacketLength - headerArray.length - 6;
-                }
+                    byte[] body = mPrivateOutput.readBytes(bodyLength);
 
-                byte[] body = mPrivateOutput.readBytes(bodyLength);
+                    /**
+                     * Since this is a put request if the final bit is set or
+                     * the output stream is closed we need to send the 0x49
+                     * (End of Body) otherwise, we need to send 0x48 (Body)
+                     */
+                    if ((finalBitSet) || (mPrivateOutput.isClosed())) {
+                        out.write(0x49);
+                    } else {
+                        out.write(0x48);
+                    }
 
-                /**
-                 * Since this is a put request if the final bit is set or
-                 * the output stream is closed we need to send the 0x49
-                 * (End of Body) otherwise, we need to send 0x48 (Body)
-                 */
-                if ((finalBitSet) || (mPrivateOutput.isClosed())) {
-                    out.write(0x49);
-                } else {
-                    out.write(0x48);
+                    bodyLength += 3;
+                    out.write((byte)(bodyLength >> 8));
+                    out.write((byte)bodyLength);
+                    out.write(body);
                 }
-
-                bodyLength += 3;
-                out.write((byte)(bodyLength >> 8));
-                out.write((byte)bodyLength);
-                out.write(body);
             }
-        }
 
-        if ((finalBitSet) && (type == ResponseCodes.OBEX_HTTP_OK) && (orginalBodyLength <= 0)) {
-            out.write(0x49);
-            orginalBodyLength = 3;
-            out.write((byte)(orginalBodyLength >> 8));
-            out.write((byte)orginalBodyLength);
+            if ((finalBitSet) && (type == ResponseCodes.OBEX_HTTP_OK) && (orginalBodyLength <= 0)) {
+                out.write(0x49);
+                orginalBodyLength = 3;
+                out.write((byte)(orginalBodyLength >> 8));
+                out.write((byte)orginalBodyLength);
 
-        }
+            }
 
-        mResponseSize = 3;
-        mParent.sendResponse(type, out.toByteArray());
-
-        if (type == ResponseCodes.OBEX_HTTP_CONTINUE) {
-            int headerID = mInput.read();
-            int length = mInput.read();
-            length = (length << 8) + mInput.read();
-            if ((headerID != ObexHelper.OBEX_OPCODE_PUT)
-                    && (headerID != ObexHelper.OBEX_OPCODE_PUT_FINAL)
-                    && (headerID != ObexHelper.OBEX_OPCODE_GET)
-                    && (headerID != ObexHelper.OBEX_OPCODE_GET_FINAL)) {
-
-                if (length > 3) {
-                    byte[] temp = new byte[length];
-                    bytesReceived = mInput.read(temp);
-
-                    while (bytesReceived != length) {
-                        bytesReceived += mInput.read(temp, bytesReceived, length - bytesReceived);
-                    }
-                }
+            mResponseSize = 3;
+            mParent.sendResponse(type, out.toByteArray());
+            if (mSrmEnabled) {
+                mSrmActive = true;
+            }
 
-                /**
-                 * Determine if an ABORT was sent as the reply
-                 */
-                if (headerID == ObexHelper.OBEX_OPCODE_ABORT) {
-                    mParent.sendResponse(ResponseCodes.OBEX_HTTP_OK, null);
-                    mClosed = true;
-                    isAborted = true;
-                    mExceptionString = "Abort Received";
-                    throw new IOException("Abort Received");
-                } else {
-                    mParent.sendResponse(ResponseCodes.OBEX_HTTP_BAD_REQUEST, null);
-                    mClosed = true;
-                    mExceptionString = "Bad Request Received";
-                    throw new IOException("Bad Request Received");
+            if (type == ResponseCodes.OBEX_HTTP_CONTINUE) {
+                if (mSrmActive && mGetOperation && mRequestFinished && !mSrmWaitingForRemote) {
+                    // the response is streamed; the client sends no more requests
+                    return true;
                 }
+                return receiveRequest();
             } else {
+                return false;
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
 
-                if ((headerID == ObexHelper.OBEX_OPCODE_PUT_FINAL)) {
-                    finalBitSet = true;
-                } else if (headerID == ObexHelper.OBEX_OPCODE_GET_FINAL) {
-                    mRequestFinished = true;
-                }
+    /***
+     * Reads the next request packet of this operation from the client.
+     * @return <code>true</code> if the request was read; <code>false</code> if
+     *         the authentication response of the client failed to pass
+     * @throws IOException if an IO error occurs, or an ABORT or an invalid
+     *         request was received
+     */
+    private boolean receiveRequest() throws IOException {
+        int headerID = mParent.readOperationPacket();
+        int length = mReader.getLength();
+        if ((headerID != ObexHelper.OBEX_OPCODE_PUT)
+                && (headerID != ObexHelper.OBEX_OPCODE_PUT_FINAL)
+                && (headerID != ObexHelper.OBEX_OPCODE_GET)
+                && (headerID != ObexHelper.OBEX_OPCODE_GET_FINAL)) {
 
-                /**
-                 * Determine if the packet length is larger then this device can receive
-                 */
-                if (length > ObexHelper.MAX_PACKET_SIZE_INT) {
-                    mParent.sendResponse(ResponseCodes.OBEX_HTTP_REQ_TOO_LARGE, null);
-                    throw new IOException("Packet received was too large");
-                }
+            /**
+             * Determine if an ABORT was sent as the reply
+             */
+            if (headerID == ObexHelper.OBEX_OPCODE_ABORT) {
+                mParent.sendResponse(ResponseCodes.OBEX_HTTP_OK, null);
+                mClosed = true;
+                isAborted = true;
+                mExceptionString = "Abort Received";
+                throw new IOException("Abort Received");
+            } else {
+                mParent.sendResponse(ResponseCodes.OBEX_HTTP_BAD_REQUEST, null);
+                mClosed = true;
+                mExceptionString = "Bad Request Received";
+                throw new IOException("Bad Request Received");
+            }
+        } else {
 
-                /**
-                 * Determine if any headers were sent in the initial request
-                 */
-                if (length > 3) {
-                    byte[] data = new byte[length - 3];
-                    bytesReceived = mInput.read(data);
+            if ((headerID == ObexHelper.OBEX_OPCODE_PUT_FINAL)) {
+                finalBitSet = true;
+            } else if (headerID == ObexHelper.OBEX_OPCODE_GET_FINAL) {
+                mRequestFinished = true;
+            }
 
-                    while (bytesReceived != data.length) {
-                        bytesReceived += mInput.read(data, bytesReceived, data.length
-                                - bytesReceived);
-                    }
-                    byte[] body = ObexHelper.updateHeaderSet(requestHeader, data);
-                    if (body != null) {
-                        mHasBody = true;
-                    }
-                    if (mListener.getConnectionId() != -1 && requestHeader.mConnectionID != null) {
-                        mListener.setConnectionId(ObexHelper
-                                .convertToLong(requestHeader.mConnectionID));
-                    } else {
-                        mListener.setConnectionId(1);
-                    }
+            /**
+             * Determine if the packet length is larger then this device can receive
+             */
+            if (length > ObexHelper.MAX_PACKET_SIZE_INT) {
+                mParent.sendResponse(ResponseCodes.OBEX_HTTP_REQ_TOO_LARGE, null);
+                throw new IOException("Packet received was too large");
+            }
 
-                    if (requestHeader.mAuthResp != null) {
-                        if (!mParent.handleAuthResp(requestHeader.mAuthResp)) {
-                            mExceptionString = "Authentication Failed";
-                            mParent.sendResponse(ResponseCodes.OBEX_HTTP_UNAUTHORIZED, null);
-                            mClosed = true;
-                            requestHeader.mAuthResp = null;
-                            return false;
-                        }
-                        requestHeader.mAuthResp = null;
-                    }
+            /**
+             * Determine if any headers were sent in the initial request
+             */
+            if (length > 3) {
+                int bodyId = ObexHelper.updateHeaderSet(requestHeader, mReader.getBuffer(), 3,
+                        length - 3, mDiscardBody ? null : mPrivateInput);
+                if (bodyId != -1) {
+                    mHasBody = true;
+                }
+                checkForSrm();
+                if (mListener.getConnectionId() != -1 && requestHeader.mConnectionID != null) {
+                    mListener.setConnectionId(ObexHelper
+                            .convertToLong(requestHeader.mConnectionID));
+                } else {
+                    mListener.setConnectionId(1);
+                }
 
-                    if (requestHeader.mAuthChall != null) {
-                        mParent.handleAuthChall(requestHeader);
-                        // send the auhtResp to the client
-                        replyHeader.mAuthResp = new byte[requestHeader.mAuthResp.length];
-                        System.arraycopy(requestHeader.mAuthResp, 0, replyHeader.mAuthResp, 0,
-                                replyHeader.mAuthResp.length);
+                if (requestHeader.mAuthResp != null) {
+                    if (!mParent.handleAuthResp(requestHeader.mAuthResp)) {
+                        mExceptionString = "Authentication Failed";
+                        mParent.sendResponse(ResponseCodes.OBEX_HTTP_UNAUTHORIZED, null);
+                        mClosed = true;
                         requestHeader.mAuthResp = null;
-                        requestHeader.mAuthChall = null;
+                        return false;
                     }
+                    requestHeader.mAuthResp = null;
+                }
 
-                    if (body != null) {
-                        mPrivateInput.writeBytes(body, 1);
-                    }
+                if (requestHeader.mAuthChall != null) {
+                    mParent.handleAuthChall(requestHeader);
+                    // send the auhtResp to the client
+                    replyHeader.mAuthResp = new byte[requestHeader.mAuthResp.length];
+                    System.arraycopy(requestHeader.mAuthResp, 0, replyHeader.mAuthResp, 0,
+                            replyHeader.mAuthResp.length);
+                    requestHeader.mAuthResp = null;
+                    requestHeader.mAuthChall = null;
                 }
             }
-            return true;
-        } else {
-            return false;
+        }
+        return true;
+    }
+
+    /***
+     * Updates the Single Response Mode state from the last request. SRM is
+     * agreed when the client asks for it and the session accepts it; the SRM
+     * header is then echoed in the next reply.
+     * @throws IOException if an IO error occurs
+     */
+    private void checkForSrm() throws IOException {
+        Byte srm = (Byte)requestHeader.getHeader(HeaderSet.SINGLE_RESPONSE_MODE);
+        if ((!mSrmEnabled) && mParent.isSingleResponseModeEnabled() && (srm != null)
+                && (srm.byteValue() == ObexHelper.OBEX_SRM_ENABLE)) {
+            mSrmEnabled = true;
+            replyHeader.setHeader(HeaderSet.SINGLE_RESPONSE_MODE, Byte
+                    .valueOf(ObexHelper.OBEX_SRM_ENABLE));
+        }
+
+        Byte srmp = (Byte)requestHeader.getHeader(HeaderSet.SINGLE_RESPONSE_MODE_PARAMETER);
+        // the parameter only applies to the packet that carried it
+        requestHeader.setHeader(HeaderSet.SINGLE_RESPONSE_MODE_PARAMETER, null);
+        mSrmWaitingForRemote = mSrmEnabled && (srmp != null)
+                && (srmp.byteValue() == ObexHelper.OBEX_SRMP_WAIT);
+    }
+
+    /***
+     * Reads and drops the rest of a PUT request. In Single Response Mode the
+     * client only reads a reply after its final packet, so a reply that ends
+     * the operation early has to wait until the whole request is received.
+     * @throws IOException if an IO error occurs
+     */
+    /**package*/void skipRemainingRequest() throws IOException {
+        mDiscardBody = true;
+        while (mSrmActive && (!mGetOperation) && (!finalBitSet)) {
+            if (!receiveRequest()) {
+                break;
+            }
         }
     }
 
@@ -529,13 +593,7 @@ public final class ServerOperation implements Operation, BaseStream {
             throw new IOException("Headers may not be null");
         }
 
-        int[] headerList = headers.getHeaderList();
-        if (headerList != null) {
-            for (int i = 0; i < headerList.length; i++) {
-                replyHeader.setHeader(headerList[i], headers.getHeader(headerList[i]));
-            }
-
-        }
+        replyHeader.copyHeadersFrom(headers);
     }
 
     /***
@@ -203,6 +203,24 @@ public class ServerRequestHandler {
         return ResponseCodes.OBEX_HTTP_NOT_IMPLEMENTED;
     }
 
+    /***
+     * Called when the headers of the first packet of a PUT request have been
+     * received, before the server replies to it and before
+     * <code>onPut()</code> is called.
+     * <P>
+     * If this method is not implemented by the class that extends this class,
+     * this method will do nothing.
+     * <P>
+     * The headers added to <code>reply</code> are sent in the reply to the
+     * first packet, so the client can act on them before it sends the body.
+     * @param request contains the headers sent by the client;
+     *        <code>request</code> will never be <code>null</code>
+     * @param reply the headers that should be sent in the first reply;
+     *        <code>reply</code> will never be <code>null</code>
+     */
+    public void onPutHeaders(HeaderSet request, HeaderSet reply) {
+    }
+
     /***
      * Called when a PUT request is received.
      * <P>
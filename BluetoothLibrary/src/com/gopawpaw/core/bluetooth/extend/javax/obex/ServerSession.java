@@ -32,8 +32,6 @@
 
 package com.gopawpaw.core.bluetooth.extend.javax.obex;
 
-import android.util.Log;
-
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -58,7 +56,19 @@ public final class ServerSession extends ObexSession implements Runnable {
 
     private int mMaxPacketLength;
 
-    private boolean mClosed;
+    private final int mLocalMaxPacketLength;
+
+    private volatile boolean mClosed;
+
+    private volatile boolean mSrmSupported;
+
+    private ObexPacketReader mReader;
+
+    /*** The request being processed, which decides the deadline of its I/O */
+    private int mRequestType;
+
+    /*** The deadline of the blocking reads and writes; null if they may block forever */
+    private ObexWatchdog.Guard mGuard;
 
     /***
      * Creates new ServerSession.
@@ -70,16 +80,90 @@ public final class ServerSession extends ObexSession implements Runnable {
      */
     public ServerSession(ObexTransport trans, ServerRequestHandler handler, Authenticator auth)
             throws IOException {
+        this(trans, handler, auth, ObexHelper.MAX_PACKET_SIZE_INT);
+    }
+
+    /***
+     * Creates new ServerSession that advertises the max packet size provided
+     * in its CONNECT response.
+     * @param trans the connection to the client
+     * @param handler the event listener that will process requests
+     * @param auth the authenticator to use with this connection
+     * @param localMaxPacketLength the largest packet this server will accept;
+     *        between <code>ObexHelper.MIN_PACKET_SIZE_INT</code> and
+     *        <code>ObexHelper.MAX_PACKET_SIZE_INT</code>
+     * @throws IOException if an error occurred while opening the input and
+     *         output streams
+     */
+    public ServerSession(ObexTransport trans, ServerRequestHandler handler, Authenticator auth,
+            int localMaxPacketLength) throws IOException {
+        this(trans, handler, auth, localMaxPacketLength, true);
+    }
+
+    /***
+     * Creates new ServerSession, optionally without a thread of its own. A
+     * session without a thread processes requests only when
+     * <code>processRequest()</code> is called, see
+     * <code>ObexServerEngine</code>.
+     * @param trans the connection to the client
+     * @param handler the event listener that will process requests
+     * @param auth the authenticator to use with this connection
+     * @param localMaxPacketLength the largest packet this server will accept
+     * @param startThread <code>true</code> to start a thread that processes
+     *        the requests of this session
+     * @throws IOException if an error occurred while opening the input and
+     *         output streams
+     */
+    /**package*/ ServerSession(ObexTransport trans, ServerRequestHandler handler,
+            Authenticator auth, int localMaxPacketLength, boolean startThread)
+            throws IOException {
+        mLocalMaxPacketLength = ObexHelper.validateMaxPacketSize(localMaxPacketLength);
         mAuthenticator = auth;
         mTransport = trans;
         mInput = mTransport.openInputStream();
         mOutput = mTransport.openOutputStream();
+        mReader = new ObexPacketReader(mInput, mLocalMaxPacketLength);
         mListener = handler;
-        mMaxPacketLength = 256;
+        mMaxPacketLength = ObexHelper.MIN_PACKET_SIZE_INT;
 
         mClosed = false;
-        mProcessThread = new Thread(this);
-        mProcessThread.start();
+        if (startThread) {
+            mProcessThread = new Thread(this);
+            mProcessThread.start();
+        }
+    }
+
+    /***
+     * Enables or disables Single Response Mode. When enabled, the server
+     * agrees to SRM whenever a client asks for it in a PUT or GET request.
+     * @param enabled <code>true</code> to accept SRM
+     */
+    public void setSingleResponseModeEnabled(boolean enabled) {
+        mSrmSupported = enabled;
+    }
+
+    /***
+     * Returns whether the server agrees to Single Response Mode.
+     * @return <code>true</code> if SRM is accepted
+     */
+    public boolean isSingleResponseModeEnabled() {
+        return mSrmSupported;
+    }
+
+    /***
+     * Puts a deadline on every read of the packets of an operation and every
+     * write of a reply, see <code>ObexWatchdog</code>. The wait for the first
+     * packet of a request is not watched, since a client may stay idle
+     * between requests. When a deadline passes, the transport is closed and
+     * the session ends.
+     * @param watchdog the watchdog to use; <code>null</code> to block without
+     *        a deadline
+     */
+    public void setWatchdog(ObexWatchdog watchdog) {
+        if (mGuard != null) {
+            mGuard.unregister();
+        }
+        mGuard = (watchdog == null) ? null : watchdog.register(mTransport);
     }
 
     /***
@@ -88,65 +172,94 @@ public final class ServerSession extends ObexSession implements Runnable {
      */
     public void run() {
         try {
-
-            boolean done = false;
-            while (!done && !mClosed) {
-                int requestType = mInput.read();
-                switch (requestType) {
-                    case ObexHelper.OBEX_OPCODE_CONNECT:
-                        handleConnectRequest();
-                        break;
-
-                    case ObexHelper.OBEX_OPCODE_DISCONNECT:
-                        handleDisconnectRequest();
-                        done = true;
-                        break;
-
-                    case ObexHelper.OBEX_OPCODE_GET:
-                    case ObexHelper.OBEX_OPCODE_GET_FINAL:
-                        handleGetRequest(requestType);
-                        break;
-
-                    case ObexHelper.OBEX_OPCODE_PUT:
-                    case ObexHelper.OBEX_OPCODE_PUT_FINAL:
-                        handlePutRequest(requestType);
-                        break;
-
-                    case ObexHelper.OBEX_OPCODE_SETPATH:
-                        handleSetPathRequest();
-                        break;
-                    case ObexHelper.OBEX_OPCODE_ABORT:
-                        handleAbortRequest();
-                        break;
-
-                    case -1:
-                        done = true;
-                        break;
-
-                    default:
-
-                        /**
-                         * Received a request type that is not recognized so I am
-                         * just going to read the packet and send a not implemented
-                         * to the client
-                         */
-                        int length = mInput.read();
-                        length = (length << 8) + mInput.read();
-                        for (int i = 3; i < length; i++) {
-                            mInput.read();
-                        }
-                        sendResponse(ResponseCodes.OBEX_HTTP_NOT_IMPLEMENTED, null);
-                }
+            boolean more = true;
+            while (more && !mClosed) {
+                more = processRequest();
             }
-
         } catch (NullPointerException e) {
-            Log.d(TAG, e.toString());
+            ObexLog.d(TAG, e.toString());
         } catch (Exception e) {
-            Log.d(TAG, e.toString());
+            ObexLog.d(TAG, e.toString());
         }
         close();
     }
 
+    /***
+     * Reads one request and processes it, including every packet of a PUT or
+     * GET operation, and sends the final reply. Blocks until the first packet
+     * of the request has arrived.
+     * @return <code>false</code> if the session is over because the client
+     *         disconnected or closed the connection
+     * @throws IOException if an error occurred at the transport layer
+     */
+    /**package*/ boolean processRequest() throws IOException {
+        boolean done = false;
+        int requestType = mReader.readPacket();
+        mRequestType = requestType;
+        switch (requestType) {
+            case ObexHelper.OBEX_OPCODE_CONNECT:
+                handleConnectRequest();
+                break;
+
+            case ObexHelper.OBEX_OPCODE_DISCONNECT:
+                handleDisconnectRequest();
+                done = true;
+                break;
+
+            case ObexHelper.OBEX_OPCODE_GET:
+            case ObexHelper.OBEX_OPCODE_GET_FINAL:
+                handleGetRequest(requestType);
+                break;
+
+            case ObexHelper.OBEX_OPCODE_PUT:
+            case ObexHelper.OBEX_OPCODE_PUT_FINAL:
+                handlePutRequest(requestType);
+                break;
+
+            case ObexHelper.OBEX_OPCODE_SETPATH:
+                handleSetPathRequest();
+                break;
+            case ObexHelper.OBEX_OPCODE_ABORT:
+                handleAbortRequest();
+                break;
+
+            case -1:
+                done = true;
+                break;
+
+            default:
+
+                /**
+                 * Received a request type that is not recognized; the packet
+                 * has been read, so just send a not implemented to the client
+                 */
+                sendResponse(ResponseCodes.OBEX_HTTP_NOT_IMPLEMENTED, null);
+        }
+        return !done;
+    }
+
+    /***
+     * Returns whether the start of a request can be read without blocking,
+     * as far as the transport reports it through <code>available()</code>.
+     * @return <code>true</code> if data is waiting
+     * @throws IOException if the session is closed or the transport failed
+     */
+    /**package*/ boolean isReadable() throws IOException {
+        InputStream input = mInput;
+        if (mClosed || (input == null)) {
+            throw new IOException("Session closed");
+        }
+        return input.available() > 0;
+    }
+
+    /***
+     * Returns whether the session has been closed.
+     * @return <code>true</code> once <code>close()</code> has been called
+     */
+    public boolean isClosed() {
+        return mClosed;
+    }
+
     /***
      * Handles a ABORT request from a client. This method will read the rest of
      * the request from the client. Assuming the request is valid, it will
@@ -161,16 +274,11 @@ public final class ServerSession extends ObexSession implements Runnable {
         HeaderSet request = new HeaderSet();
         HeaderSet reply = new HeaderSet();
 
-        int length = mInput.read();
-        length = (length << 8) + mInput.read();
-        if (length > ObexHelper.MAX_PACKET_SIZE_INT) {
+        if (mReader.getLength() > ObexHelper.MAX_PACKET_SIZE_INT) {
             code = ResponseCodes.OBEX_HTTP_REQ_TOO_LARGE;
         } else {
-            for (int i = 3; i < length; i++) {
-                mInput.read();
-            }
             code = mListener.onAbort(request, reply);
-            Log.v(TAG, "onAbort request handler return value- " + code);
+            ObexLog.v(TAG, "onAbort request handler return value- " + code);
             code = validateResponseCode(code);
         }
         sendResponse(code, null);
@@ -190,7 +298,7 @@ public final class ServerSession extends ObexSession implements Runnable {
      * @throws IOException if an error occurred at the transport layer
      */
     private void handlePutRequest(int type) throws IOException {
-        ServerOperation op = new ServerOperation(this, mInput, type, mMaxPacketLength, mListener);
+        ServerOperation op = new ServerOperation(this, mReader, type, mMaxPacketLength, mListener);
         try {
             int response = -1;
 
@@ -201,8 +309,11 @@ public final class ServerSession extends ObexSession implements Runnable {
                 response = validateResponseCode(mListener.onPut(op));
             }
             if (response != ResponseCodes.OBEX_HTTP_OK && !op.isAborted) {
+                op.skipRemainingRequest();
                 op.sendReply(response);
             } else if (!op.isAborted) {
+                // nobody can read the body once onPut() has returned
+                op.skipRemainingRequest();
                 // wait for the final bit
                 while (!op.finalBitSet) {
                     op.sendReply(ResponseCodes.OBEX_HTTP_CONTINUE);
@@ -216,6 +327,7 @@ public final class ServerSession extends ObexSession implements Runnable {
              *OK response in "sendReply")
              */
             if (!op.isAborted) {
+                op.skipRemainingRequest();
                 sendResponse(ResponseCodes.OBEX_HTTP_INTERNAL_ERROR, null);
             }
         }
@@ -235,7 +347,7 @@ public final class ServerSession extends ObexSession implements Runnable {
      * @throws IOException if an error occurred at the transport layer
      */
     private void handleGetRequest(int type) throws IOException {
-        ServerOperation op = new ServerOperation(this, mInput, type, mMaxPacketLength, mListener);
+        ServerOperation op = new ServerOperation(this, mReader, type, mMaxPacketLength, mListener);
         try {
             int response = validateResponseCode(mListener.onGet(op));
 
@@ -270,8 +382,55 @@ public final class ServerSession extends ObexSession implements Runnable {
             data[1] = (byte)0x00;
             data[2] = (byte)totalLength;
         }
-        mOutput.write(data);
-        mOutput.flush();
+        write(data);
+    }
+
+    /***
+     * Writes a reply packet, within the deadline of the request it answers if
+     * there is a watchdog.
+     * @param data the whole packet
+     * @throws IOException if an IO error occurs or the deadline passed
+     */
+    private void write(byte[] data) throws IOException {
+        ObexWatchdog.Guard guard = mGuard;
+        if (guard == null) {
+            mOutput.write(data);
+            mOutput.flush();
+            return;
+        }
+        guard.arm(mRequestType);
+        try {
+            mOutput.write(data);
+            mOutput.flush();
+        } catch (IOException e) {
+            guard.checkExpired();
+            throw e;
+        } finally {
+            guard.disarm();
+        }
+    }
+
+    /***
+     * Reads the next packet of the PUT or GET operation being processed,
+     * within the deadline of the operation if there is a watchdog.
+     * @return the opcode of the packet, which is left in the packet reader
+     * @throws IOException if an IO error occurs, the client closed the
+     *         connection or the deadline passed
+     */
+    /**package*/ int readOperationPacket() throws IOException {
+        ObexWatchdog.Guard guard = mGuard;
+        if (guard == null) {
+            return mReader.readRequiredPacket();
+        }
+        guard.arm(mRequestType);
+        try {
+            return mReader.readRequiredPacket();
+        } catch (IOException e) {
+            guard.checkExpired();
+            throw e;
+        } finally {
+            guard.disarm();
+        }
     }
 
     /***
@@ -291,29 +450,24 @@ public final class ServerSession extends ObexSession implements Runnable {
         int totalLength = 3;
         byte[] head = null;
         int code = -1;
-        int bytesReceived;
         HeaderSet request = new HeaderSet();
         HeaderSet reply = new HeaderSet();
 
-        length = mInput.read();
-        length = (length << 8) + mInput.read();
-        flags = mInput.read();
-        constants = mInput.read();
+        byte[] packet = mReader.getBuffer();
+        length = mReader.getLength();
+        if (length < 5) {
+            sendResponse(ResponseCodes.OBEX_HTTP_BAD_REQUEST, null);
+            return;
+        }
+        flags = packet[3] & 0xFF;
+        constants = packet[4] & 0xFF;
 
         if (length > ObexHelper.MAX_PACKET_SIZE_INT) {
             code = ResponseCodes.OBEX_HTTP_REQ_TOO_LARGE;
             totalLength = 3;
         } else {
             if (length > 5) {
-                byte[] headers = new byte[length - 5];
-                bytesReceived = mInput.read(headers);
-
-                while (bytesReceived != headers.length) {
-                    bytesReceived += mInput.read(headers, bytesReceived, headers.length
-                            - bytesReceived);
-                }
-
-                ObexHelper.updateHeaderSet(request, headers);
+                ObexHelper.updateHeaderSet(request, packet, 5, length - 5, null);
 
                 if (mListener.getConnectionId() != -1 && request.mConnectionID != null) {
                     mListener.setConnectionId(ObexHelper.convertToLong(request.mConnectionID));
@@ -397,8 +551,7 @@ public final class ServerSession extends ObexSession implements Runnable {
          * Write the OBEX SETPATH packet to the server. Byte 0: response code
          * Byte 1&2: Connect Packet Length Byte 3 to n: headers
          */
-        mOutput.write(replyData);
-        mOutput.flush();
+        write(replyData);
     }
 
     /***
@@ -414,27 +567,17 @@ public final class ServerSession extends ObexSession implements Runnable {
         int code = ResponseCodes.OBEX_HTTP_OK;
         int totalLength = 3;
         byte[] head = null;
-        int bytesReceived;
         HeaderSet request = new HeaderSet();
         HeaderSet reply = new HeaderSet();
 
-        length = mInput.read();
-        length = (length << 8) + mInput.read();
+        length = mReader.getLength();
 
         if (length > ObexHelper.MAX_PACKET_SIZE_INT) {
             code = ResponseCodes.OBEX_HTTP_REQ_TOO_LARGE;
             totalLength = 3;
         } else {
             if (length > 3) {
-                byte[] headers = new byte[length - 3];
-                bytesReceived = mInput.read(headers);
-
-                while (bytesReceived != headers.length) {
-                    bytesReceived += mInput.read(headers, bytesReceived, headers.length
-                            - bytesReceived);
-                }
-
-                ObexHelper.updateHeaderSet(request, headers);
+                ObexHelper.updateHeaderSet(request, mReader.getBuffer(), 3, length - 3, null);
             }
 
             if (mListener.getConnectionId() != -1 && request.mConnectionID != null) {
@@ -501,8 +644,7 @@ public final class ServerSession extends ObexSession implements Runnable {
          * Write the OBEX DISCONNECT packet to the server. Byte 0: response code
          * Byte 1&2: Connect Packet Length Byte 3 to n: headers
          */
-        mOutput.write(replyData);
-        mOutput.flush();
+        write(replyData);
     }
 
     /***
@@ -525,22 +667,24 @@ public final class ServerSession extends ObexSession implements Runnable {
         int code = -1;
         HeaderSet request = new HeaderSet();
         HeaderSet reply = new HeaderSet();
-        int bytesReceived;
 
         /**
-         * Read in the length of the OBEX packet, OBEX version, flags, and max
-         * packet length
+         * Take the length of the OBEX packet, OBEX version, flags, and max
+         * packet length from the packet read
          */
-        packetLength = mInput.read();
-        packetLength = (packetLength << 8) + mInput.read();
-        version = mInput.read();
-        flags = mInput.read();
-        mMaxPacketLength = mInput.read();
-        mMaxPacketLength = (mMaxPacketLength << 8) + mInput.read();
-
-        // should we check it?
-        if (mMaxPacketLength > ObexHelper.MAX_PACKET_SIZE_INT) {
-            mMaxPacketLength = ObexHelper.MAX_PACKET_SIZE_INT;
+        byte[] packet = mReader.getBuffer();
+        packetLength = mReader.getLength();
+        if (packetLength < 7) {
+            sendResponse(ResponseCodes.OBEX_HTTP_BAD_REQUEST, null);
+            return;
+        }
+        version = packet[3] & 0xFF;
+        flags = packet[4] & 0xFF;
+        mMaxPacketLength = ((packet[5] & 0xFF) << 8) | (packet[6] & 0xFF);
+
+        // never send more than we accept ourselves
+        if (mMaxPacketLength > mLocalMaxPacketLength) {
+            mMaxPacketLength = mLocalMaxPacketLength;
         }
 
         if (packetLength > ObexHelper.MAX_PACKET_SIZE_INT) {
@@ -548,15 +692,7 @@ public final class ServerSession extends ObexSession implements Runnable {
             totalLength = 7;
         } else {
             if (packetLength > 7) {
-                byte[] headers = new byte[packetLength - 7];
-                bytesReceived = mInput.read(headers);
-
-                while (bytesReceived != headers.length) {
-                    bytesReceived += mInput.read(headers, bytesReceived, headers.length
-                            - bytesReceived);
-                }
-
-                ObexHelper.updateHeaderSet(request, headers);
+                ObexHelper.updateHeaderSet(request, packet, 7, packetLength - 7, null);
             }
 
             if (mListener.getConnectionId() != -1 && request.mConnectionID != null) {
@@ -626,7 +762,7 @@ public final class ServerSession extends ObexSession implements Runnable {
          * Write the OBEX CONNECT packet to the server. Byte 0: response code
          * Byte 1&2: Connect Packet Length Byte 3: OBEX Version Number
          * (Presently, 0x10) Byte 4: Flags (For TCP 0x00) Byte 5&6: Max OBEX
-         * Packet Length (Defined in MAX_PACKET_SIZE) Byte 7 to n: headers
+         * Packet Length (the local max packet length) Byte 7 to n: headers
          */
         byte[] sendData = new byte[totalLength];
         sendData[0] = (byte)code;
@@ -634,15 +770,33 @@ public final class ServerSession extends ObexSession implements Runnable {
         sendData[2] = length[3];
         sendData[3] = (byte)0x10;
         sendData[4] = (byte)0x00;
-        sendData[5] = (byte)(ObexHelper.MAX_PACKET_SIZE_INT >> 8);
-        sendData[6] = (byte)(ObexHelper.MAX_PACKET_SIZE_INT & 0xFF);
+        sendData[5] = (byte)(mLocalMaxPacketLength >> 8);
+        sendData[6] = (byte)(mLocalMaxPacketLength & 0xFF);
 
         if (head != null) {
             System.arraycopy(head, 0, sendData, 7, head.length);
         }
 
-        mOutput.write(sendData);
-        mOutput.flush();
+        write(sendData);
+    }
+
+    /***
+     * Returns the max packet length negotiated with the client in CONNECT.
+     * @return the largest packet that may be sent to the client
+     */
+    public int getMaxPacketLength() {
+        return mMaxPacketLength;
+    }
+
+    /***
+     * Returns how many reads of the transport returned each size, see
+     * <code>ObexPacketReader.getReadSizeHistogram()</code>. Bucket 0 counts
+     * the reads that returned nothing, and bucket <code>n</code> the reads
+     * that returned from <code>2^(n-1)</code> to <code>2^n - 1</code> bytes.
+     * @return a copy of the read size histogram of this session
+     */
+    public int[] getReadSizeHistogram() {
+        return mReader.getReadSizeHistogram();
     }
 
     /***
@@ -654,6 +808,9 @@ public final class ServerSession extends ObexSession implements Runnable {
         if (mListener != null) {
             mListener.onClose();
         }
+        if (mGuard != null) {
+            mGuard.unregister();
+        }
         try {
             mInput.close();
             mOutput.close();
@@ -35,13 +35,19 @@ package com.gopawpaw.core.bluetooth.opp;
 import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.ArrayList;
+import java.nio.channels.FileChannel;
+import java.util.Comparator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
 
 import com.gopawpaw.core.bluetooth.extend.javax.obex.ClientOperation;
 import com.gopawpaw.core.bluetooth.extend.javax.obex.ClientSession;
 import com.gopawpaw.core.bluetooth.extend.javax.obex.HeaderSet;
+import com.gopawpaw.core.bluetooth.extend.javax.obex.ObexHelper;
 import com.gopawpaw.core.bluetooth.extend.javax.obex.ObexTransport;
+import com.gopawpaw.core.bluetooth.extend.javax.obex.ObexWatchdog;
+import com.gopawpaw.core.bluetooth.extend.javax.obex.Operation;
+import com.gopawpaw.core.bluetooth.extend.javax.obex.PrivateOutputStream;
 import com.gopawpaw.core.bluetooth.extend.javax.obex.ResponseCodes;
 
 import android.content.Context;
@@ -73,12 +79,101 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
 
     private Handler mCallback;
 
+    private int mLocalMaxPacketSize;
+
+    private int mPutPipelineWindow = 1;
+
+    private boolean mFileChannelSource;
+
+    private Comparator<BluetoothOppShareInfo> mShareOrder = BluetoothOppShareOrder.FIFO;
+
+    private BluetoothOppResumeStore mResumeStore;
+
+    private BluetoothOppShareJournal mShareJournal;
+
+    private ObexWatchdog mWatchdog;
+
     public BluetoothOppObexClientSession(Context context, ObexTransport transport) {
+        this(context, transport, ObexHelper.MAX_PACKET_SIZE_INT);
+    }
+
+    /**
+     * @param localMaxPacketSize the max OBEX packet size advertised to the
+     *        remote device in CONNECT
+     */
+    public BluetoothOppObexClientSession(Context context, ObexTransport transport,
+            int localMaxPacketSize) {
         if (transport == null) {
             throw new NullPointerException("transport is null");
         }
         mContext = context;
         mTransport = transport;
+        mLocalMaxPacketSize = ObexHelper.validateMaxPacketSize(localMaxPacketSize);
+    }
+
+    /**
+     * Sets how many PUT packets may be in flight before the response to the
+     * oldest is read, see {@link ClientSession#setPutPipelineWindow(int)}.
+     * Must be called before {@link #start(Handler, int)}.
+     */
+    public void setPutPipelineWindow(int packets) {
+        if (packets < 1) {
+            throw new IllegalArgumentException("Pipeline window must be at least 1");
+        }
+        mPutPipelineWindow = packets;
+    }
+
+    /**
+     * Sets whether files are read through their {@link java.nio.channels.FileChannel}
+     * straight into the OBEX output queue instead of through a buffered
+     * stream and a packet sized copy buffer. Must be called before
+     * {@link #start(Handler, int)}.
+     */
+    public void setFileChannelSourceEnabled(boolean enabled) {
+        mFileChannelSource = enabled;
+    }
+
+    /**
+     * Sets the order in which added shares are sent, see
+     * {@link BluetoothOppShareOrder}. Must be called before
+     * {@link #start(Handler, int)}.
+     */
+    public void setShareOrder(Comparator<BluetoothOppShareInfo> order) {
+        if (order == null) {
+            throw new NullPointerException("order is null");
+        }
+        mShareOrder = order;
+    }
+
+    /**
+     * Sets where the progress of shares is recorded. A share with a recorded
+     * offset offers it to the remote device and continues from the offset
+     * the remote device confirms; <code>null</code> sends every share from
+     * the start. Must be called before {@link #start(Handler, int)}.
+     */
+    public void setResumeStore(BluetoothOppResumeStore store) {
+        mResumeStore = store;
+    }
+
+    /**
+     * Sets the journal that records the added shares and their status, so
+     * the shares not sent yet can be queued again after a crash or
+     * {@link #stop()}, see {@link BluetoothOppShareJournal#open()}. The
+     * journal must be open. Must be called before {@link #start(Handler, int)}.
+     */
+    public void setShareJournal(BluetoothOppShareJournal journal) {
+        mShareJournal = journal;
+    }
+
+    /**
+     * Sets the watchdog that puts a deadline on every packet written to and
+     * read from the remote device, see {@link ClientSession#setWatchdog(ObexWatchdog)}.
+     * A session that stalls fails as if the connection had dropped;
+     * <code>null</code> waits without a deadline. Must be called before
+     * {@link #start(Handler, int)}.
+     */
+    public void setWatchdog(ObexWatchdog watchdog) {
+        mWatchdog = watchdog;
     }
 
     public void start(Handler handler, int numShares) {
@@ -106,6 +201,30 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
 		mThread.addShare(share);
     }
 
+    /**
+     * Checks that the remote device still answers on this session: sends a GET
+     * without headers and waits for the response. Any response, a refusal
+     * included, shows the link is alive. The session must be idle, with no
+     * share to send, and the caller blocks until the response arrives or the
+     * deadline <code>watchdog</code> gives a GET passes.
+     * @param watchdog the watchdog that puts the deadline on the request
+     * @return false if the request failed or timed out, in which case the
+     *         transport may be closed
+     */
+    public boolean probe(ObexWatchdog watchdog) {
+        ClientThread thread = mThread;
+        return (thread != null) && thread.probe(watchdog);
+    }
+
+    /**
+     * Returns whether every share added has been sent or has failed, so the
+     * session is waiting for the next one.
+     */
+    public boolean isIdle() {
+        ClientThread thread = mThread;
+        return (thread == null) || thread.isIdle();
+    }
+
     private static int readFully(InputStream is, byte[] buffer, int size) throws IOException {
         int done = 0;
         while (done < size) {
@@ -116,9 +235,17 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
         return done;
     }
 
-    private class ClientThread extends Thread {
+    private static void skipFully(InputStream is, long count) throws IOException {
+        while (count > 0) {
+            long skipped = is.skip(count);
+            if (skipped <= 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            count -= skipped;
+        }
+    }
 
-        private static final int sSleepTime = 1500;
+    private class ClientThread extends Thread {
 
         private Context mContext1;
 
@@ -134,7 +261,13 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
         
         private int mNumShares;
 
-        private ArrayList<BluetoothOppShareInfo> mShares;
+        /** Shares waiting to be sent, in mShareOrder; added from other threads */
+        private final BlockingQueue<BluetoothOppShareOrder.Entry> mShares;
+
+        private long mShareSequence;
+
+        /** Shares added and not finished yet, queued or being sent; guarded by mShares */
+        private int mUnfinished;
         
         public ClientThread(Context context, ObexTransport transport, int initialNumShares) {
             super("BtOpp ClientThread");
@@ -142,23 +275,79 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
             mTransport1 = transport;
             mWaitingForRemote = false;
             mNumShares = initialNumShares;
-            mShares = new ArrayList<BluetoothOppShareInfo>();
+            mShares = new PriorityBlockingQueue<BluetoothOppShareOrder.Entry>();
             PowerManager pm = (PowerManager)mContext1.getSystemService(Context.POWER_SERVICE);
             wakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
         }
         
         public void addShare(BluetoothOppShareInfo info) {
         	if (V) Log.v(TAG, "ClientThread.addShare info:"+info.getFilePath());
-            mShares.add(info);
+            synchronized (mShares) {
+                mUnfinished++;
+                mShares.offer(new BluetoothOppShareOrder.Entry(info, mShareSequence++,
+                        mShareOrder));
+            }
+            if (mShareJournal != null) {
+                try {
+                    mShareJournal.add(info);
+                } catch (IOException e) {
+                    Log.e(TAG, "Error journaling share: " + e);
+                }
+            }
         }
-        
-        private BluetoothOppShareInfo nextShareInfo(){
-        	for(BluetoothOppShareInfo shareInfo :mShares){
-        		if(shareInfo != null && shareInfo.getStatus() == BluetoothOppShareInfo.STATUS_PENDING){
-        			return shareInfo;
-        		}
-        	}
-        	return null;
+
+        /**
+         * Waits for the next pending share. Shares that are no longer
+         * pending when they reach the head of the queue are dropped.
+         */
+        private BluetoothOppShareInfo nextShareInfo() throws InterruptedException {
+            while (true) {
+                if (mShares.isEmpty()) {
+                    syncJournal();
+                }
+                BluetoothOppShareInfo shareInfo = mShares.take().mShare;
+                if (shareInfo.getStatus() == BluetoothOppShareInfo.STATUS_PENDING) {
+                    return shareInfo;
+                }
+                finishShare();
+            }
+        }
+
+        /**
+         * Counts the current share as finished. Called before the callback
+         * hears about it, so a listener that pools the transfer sees the
+         * session idle.
+         */
+        private void finishShare() {
+            synchronized (mShares) {
+                mUnfinished--;
+            }
+        }
+
+        public boolean isIdle() {
+            synchronized (mShares) {
+                return mUnfinished == 0;
+            }
+        }
+
+        private void journalStatus(BluetoothOppShareInfo share, int status) {
+            if (mShareJournal != null) {
+                try {
+                    mShareJournal.update(share, status);
+                } catch (IOException e) {
+                    Log.e(TAG, "Error journaling share status: " + e);
+                }
+            }
+        }
+
+        private void syncJournal() {
+            if (mShareJournal != null) {
+                try {
+                    mShareJournal.sync();
+                } catch (IOException e) {
+                    Log.e(TAG, "Error syncing share journal: " + e);
+                }
+            }
         }
 
         @Override
@@ -187,13 +376,22 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                 msg.sendToTarget();
             }
             while (!mInterrupted) {
-            	mCurrentShareInfo = nextShareInfo();
+                try {
+                    mCurrentShareInfo = nextShareInfo();
+                } catch (InterruptedException e) {
+                    if (V) Log.v(TAG, "Client thread was interrupted waiting for next share");
+                    continue;
+                }
             	if (V) Log.v(TAG, "mCurrentShareInfo:"+mCurrentShareInfo+" mFileInfo:"+mCurrentShareInfo);
                 if (null != mCurrentShareInfo) {
+                    journalStatus(mCurrentShareInfo, BluetoothOppShareInfo.STATUS_RUNNING);
                 	BluetoothOppSendFileInfo sendInfo = processShareInfo(mCurrentShareInfo);
                 	
                 	if(sendInfo == null || sendInfo.mStatus == BluetoothOppShareInfo.STATUS_FILE_ERROR){
                 		//文件读取失败
+                		mCurrentShareInfo.setStatus(BluetoothOppShareInfo.STATUS_FILE_ERROR);
+                        journalStatus(mCurrentShareInfo, BluetoothOppShareInfo.STATUS_FILE_ERROR);
+                        finishShare();
                 		Message msg = Message.obtain(mCallback);
                         msg.what = BluetoothOppObexSession.MSG_ACCESS_FILE_FAIL;
                         msg.obj = mCurrentShareInfo;
@@ -207,17 +405,10 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                     msg.sendToTarget();
                     
                     doSend(sendInfo);
-                } else {
-                    try {
-                        if (D) Log.d(TAG, "Client thread waiting for next share, sleep for "
-                                    + sSleepTime);
-                        Thread.sleep(sSleepTime);
-                    } catch (InterruptedException e) {
-
-                    }
                 }
             }
             disconnect();
+            syncJournal();
 
             if (wakeLock.isHeld()) {
                 if (V) Log.v(TAG, "release partial WakeLock");
@@ -229,6 +420,32 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
             msg.sendToTarget();
         }
 
+        /**
+         * Runs the probe on the calling thread; the client thread is waiting
+         * for a share and does not use the session meanwhile.
+         */
+        public boolean probe(ObexWatchdog watchdog) {
+            ClientSession cs = mCs;
+            if (!mConnected || (cs == null)) {
+                return false;
+            }
+            cs.setWatchdog(watchdog);
+            try {
+                Operation op = cs.get(null);
+                try {
+                    op.getResponseCode();
+                } finally {
+                    op.close();
+                }
+                return true;
+            } catch (IOException e) {
+                if (D) Log.d(TAG, "OBEX probe failed: " + e);
+                return false;
+            } finally {
+                cs.setWatchdog(mWatchdog);
+            }
+        }
+
         private void disconnect() {
             try {
                 if (mCs != null) {
@@ -261,7 +478,9 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
         private void connect(int numShares) {
             if (D) Log.d(TAG, "Create ClientSession with transport " + mTransport1.toString());
             try {
-                mCs = new ClientSession(mTransport1);
+                mCs = new ClientSession(mTransport1, mLocalMaxPacketSize);
+                mCs.setPutPipelineWindow(mPutPipelineWindow);
+                mCs.setWatchdog(mWatchdog);
                 mConnected = true;
             } catch (IOException e1) {
                 Log.e(TAG, "OBEX session create error");
@@ -276,7 +495,8 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                 }
                 try {
                     mCs.connect(hs);
-                    if (D) Log.d(TAG, "OBEX session created");
+                    if (D) Log.d(TAG, "OBEX session created, max packet size "
+                            + mCs.getMaxPacketSize());
                     mConnected = true;
                 } catch (IOException e) {
                     Log.e(TAG, "OBEX session connect error");
@@ -308,6 +528,7 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                 if (sendInfo.mFileName != null) {
                     status = sendFile(sendInfo);
                     if(BluetoothOppShareInfo.STATUS_TRY_AGAIN == status){
+                        finishShare();
                     	return;
                     }
                 } else {
@@ -315,8 +536,9 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                     status = sendInfo.mStatus;
                 }
                 mCurrentShareInfo.setStatus(BluetoothOppShareInfo.STATUS_SUCCESS);
-                mShares.remove(mCurrentShareInfo);
             }
+            journalStatus(mCurrentShareInfo, status);
+            finishShare();
 
             if (status == BluetoothOppShareInfo.STATUS_SUCCESS) {
                 Message msg = Message.obtain(mCallback);
@@ -340,6 +562,7 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
             boolean error = false;
             int responseCode = -1;
             int status = BluetoothOppShareInfo.STATUS_SUCCESS;
+            int position = 0;
             HeaderSet request;
             request = new HeaderSet();
             request.setHeader(HeaderSet.NAME, fileInfo.mFileName);
@@ -348,8 +571,17 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
             applyRemoteDeviceQuirks(request, mCurrentShareInfo.getDestination(), fileInfo.mFileName);
 
             request.setHeader(HeaderSet.LENGTH, fileInfo.mLength);
+
+            long resumeOffset = 0;
+            if (mResumeStore != null) {
+                resumeOffset = mResumeStore.getOffset(mCurrentShareInfo, fileInfo.mLength);
+                if (resumeOffset > 0) {
+                    request.setHeader(HeaderSet.APPLICATION_PARAMETER,
+                            BluetoothOppResumeStore.encodeOffset(resumeOffset));
+                }
+            }
             ClientOperation putOperation = null;
-            OutputStream outputStream = null;
+            PrivateOutputStream outputStream = null;
             InputStream inputStream = null;
             try {
                 synchronized (this) {
@@ -370,7 +602,7 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                 if (!error) {
                     try {
                         if (V) Log.v(TAG, "openOutputStream " + fileInfo.mFileName);
-                        outputStream = putOperation.openOutputStream();
+                        outputStream = (PrivateOutputStream)putOperation.openOutputStream();
                         inputStream = putOperation.openInputStream();
                     } catch (IOException e) {
                         status = BluetoothOppShareInfo.STATUS_OBEX_DATA_ERROR;
@@ -380,16 +612,60 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                 }
 
                 if (!error) {
-                    int position = 0;
                     int readLength = 0;
                     boolean okToProceed = false;
+                    boolean resumeRefused = false;
                     long timestamp = 0;
+                    long startTime = System.currentTimeMillis();
                     int outputBufferSize = putOperation.getMaxPacketSize();
-                    byte[] buffer = new byte[outputBufferSize];
-                    BufferedInputStream a = new BufferedInputStream(fileInfo.mInputStream, 0x4000);
+                    FileChannel channel = mFileChannelSource ? fileInfo.getChannel() : null;
+
+                    if (resumeOffset > 0) {
+                        // send the headers alone, the reply holds the offset the remote kept
+                        mCallback.sendMessageDelayed(mCallback
+                                .obtainMessage(BluetoothOppObexSession.MSG_CONNECT_TIMEOUT),
+                                BluetoothOppObexSession.SESSION_TIMEOUT);
+                        synchronized (this) {
+                            mWaitingForRemote = true;
+                        }
+                        putOperation.continueOperation(true, false);
+                        mCallback.removeMessages(BluetoothOppObexSession.MSG_CONNECT_TIMEOUT);
+                        synchronized (this) {
+                            mWaitingForRemote = false;
+                        }
+
+                        HeaderSet reply = putOperation.getReceivedHeader();
+                        responseCode = reply.responseCode;
+                        if (responseCode == ResponseCodes.OBEX_HTTP_CONTINUE) {
+                            long accepted = Math.min(resumeOffset,
+                                    BluetoothOppResumeStore.decodeOffset(reply));
+                            if (accepted > 0) {
+                                if (channel != null) {
+                                    channel.position(accepted);
+                                } else {
+                                    skipFully(fileInfo.mInputStream, accepted);
+                                }
+                                position = (int)accepted;
+                                if (V) Log.v(TAG, "Resume " + fileInfo.mFileName + " at " + position);
+                            }
+                        } else {
+                            Log.i(TAG, "Remote reject, Response code is " + responseCode);
+                            resumeRefused = true;
+                        }
+                    }
+                    byte[] buffer = null;
+                    BufferedInputStream a = null;
+                    if (channel == null) {
+                        buffer = new byte[outputBufferSize];
+                        // read ahead whole packets so every read fills one packet
+                        a = new BufferedInputStream(fileInfo.mInputStream,
+                                Math.max(0x4000, outputBufferSize * 2));
+                    }
 
-                    if (!mInterrupted && (position != fileInfo.mLength)) {
-                        readLength = readFully(a, buffer, outputBufferSize);
+                    if (!mInterrupted && !resumeRefused && (position != fileInfo.mLength)) {
+                        if (channel == null) {
+                            readLength = readFully(a, buffer, outputBufferSize);
+                        }
 
                         mCallback.sendMessageDelayed(mCallback
                                 .obtainMessage(BluetoothOppObexSession.MSG_CONNECT_TIMEOUT),
@@ -399,7 +675,12 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                         }
 
                         // first packet will block here
-                        outputStream.write(buffer, 0, readLength);
+                        if (channel != null) {
+                            readLength = (int)outputStream.transferFrom(channel, Math.min(
+                                    outputBufferSize, fileInfo.mLength - position));
+                        } else {
+                            outputStream.write(buffer, 0, readLength);
+                        }
 
                         position += readLength;
 
@@ -440,8 +721,16 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                         {
                             if (V) timestamp = System.currentTimeMillis();
 
-                            readLength = a.read(buffer, 0, outputBufferSize);
-                            outputStream.write(buffer, 0, readLength);
+                            if (channel != null) {
+                                readLength = (int)outputStream.transferFrom(channel, Math.min(
+                                        outputBufferSize, fileInfo.mLength - position));
+                                if (readLength == 0) {
+                                    throw new IOException("Unexpected end of file");
+                                }
+                            } else {
+                                readLength = a.read(buffer, 0, outputBufferSize);
+                                outputStream.write(buffer, 0, readLength);
+                            }
 
                             /* check remote abort */
                             responseCode = putOperation.getResponseCode();
@@ -462,6 +751,10 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                                 msg.arg1 = position;
                                 msg.obj = mCurrentShareInfo;
                                 msg.sendToTarget();
+                                if (mResumeStore != null) {
+                                    mResumeStore.update(mCurrentShareInfo, fileInfo.mLength,
+                                            position);
+                                }
                             }
                         }
                     }
@@ -478,6 +771,7 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                         Log.i(TAG, "SendFile finished send out file " + fileInfo.mFileName
                                 + " length " + fileInfo.mLength);
                         outputStream.close();
+                        logThroughput(position, System.currentTimeMillis() - startTime);
                     } else {
                         error = true;
                         status = BluetoothOppShareInfo.STATUS_CANCELED;
@@ -526,10 +820,27 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                 } catch (IOException e) {
                     Log.e(TAG, "Error when closing stream after send");
                 }
+                if (mResumeStore != null) {
+                    if ((status == BluetoothOppShareInfo.STATUS_SUCCESS)
+                            && (position == fileInfo.mLength)) {
+                        mResumeStore.clear(mCurrentShareInfo, fileInfo.mLength);
+                    } else if (position > 0) {
+                        mResumeStore.flush(mCurrentShareInfo, fileInfo.mLength, position);
+                    }
+                }
             }
             return status;
         }
         
+        private void logThroughput(long bytes, long elapsed) {
+            if (D) {
+                Log.d(TAG, "Sent " + bytes + " bytes in " + elapsed + " ms ("
+                        + (elapsed > 0 ? bytes * 1000 / elapsed : bytes) + " B/s), max packet size "
+                        + mCs.getMaxPacketSize() + " negotiated, " + mLocalMaxPacketSize
+                        + " local");
+            }
+        }
+
         private void handleSendException(String exception) {
             Log.e(TAG, "Error when sending file: " + exception);
             mCallback.removeMessages(BluetoothOppObexSession.MSG_CONNECT_TIMEOUT);
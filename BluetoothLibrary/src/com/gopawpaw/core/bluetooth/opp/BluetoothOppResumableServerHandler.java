@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2008-2009, Motorola, Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of the Motorola, Inc. nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gopawpaw.core.bluetooth.opp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import android.util.Log;
+
+import com.gopawpaw.core.bluetooth.extend.javax.obex.HeaderSet;
+import com.gopawpaw.core.bluetooth.extend.javax.obex.Operation;
+import com.gopawpaw.core.bluetooth.extend.javax.obex.ResponseCodes;
+import com.gopawpaw.core.bluetooth.extend.javax.obex.ServerRequestHandler;
+
+/**
+ * Receives pushed files and lets interrupted pushes resume. When a PUT offers
+ * a resume offset, see {@link BluetoothOppResumeStore}, the handler answers
+ * with the length of the partial file it kept, at most the offset offered,
+ * and appends the rest of the body to it.
+ * <p>
+ * One handler may serve several sessions at once, for example through an
+ * <code>ObexServerEngine</code>. The offset accepted for a PUT is kept with
+ * the header set the PUT was received in, not in the handler.
+ */
+public abstract class BluetoothOppResumableServerHandler extends ServerRequestHandler {
+    private static final String TAG = BluetoothOppResumableServerHandler.class.getSimpleName();
+
+    private static final boolean D = Constants.DEBUG;
+
+    /**
+     * The offsets accepted by onPutHeaders(), by the request header set of
+     * their operation, until onPut() takes them. Weak, so a PUT that ends
+     * before onPut() leaves nothing behind.
+     */
+    private final Map<HeaderSet, Long> mAcceptedOffsets = new WeakHashMap<HeaderSet, Long>();
+
+    /**
+     * Returns how many bytes of the file are already stored from an earlier
+     * attempt, or 0 if there is no partial file.
+     */
+    protected abstract long getPartialLength(String name, long length);
+
+    /**
+     * Opens the file for writing from <code>offset</code>: a new file when
+     * it is 0, the partial file to append to otherwise.
+     */
+    protected abstract OutputStream openOutput(String name, String type, long length,
+            long offset) throws IOException;
+
+    @Override
+    public void onPutHeaders(HeaderSet request, HeaderSet reply) {
+        long offered = BluetoothOppResumeStore.decodeOffset(request);
+        if (offered <= 0) {
+            return;
+        }
+        long accepted;
+        try {
+            String name = (String)request.getHeader(HeaderSet.NAME);
+            Long length = (Long)request.getHeader(HeaderSet.LENGTH);
+            accepted = Math.min(offered,
+                    getPartialLength(name, (length == null) ? -1 : length.longValue()));
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading resume headers: " + e);
+            accepted = 0;
+        }
+        if (accepted < 0) {
+            accepted = 0;
+        }
+        if (D) Log.d(TAG, "Resume offered at " + offered + ", accepted at " + accepted);
+        if (accepted > 0) {
+            synchronized (mAcceptedOffsets) {
+                mAcceptedOffsets.put(request, Long.valueOf(accepted));
+            }
+        }
+        reply.setHeader(HeaderSet.APPLICATION_PARAMETER,
+                BluetoothOppResumeStore.encodeOffset(accepted));
+    }
+
+    @Override
+    public int onPut(Operation operation) {
+        OutputStream out = null;
+        InputStream in = null;
+        try {
+            HeaderSet request = operation.getReceivedHeader();
+            long offset = takeAcceptedOffset(request);
+            String name = (String)request.getHeader(HeaderSet.NAME);
+            String type = (String)request.getHeader(HeaderSet.TYPE);
+            Long length = (Long)request.getHeader(HeaderSet.LENGTH);
+            out = openOutput(name, type, (length == null) ? -1 : length.longValue(), offset);
+            in = operation.openInputStream();
+            byte[] buffer = new byte[Math.max(operation.getMaxPacketSize(), 0x1000)];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return ResponseCodes.OBEX_HTTP_OK;
+        } catch (IOException e) {
+            Log.e(TAG, "Error receiving file: " + e);
+            return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+        } finally {
+            try {
+                if (in != null) {
+                    in.close();
+                }
+                if (out != null) {
+                    out.close();
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing received file");
+            }
+        }
+    }
+
+    private long takeAcceptedOffset(HeaderSet request) {
+        Long offset;
+        synchronized (mAcceptedOffsets) {
+            offset = mAcceptedOffsets.remove(request);
+        }
+        return (offset == null) ? 0 : offset.longValue();
+    }
+}
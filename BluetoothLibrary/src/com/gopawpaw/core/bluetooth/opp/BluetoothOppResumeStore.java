@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2008-2009, Motorola, Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of the Motorola, Inc. nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gopawpaw.core.bluetooth.opp;
+
+import java.io.File;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.gopawpaw.core.bluetooth.extend.javax.obex.HeaderSet;
+
+/**
+ * Remembers how far outgoing files got, so an interrupted push can resume
+ * instead of starting again from byte zero.
+ * <p>
+ * The offset is kept per destination and file, and forgotten if the file
+ * changes. It is offered to the remote device in an application parameter of
+ * the PUT request; a receiver that supports resuming answers with the offset
+ * it actually kept, see {@link BluetoothOppResumableServerHandler}, and the
+ * sender continues from there. Receivers that do not answer get the whole
+ * file.
+ */
+public class BluetoothOppResumeStore {
+    private static final String TAG = BluetoothOppResumeStore.class.getSimpleName();
+
+    private static final boolean V = Constants.VERBOSE;
+
+    /** Application parameter tag of the resume offset, an 8 byte big endian value */
+    public static final byte RESUME_OFFSET_TAGID = (byte)0xF0;
+
+    private static final byte RESUME_OFFSET_LENGTH = 8;
+
+    private static final String PREFS_NAME = "btopp_resume";
+
+    /** Bytes sent between two checkpoints written to storage */
+    private static final long CHECKPOINT_BYTES = 0x80000;
+
+    /** Time between two checkpoints written to storage */
+    private static final long CHECKPOINT_MILLIS = 2000;
+
+    private final SharedPreferences mPrefs;
+
+    private String mLastKey;
+
+    private long mLastOffset;
+
+    private long mLastTime;
+
+    public BluetoothOppResumeStore(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Returns the offset recorded for the share, or 0 if there is none.
+     */
+    public synchronized long getOffset(BluetoothOppShareInfo share, long length) {
+        long offset = mPrefs.getLong(key(share, length), 0);
+        return ((offset > 0) && (offset <= length)) ? offset : 0;
+    }
+
+    /**
+     * Records that the share was sent up to <code>offset</code>. Writes to
+     * storage are limited to one per {@link #CHECKPOINT_BYTES} or
+     * {@link #CHECKPOINT_MILLIS}; use {@link #flush} when the transfer stops.
+     */
+    public synchronized void update(BluetoothOppShareInfo share, long length, long offset) {
+        String key = key(share, length);
+        long now = System.currentTimeMillis();
+        if (key.equals(mLastKey) && (offset - mLastOffset < CHECKPOINT_BYTES)
+                && (now - mLastTime < CHECKPOINT_MILLIS)) {
+            return;
+        }
+        write(key, offset, now);
+    }
+
+    /**
+     * Records the offset without throttling.
+     */
+    public synchronized void flush(BluetoothOppShareInfo share, long length, long offset) {
+        write(key(share, length), offset, System.currentTimeMillis());
+    }
+
+    /**
+     * Forgets the offset of the share, once it has been sent completely.
+     */
+    public synchronized void clear(BluetoothOppShareInfo share, long length) {
+        String key = key(share, length);
+        mPrefs.edit().remove(key).commit();
+        if (key.equals(mLastKey)) {
+            mLastKey = null;
+        }
+    }
+
+    private void write(String key, long offset, long now) {
+        mPrefs.edit().putLong(key, offset).commit();
+        mLastKey = key;
+        mLastOffset = offset;
+        mLastTime = now;
+        if (V) Log.v(TAG, "checkpoint " + key + " at " + offset);
+    }
+
+    /**
+     * The key of a share: destination, path, length and modification time,
+     * so a changed file is not resumed.
+     */
+    private static String key(BluetoothOppShareInfo share, long length) {
+        String path = share.getFilePath();
+        long modified = (path == null) ? 0 : new File(path).lastModified();
+        return share.getDestination() + "|" + path + "|" + length + "|" + modified;
+    }
+
+    /**
+     * Returns the application parameter that offers the offset.
+     */
+    public static byte[] encodeOffset(long offset) {
+        byte[] param = new byte[RESUME_OFFSET_LENGTH + 2];
+        param[0] = RESUME_OFFSET_TAGID;
+        param[1] = RESUME_OFFSET_LENGTH;
+        for (int i = 0; i < RESUME_OFFSET_LENGTH; i++) {
+            param[2 + i] = (byte)(offset >>> (8 * (RESUME_OFFSET_LENGTH - 1 - i)));
+        }
+        return param;
+    }
+
+    /**
+     * Finds the resume offset in the application parameter of the header
+     * set.
+     * @return the offset, or -1 if the headers carry none
+     */
+    public static long decodeOffset(HeaderSet headers) {
+        byte[] param;
+        try {
+            param = (byte[])headers.getHeader(HeaderSet.APPLICATION_PARAMETER);
+        } catch (Exception e) {
+            return -1;
+        }
+        if (param == null) {
+            return -1;
+        }
+        int index = 0;
+        while (index + 2 <= param.length) {
+            byte tag = param[index];
+            int length = param[index + 1] & 0xFF;
+            index += 2;
+            if (index + length > param.length) {
+                break;
+            }
+            if ((tag == RESUME_OFFSET_TAGID) && (length == RESUME_OFFSET_LENGTH)) {
+                long offset = 0;
+                for (int i = 0; i < RESUME_OFFSET_LENGTH; i++) {
+                    offset = (offset << 8) | (param[index + i] & 0xFF);
+                }
+                return offset;
+            }
+            index += length;
+        }
+        return -1;
+    }
+}
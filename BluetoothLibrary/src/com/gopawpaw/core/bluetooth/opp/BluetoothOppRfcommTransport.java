@@ -83,10 +83,22 @@ public class BluetoothOppRfcommTransport implements ObexTransport {
     public void listen() throws IOException {
     }
 
+    /**
+     * Returns whether the socket is still open on this side. It only notices
+     * a local close: available() fails once the socket has been closed here,
+     * but an RFCOMM socket keeps reporting no data after the remote device
+     * drops the channel. Whether the remote end still answers is left to an
+     * OBEX request, see {@link BluetoothOppObexClientSession#probe}.
+     */
     public boolean isConnected() throws IOException {
-        //return mSocket.isConnected();
-        // TODO: add implementation
-        return true;
+        // BluetoothSocket.isConnected() needs API 14 and also only tracks the
+        // local state
+        try {
+            mSocket.getInputStream().available();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
     }
 
     public String getRemoteAddress() {
@@ -35,6 +35,7 @@ package com.gopawpaw.core.bluetooth.opp;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 
 import android.text.TextUtils;
 import android.util.Log;
@@ -90,6 +91,16 @@ public class BluetoothOppSendFileInfo {
         mStatus = status;
     }
     
+    /**
+     * Returns the channel of the media file input stream, so the file can be
+     * read straight into the OBEX output queue. Reading the channel moves the
+     * position of {@link #mInputStream} as well.
+     * @return the file channel, or null if this is not a media file
+     */
+    public FileChannel getChannel() {
+        return (mInputStream == null) ? null : mInputStream.getChannel();
+    }
+
     public static BluetoothOppSendFileInfo generateFileInfo(String filePath,String contentType,String fileName) {
         long length = 0;
         FileInputStream is = null;
@@ -11,6 +11,8 @@
  */
 package com.gopawpaw.core.bluetooth.opp;
 
+import java.io.File;
+
 /**
  * 蓝牙OPP分享信息对象
  * @author LiJinHua
@@ -28,6 +30,15 @@ public class BluetoothOppShareInfo {
     
 	private int status;
 	
+	/** higher values are sent first by {@link BluetoothOppShareOrder#PRIORITY} */
+	private int priority;
+	
+	/** wall clock time the share should be sent by, 0 for none */
+	private long deadline;
+	
+	/** file length, read when first needed */
+	private long length = -1;
+	
 	public BluetoothOppShareInfo(String filePath, String name, String mimetype,
 			int status) {
 		super();
@@ -55,6 +66,7 @@ public class BluetoothOppShareInfo {
 
 	public void setFilePath(String filePath) {
 		this.filePath = filePath;
+		this.length = -1;
 	}
 
 	public String getName() {
@@ -81,6 +93,43 @@ public class BluetoothOppShareInfo {
 		this.status = status;
 	}
 
+	public int getPriority() {
+		return priority;
+	}
+
+	/**
+	 * Sets the priority used by {@link BluetoothOppShareOrder#PRIORITY}.
+	 * Must not change while the share is queued.
+	 */
+	public void setPriority(int priority) {
+		this.priority = priority;
+	}
+
+	public long getDeadline() {
+		return deadline;
+	}
+
+	/**
+	 * Sets the time, in {@link System#currentTimeMillis()} terms, the share
+	 * should be sent by; 0 for none. Used by
+	 * {@link BluetoothOppShareOrder#EARLIEST_DEADLINE}. Must not change while
+	 * the share is queued.
+	 */
+	public void setDeadline(long deadline) {
+		this.deadline = deadline;
+	}
+
+	/**
+	 * Returns the length of the file, read from the file system the first
+	 * time it is needed; 0 if the file does not exist.
+	 */
+	public long getLength() {
+		if (length < 0) {
+			length = (filePath == null) ? 0 : new File(filePath).length();
+		}
+		return length;
+	}
+
 	public String getDestination() {
 		return destination;
 	}
@@ -0,0 +1,374 @@
+/*
+ * Copyright (c) 2008-2009, Motorola, Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of the Motorola, Inc. nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gopawpaw.core.bluetooth.opp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+/**
+ * An append-only log of queued shares and their status changes, so the
+ * shares that were queued but not sent survive a crash or a stopped session.
+ * <p>
+ * Every record is handed to the operating system as soon as it is written,
+ * so it survives the process being killed. Only the sync to the disk is
+ * batched, every {@link #SYNC_RECORDS} records or once a record is written
+ * {@link #SYNC_MILLIS} after the oldest unsynced one, so queuing many shares
+ * does not wait for the disk each time. Callers should call {@link #sync()}
+ * when they go idle; losing power loses at most the records since the last
+ * sync. Every record carries a CRC, and replaying stops at the first record
+ * that was torn by a crash.
+ * <p>
+ * {@link #open()} replays the log, returns the shares that did not complete
+ * and rewrites the file with only those shares. The file is rewritten the
+ * same way while it is in use once it is mostly made of completed shares.
+ */
+public class BluetoothOppShareJournal {
+    private static final String TAG = BluetoothOppShareJournal.class.getSimpleName();
+
+    private static final boolean D = Constants.DEBUG;
+
+    private static final boolean V = Constants.VERBOSE;
+
+    private static final int RECORD_ADD = 1;
+
+    private static final int RECORD_STATUS = 2;
+
+    /** The largest record replay accepts; longer lengths are corruption */
+    private static final int MAX_RECORD_LENGTH = 0x10000;
+
+    /** Records written between two syncs */
+    private static final int SYNC_RECORDS = 64;
+
+    /** Time between the oldest unsynced record and a sync */
+    private static final long SYNC_MILLIS = 500;
+
+    /** Records in the file before it may be rewritten */
+    private static final int COMPACT_RECORDS = 1024;
+
+    private final File mFile;
+
+    /** The ids of the shares that have not completed, in the order they were queued */
+    private final Map<BluetoothOppShareInfo, Integer> mIds =
+            new LinkedHashMap<BluetoothOppShareInfo, Integer>();
+
+    private final ByteArrayOutputStream mRecord = new ByteArrayOutputStream();
+
+    private final DataOutputStream mRecordOut = new DataOutputStream(mRecord);
+
+    private final CRC32 mCrc = new CRC32();
+
+    private FileOutputStream mFileOut;
+
+    private DataOutputStream mOut;
+
+    private int mNextId;
+
+    private int mRecords;
+
+    private int mUnsynced;
+
+    private long mFirstUnsyncedTime;
+
+    public BluetoothOppShareJournal(File file) {
+        if (file == null) {
+            throw new NullPointerException("file is null");
+        }
+        mFile = file;
+    }
+
+    /**
+     * Replays the log and opens it for appending.
+     * @return the shares that were queued and did not complete, in the order
+     *         they were queued; shares that were running are pending again
+     * @throws IOException if the log cannot be rewritten or opened
+     */
+    public synchronized List<BluetoothOppShareInfo> open() throws IOException {
+        if (mOut != null) {
+            throw new IOException("Journal already open");
+        }
+        List<BluetoothOppShareInfo> shares = replay();
+        mIds.clear();
+        mNextId = 0;
+        for (BluetoothOppShareInfo share : shares) {
+            mIds.put(share, Integer.valueOf(mNextId++));
+        }
+        rewrite();
+        if (D) Log.d(TAG, "Replayed " + shares.size() + " shares from " + mFile);
+        return shares;
+    }
+
+    /**
+     * Records a queued share. Shares already in the log are ignored, so the
+     * shares returned by {@link #open()} can be queued again as they are.
+     */
+    public synchronized void add(BluetoothOppShareInfo share) throws IOException {
+        ensureOpen();
+        if (mIds.containsKey(share)) {
+            return;
+        }
+        int id = mNextId++;
+        mIds.put(share, Integer.valueOf(id));
+        writeAdd(mOut, id, share);
+        recordWritten();
+    }
+
+    /**
+     * Records a status change of a queued share. A completed share, see
+     * {@link BluetoothOppShareInfo#isStatusCompleted(int)}, is not replayed.
+     */
+    public synchronized void update(BluetoothOppShareInfo share, int status) throws IOException {
+        ensureOpen();
+        Integer id = mIds.get(share);
+        if (id == null) {
+            return;
+        }
+        if (BluetoothOppShareInfo.isStatusCompleted(status)) {
+            mIds.remove(share);
+        }
+        mRecord.reset();
+        mRecordOut.writeByte(RECORD_STATUS);
+        mRecordOut.writeInt(id.intValue());
+        mRecordOut.writeInt(status);
+        writeRecord(mOut);
+        recordWritten();
+
+        if ((mRecords > COMPACT_RECORDS) && (mRecords > 4 * mIds.size())) {
+            rewrite();
+        }
+    }
+
+    /**
+     * Writes the records handed to the operating system to the disk.
+     */
+    public synchronized void sync() throws IOException {
+        if ((mOut == null) || (mUnsynced == 0)) {
+            return;
+        }
+        mOut.flush();
+        mFileOut.getFD().sync();
+        mUnsynced = 0;
+    }
+
+    public synchronized void close() throws IOException {
+        if (mOut == null) {
+            return;
+        }
+        try {
+            sync();
+        } finally {
+            mOut.close();
+            mOut = null;
+            mFileOut = null;
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (mOut == null) {
+            throw new IOException("Journal not open");
+        }
+    }
+
+    private void recordWritten() throws IOException {
+        // a killed process loses nothing the operating system has
+        mOut.flush();
+        mRecords++;
+        long now = System.currentTimeMillis();
+        if (mUnsynced++ == 0) {
+            mFirstUnsyncedTime = now;
+        }
+        if ((mUnsynced >= SYNC_RECORDS) || (now - mFirstUnsyncedTime >= SYNC_MILLIS)) {
+            sync();
+        }
+    }
+
+    /**
+     * Reads the log up to its end or to the first damaged record.
+     */
+    private List<BluetoothOppShareInfo> replay() throws IOException {
+        Map<Integer, BluetoothOppShareInfo> shares =
+                new LinkedHashMap<Integer, BluetoothOppShareInfo>();
+        if (!mFile.exists()) {
+            return new ArrayList<BluetoothOppShareInfo>();
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(mFile)));
+        try {
+            while (true) {
+                byte[] payload;
+                try {
+                    int length = in.readInt();
+                    if ((length <= 0) || (length > MAX_RECORD_LENGTH)) {
+                        Log.w(TAG, "Bad record length " + length + ", log ends here");
+                        break;
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                    mCrc.reset();
+                    mCrc.update(payload);
+                    if (in.readInt() != (int)mCrc.getValue()) {
+                        Log.w(TAG, "Bad record checksum, log ends here");
+                        break;
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+                replayRecord(payload, shares);
+            }
+        } finally {
+            in.close();
+        }
+
+        List<BluetoothOppShareInfo> result = new ArrayList<BluetoothOppShareInfo>(shares.size());
+        for (BluetoothOppShareInfo share : shares.values()) {
+            if (share.getStatus() == BluetoothOppShareInfo.STATUS_RUNNING) {
+                share.setStatus(BluetoothOppShareInfo.STATUS_PENDING);
+            }
+            result.add(share);
+        }
+        return result;
+    }
+
+    private void replayRecord(byte[] payload, Map<Integer, BluetoothOppShareInfo> shares)
+            throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        int type = in.readByte();
+        Integer id = Integer.valueOf(in.readInt());
+        if (type == RECORD_ADD) {
+            BluetoothOppShareInfo share = new BluetoothOppShareInfo(readString(in),
+                    readString(in), readString(in), in.readInt());
+            share.setDestination(readString(in));
+            share.setPriority(in.readInt());
+            share.setDeadline(in.readLong());
+            shares.put(id, share);
+        } else if (type == RECORD_STATUS) {
+            int status = in.readInt();
+            BluetoothOppShareInfo share = shares.get(id);
+            if (share == null) {
+                return;
+            }
+            if (BluetoothOppShareInfo.isStatusCompleted(status)) {
+                shares.remove(id);
+            } else {
+                share.setStatus(status);
+            }
+        } else {
+            if (V) Log.v(TAG, "Skipping record of unknown type " + type);
+        }
+    }
+
+    /**
+     * Writes the shares that have not completed to a new file, replaces the
+     * log with it and opens it for appending.
+     */
+    private void rewrite() throws IOException {
+        if (mOut != null) {
+            close();
+        }
+        File temp = new File(mFile.getPath() + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(temp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+        try {
+            for (Map.Entry<BluetoothOppShareInfo, Integer> entry : mIds.entrySet()) {
+                writeAdd(out, entry.getValue().intValue(), entry.getKey());
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(mFile)) {
+            throw new IOException("Unable to replace " + mFile);
+        }
+        mRecords = mIds.size();
+        mUnsynced = 0;
+
+        mFileOut = new FileOutputStream(mFile, true);
+        mOut = new DataOutputStream(new BufferedOutputStream(mFileOut));
+        if (V) Log.v(TAG, "Rewrote " + mFile + " with " + mRecords + " shares");
+    }
+
+    private void writeAdd(DataOutputStream out, int id, BluetoothOppShareInfo share)
+            throws IOException {
+        mRecord.reset();
+        mRecordOut.writeByte(RECORD_ADD);
+        mRecordOut.writeInt(id);
+        writeString(mRecordOut, share.getFilePath());
+        writeString(mRecordOut, share.getName());
+        writeString(mRecordOut, share.getMimetype());
+        mRecordOut.writeInt(share.getStatus());
+        writeString(mRecordOut, share.getDestination());
+        mRecordOut.writeInt(share.getPriority());
+        mRecordOut.writeLong(share.getDeadline());
+        writeRecord(out);
+    }
+
+    /**
+     * Appends the record built in {@link #mRecord}: its length, the record
+     * and its CRC.
+     */
+    private void writeRecord(DataOutputStream out) throws IOException {
+        byte[] payload = mRecord.toByteArray();
+        mCrc.reset();
+        mCrc.update(payload);
+        out.writeInt(payload.length);
+        out.write(payload);
+        out.writeInt((int)mCrc.getValue());
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2008-2009, Motorola, Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of the Motorola, Inc. nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gopawpaw.core.bluetooth.opp;
+
+import java.util.Comparator;
+
+/**
+ * Orders in which queued shares can be sent. Shares that an order ranks
+ * equally are sent in the order they were queued.
+ */
+public final class BluetoothOppShareOrder {
+
+    /** Sends shares in the order they were queued */
+    public static final Comparator<BluetoothOppShareInfo> FIFO =
+            new Comparator<BluetoothOppShareInfo>() {
+        public int compare(BluetoothOppShareInfo a, BluetoothOppShareInfo b) {
+            return 0;
+        }
+    };
+
+    /** Sends shares with a higher {@link BluetoothOppShareInfo#getPriority()} first */
+    public static final Comparator<BluetoothOppShareInfo> PRIORITY =
+            new Comparator<BluetoothOppShareInfo>() {
+        public int compare(BluetoothOppShareInfo a, BluetoothOppShareInfo b) {
+            return compareLongs(b.getPriority(), a.getPriority());
+        }
+    };
+
+    /**
+     * Sends the smallest files first, which minimises the mean time until a
+     * share completes.
+     */
+    public static final Comparator<BluetoothOppShareInfo> SMALLEST_FIRST =
+            new Comparator<BluetoothOppShareInfo>() {
+        public int compare(BluetoothOppShareInfo a, BluetoothOppShareInfo b) {
+            return compareLongs(a.getLength(), b.getLength());
+        }
+    };
+
+    /**
+     * Sends the share with the earliest {@link BluetoothOppShareInfo#getDeadline()}
+     * first; shares without a deadline go last.
+     */
+    public static final Comparator<BluetoothOppShareInfo> EARLIEST_DEADLINE =
+            new Comparator<BluetoothOppShareInfo>() {
+        public int compare(BluetoothOppShareInfo a, BluetoothOppShareInfo b) {
+            long da = (a.getDeadline() > 0) ? a.getDeadline() : Long.MAX_VALUE;
+            long db = (b.getDeadline() > 0) ? b.getDeadline() : Long.MAX_VALUE;
+            return compareLongs(da, db);
+        }
+    };
+
+    private BluetoothOppShareOrder() {
+    }
+
+    /**
+     * Returns an order that uses <code>second</code> for shares that
+     * <code>first</code> ranks equally, e.g. priority classes with the
+     * smallest file first within a class.
+     */
+    public static Comparator<BluetoothOppShareInfo> then(
+            final Comparator<BluetoothOppShareInfo> first,
+            final Comparator<BluetoothOppShareInfo> second) {
+        return new Comparator<BluetoothOppShareInfo>() {
+            public int compare(BluetoothOppShareInfo a, BluetoothOppShareInfo b) {
+                int result = first.compare(a, b);
+                return (result != 0) ? result : second.compare(a, b);
+            }
+        };
+    }
+
+    private static int compareLongs(long a, long b) {
+        return (a < b) ? -1 : ((a == b) ? 0 : 1);
+    }
+
+    /**
+     * A queued share. Entries compare by the order and then by the sequence
+     * number they were queued with, so a priority queue of entries keeps equal
+     * shares in FIFO order.
+     */
+    static final class Entry implements Comparable<Entry> {
+        final BluetoothOppShareInfo mShare;
+
+        private final long mSequence;
+
+        private final Comparator<BluetoothOppShareInfo> mOrder;
+
+        Entry(BluetoothOppShareInfo share, long sequence, Comparator<BluetoothOppShareInfo> order) {
+            mShare = share;
+            mSequence = sequence;
+            mOrder = order;
+        }
+
+        public int compareTo(Entry other) {
+            int result = mOrder.compare(mShare, other.mShare);
+            return (result != 0) ? result : compareLongs(mSequence, other.mSequence);
+        }
+    }
+}
@@ -33,7 +33,9 @@
 package com.gopawpaw.core.bluetooth.opp;
 
 import java.io.IOException;
+import java.util.Comparator;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
@@ -46,7 +48,9 @@ import android.os.Message;
 import android.os.Process;
 import android.util.Log;
 
+import com.gopawpaw.core.bluetooth.extend.javax.obex.ObexHelper;
 import com.gopawpaw.core.bluetooth.extend.javax.obex.ObexTransport;
+import com.gopawpaw.core.bluetooth.extend.javax.obex.ObexWatchdog;
 import com.gopawpaw.core.bluetooth.util.AndroidSDKTool;
 
 /**
@@ -87,6 +91,26 @@ public class BluetoothOppTransfer{
     private EventHandler mSessionHandler;
     
     private BluetoothOppTransferListener mBluetoothOppTransferListener;
+
+    private int mLocalMaxPacketSize = ObexHelper.MAX_PACKET_SIZE_INT;
+
+    private int mPutPipelineWindow = 1;
+
+    private boolean mFileChannelSource;
+
+    private Comparator<BluetoothOppShareInfo> mShareOrder = BluetoothOppShareOrder.FIFO;
+
+    private BluetoothOppResumeStore mResumeStore;
+
+    private BluetoothOppShareJournal mShareJournal;
+
+    private ObexWatchdog mWatchdog;
+
+    /** Whether the OBEX session is connected and has not failed */
+    private volatile boolean mConnected;
+
+    /** Shares passed to addShare() that the handler has not given the session yet */
+    private final AtomicInteger mPostedShares = new AtomicInteger();
     
     /**
      * An interface for notifying when BluetoothOppTransfer state is changed
@@ -143,6 +167,7 @@ public class BluetoothOppTransfer{
                     */
                     if (V) Log.v(TAG, "receive RFCOMM_ERROR msg");
                     mConnectThread = null;
+                    mConnected = false;
                     markBatchFailed(mCurrentShare,BluetoothOppShareInfo.STATUS_CONNECTION_ERROR);
 //                    mBatch.mStatus = Constants.BATCH_STATUS_FAILED;
                     break;
@@ -159,9 +184,11 @@ public class BluetoothOppTransfer{
                 case ADD_SHARE:
                 	mCurrentShare = (BluetoothOppShareInfo)msg.obj;
                 	mSession.addShare(mCurrentShare);
+                    mPostedShares.decrementAndGet();
                 	break;
                 case BluetoothOppObexSession.MSG_CONNECT_SUCCESS:
                 	if (V) Log.v(TAG, " BluetoothOppObexSession.MSG_CONNECT_SUCCESS");
+                    mConnected = true;
                 	if(mBluetoothOppTransferListener != null){
                 		mBluetoothOppTransferListener.onConnect(BluetoothOppObexSession.MSG_CONNECT_SUCCESS);
                 	}
@@ -200,6 +227,7 @@ public class BluetoothOppTransfer{
                     */
 //                	BluetoothOppShareInfo info1 = (BluetoothOppShareInfo)msg.obj;
                     if (V) Log.v(TAG, "receive MSG_SESSION_COMPLETE for batch ");
+                    mConnected = false;
                     if(mBluetoothOppTransferListener != null){
                     	mBluetoothOppTransferListener.onDisconnect(0);
                 	}
@@ -207,6 +235,7 @@ public class BluetoothOppTransfer{
                 case BluetoothOppObexSession.MSG_SESSION_ERROR:
                     /* Handle the error state of an Obex session */
                     if (V) Log.v(TAG, "receive MSG_SESSION_ERROR for batch ");
+                    mConnected = false;
                     BluetoothOppShareInfo info2 = (BluetoothOppShareInfo)msg.obj;
                     mSession.stop();
                     if(info2 != null){
@@ -217,6 +246,7 @@ public class BluetoothOppTransfer{
                     break;
                 case BluetoothOppObexSession.MSG_SHARE_INTERRUPTED:
                     if (V) Log.v(TAG, "receive MSG_SHARE_INTERRUPTED for batch ");
+                    mConnected = false;
                     BluetoothOppShareInfo info3 = (BluetoothOppShareInfo)msg.obj;
                     try {
                         if (mTransport == null) {
@@ -237,6 +267,7 @@ public class BluetoothOppTransfer{
 
                 case BluetoothOppObexSession.MSG_CONNECT_TIMEOUT:
                     if (V) Log.v(TAG, "receive MSG_CONNECT_TIMEOUT for batch ");
+                    mConnected = false;
                     try {
                         if (mTransport == null) {
                             Log.v(TAG, "receive MSG_SHARE_INTERRUPTED but mTransport = null");
@@ -325,6 +356,7 @@ public class BluetoothOppTransfer{
      */
     public void stop() {
         if (V) Log.v(TAG, "stop");
+        mConnected = false;
         if (mConnectThread != null) {
             try {
                 mConnectThread.interrupt();
@@ -346,7 +378,15 @@ public class BluetoothOppTransfer{
 
     private void startObexSession() {
         if (V) Log.v(TAG, "Create Client session with transport " + mTransport.toString());
-        mSession = new BluetoothOppObexClientSession(mContext, mTransport);
+        BluetoothOppObexClientSession session = new BluetoothOppObexClientSession(mContext,
+                mTransport, mLocalMaxPacketSize);
+        session.setPutPipelineWindow(mPutPipelineWindow);
+        session.setFileChannelSourceEnabled(mFileChannelSource);
+        session.setShareOrder(mShareOrder);
+        session.setResumeStore(mResumeStore);
+        session.setShareJournal(mShareJournal);
+        session.setWatchdog(mWatchdog);
+        mSession = session;
         mSession.start(mSessionHandler, 10/*mBatch.getNumShares()*/);
     }
     
@@ -442,11 +482,152 @@ public class BluetoothOppTransfer{
         }
     };
 
+    public BluetoothDevice getDestinationDevice() {
+        return mDestinationDevice;
+    }
+
+    /**
+     * Returns whether the OBEX session is connected and usable for more
+     * shares: it connected, has not failed or been stopped, and its socket
+     * has not been closed on this side. A link the remote device dropped
+     * still counts as connected until a request fails, see
+     * {@link #probe(ObexWatchdog)}.
+     */
+    public boolean isConnected() {
+        if (!mConnected) {
+            return false;
+        }
+        if (mTransport instanceof BluetoothOppRfcommTransport) {
+            try {
+                return ((BluetoothOppRfcommTransport)mTransport).isConnected();
+            } catch (IOException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks that the remote device still answers on the idle session, see
+     * {@link BluetoothOppObexClientSession#probe(ObexWatchdog)}. Blocks until
+     * the answer arrives or the deadline of <code>watchdog</code> passes.
+     * @return false if the session is no longer usable
+     */
+    public boolean probe(ObexWatchdog watchdog) {
+        if (!isConnected()) {
+            return false;
+        }
+        BluetoothOppObexSession session = mSession;
+        if (!(session instanceof BluetoothOppObexClientSession)) {
+            return true;
+        }
+        return ((BluetoothOppObexClientSession)session).probe(watchdog);
+    }
+
+    /**
+     * Returns whether the transfer has no share waiting or being sent, so the
+     * session may be used for something else, such as a probe.
+     */
+    public boolean isIdle() {
+        if (mPostedShares.get() > 0) {
+            return false;
+        }
+        BluetoothOppObexSession session = mSession;
+        if (!(session instanceof BluetoothOppObexClientSession)) {
+            return true;
+        }
+        return ((BluetoothOppObexClientSession)session).isIdle();
+    }
+
+    /**
+     * Hands a started transfer over to a new listener. If the session is
+     * connected, the listener is told with
+     * {@link BluetoothOppTransferListener#onConnect(int)} as if the transfer
+     * had just connected.
+     */
+    public void attach(BluetoothOppTransferListener listener) {
+        mBluetoothOppTransferListener = listener;
+        if (mConnected && (mSessionHandler != null)) {
+            mSessionHandler.obtainMessage(BluetoothOppObexSession.MSG_CONNECT_SUCCESS)
+                    .sendToTarget();
+        }
+    }
+
     public void addShare(BluetoothOppShareInfo info) {
     	if (V) Log.v(TAG, "addShare info:"+info.getStatus());
+        mPostedShares.incrementAndGet();
     	mSessionHandler.obtainMessage(ADD_SHARE, info).sendToTarget();
     }
 
+    /**
+     * Sets the max OBEX packet size advertised to the remote device. Must be
+     * called before {@link #start()}.
+     */
+    public void setLocalMaxPacketSize(int size) {
+        mLocalMaxPacketSize = ObexHelper.validateMaxPacketSize(size);
+    }
+
+    /**
+     * Sets how many PUT packets may be in flight before the response to the
+     * oldest is read. Only for remote devices without Single Response Mode
+     * that are known to handle it; the default of 1 waits for every response.
+     * Must be called before {@link #start()}.
+     */
+    public void setPutPipelineWindow(int packets) {
+        if (packets < 1) {
+            throw new IllegalArgumentException("Pipeline window must be at least 1");
+        }
+        mPutPipelineWindow = packets;
+    }
+
+    /**
+     * Sets whether outgoing files are read through their file channel
+     * straight into the OBEX output queue. Must be called before
+     * {@link #start()}.
+     */
+    public void setFileChannelSourceEnabled(boolean enabled) {
+        mFileChannelSource = enabled;
+    }
+
+    /**
+     * Sets the order in which added shares are sent, see
+     * {@link BluetoothOppShareOrder}. Must be called before {@link #start()}.
+     */
+    public void setShareOrder(Comparator<BluetoothOppShareInfo> order) {
+        if (order == null) {
+            throw new NullPointerException("order is null");
+        }
+        mShareOrder = order;
+    }
+
+    /**
+     * Sets where the progress of shares is recorded so interrupted shares
+     * resume where they stopped, see {@link BluetoothOppResumeStore};
+     * <code>null</code> sends every share from the start. Must be called
+     * before {@link #start()}.
+     */
+    public void setResumeStore(BluetoothOppResumeStore store) {
+        mResumeStore = store;
+    }
+
+    /**
+     * Sets the journal that records the added shares, see
+     * {@link BluetoothOppShareJournal}; <code>null</code> keeps the queue in
+     * memory only. Must be called before {@link #start()}.
+     */
+    public void setShareJournal(BluetoothOppShareJournal journal) {
+        mShareJournal = journal;
+    }
+
+    /**
+     * Sets the watchdog that fails the session when the remote device stops
+     * answering, see {@link ObexWatchdog}; <code>null</code> waits without a
+     * deadline. Must be called before {@link #start()}.
+     */
+    public void setWatchdog(ObexWatchdog watchdog) {
+        mWatchdog = watchdog;
+    }
+
 	public void setBluetoothOppTransferListener(
 			BluetoothOppTransferListener mBluetoothOppTransferListener) {
 		this.mBluetoothOppTransferListener = mBluetoothOppTransferListener;
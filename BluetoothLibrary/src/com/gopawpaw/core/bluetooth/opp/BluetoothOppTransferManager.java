@@ -0,0 +1,627 @@
+/*
+ * Copyright (c) 2008-2009, Motorola, Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of the Motorola, Inc. nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gopawpaw.core.bluetooth.opp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.PriorityQueue;
+
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+import android.util.Log;
+
+import com.gopawpaw.core.bluetooth.extend.javax.obex.ObexWatchdog;
+import com.gopawpaw.core.bluetooth.opp.BluetoothOppTransfer.BluetoothOppTransferListener;
+
+/**
+ * Schedules pushes to many remote devices. Every device has its own queue of
+ * shares, sent one after another over a single {@link BluetoothOppTransfer}
+ * in the order set by {@link #setShareOrder(Comparator)}.
+ * At most a fixed number of devices are served at the same time; devices
+ * waiting for a free slot are served in the order they became ready, and a
+ * device gives up its slot after {@link #setSharesPerTurn(int)} shares if
+ * others are waiting.
+ * <p>
+ * A {@link BluetoothOppShareInfo} must only be queued for one device, since
+ * its status is updated while it is sent.
+ */
+public class BluetoothOppTransferManager {
+    private static final String TAG = BluetoothOppTransferManager.class.getSimpleName();
+
+    private static final boolean D = Constants.DEBUG;
+
+    private static final boolean V = Constants.VERBOSE;
+
+    /**
+     * An interface for notifying the progress of the scheduled shares. It is
+     * called on the handler thread of the transfer that sends the share.
+     */
+    public interface BluetoothOppTransferManagerListener {
+
+        public void onTransferStart(BluetoothDevice device, BluetoothOppShareInfo share, int size);
+
+        public void onTransferProgress(BluetoothDevice device, BluetoothOppShareInfo share,
+                int progress);
+
+        public void onShareSuccess(BluetoothDevice device, BluetoothOppShareInfo share);
+
+        public void onShareFailed(BluetoothDevice device, BluetoothOppShareInfo share,
+                int failReason);
+
+        /** Called when every share queued for the device has been handled */
+        public void onDeviceComplete(BluetoothDevice device);
+    }
+
+    private final Context mContext;
+
+    private final int mMaxConcurrentTransfers;
+
+    private int mSharesPerTurn = Integer.MAX_VALUE;
+
+    private Comparator<BluetoothOppShareInfo> mShareOrder = BluetoothOppShareOrder.FIFO;
+
+    private long mShareSequence;
+
+    private BluetoothOppShareJournal mShareJournal;
+
+    private BluetoothOppTransferPool mTransferPool;
+
+    private ObexWatchdog mWatchdog;
+
+    /** The queues of all devices with shares pending or in progress, by address */
+    private final HashMap<String, DeviceQueue> mQueues = new HashMap<String, DeviceQueue>();
+
+    /** Devices with pending shares waiting for a free slot, oldest first */
+    private final LinkedList<DeviceQueue> mWaiting = new LinkedList<DeviceQueue>();
+
+    private int mActiveTransfers;
+
+    private boolean mShutdown;
+
+    private BluetoothOppTransferManagerListener mListener;
+
+    private long mBytesSent;
+
+    /** Time spent with at least one transfer active, not counting the current period */
+    private long mActiveMillis;
+
+    private long mActiveSince;
+
+    /**
+     * @param maxConcurrentTransfers the number of devices that may be served at
+     *        the same time
+     */
+    public BluetoothOppTransferManager(Context context, int maxConcurrentTransfers) {
+        if (maxConcurrentTransfers < 1) {
+            throw new IllegalArgumentException("At least one transfer must be allowed");
+        }
+        mContext = context;
+        mMaxConcurrentTransfers = maxConcurrentTransfers;
+    }
+
+    public synchronized void setBluetoothOppTransferManagerListener(
+            BluetoothOppTransferManagerListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Sets how many shares a device may send before it gives up its slot to a
+     * waiting device. The default lets a device send its whole queue over one
+     * connection.
+     */
+    public synchronized void setSharesPerTurn(int shares) {
+        if (shares < 1) {
+            throw new IllegalArgumentException("At least one share per turn must be allowed");
+        }
+        mSharesPerTurn = shares;
+    }
+
+    /**
+     * Sets the order in which the shares queued for a device are sent, see
+     * {@link BluetoothOppShareOrder}. Applies to shares queued afterwards.
+     */
+    public synchronized void setShareOrder(Comparator<BluetoothOppShareInfo> order) {
+        if (order == null) {
+            throw new NullPointerException("order is null");
+        }
+        mShareOrder = order;
+    }
+
+    /**
+     * Sets the journal that records queued shares and their status, see
+     * {@link BluetoothOppShareJournal}. After a restart, the shares returned
+     * by {@link BluetoothOppShareJournal#open()} can be queued again for the
+     * device named by {@link BluetoothOppShareInfo#getDestination()}.
+     */
+    public synchronized void setShareJournal(BluetoothOppShareJournal journal) {
+        mShareJournal = journal;
+    }
+
+    /**
+     * Sets the pool that keeps connections open between turns. A device
+     * whose turn ended normally keeps its connection in the pool, and its
+     * next turn reuses it instead of connecting again; <code>null</code>
+     * disconnects after every turn.
+     */
+    public synchronized void setTransferPool(BluetoothOppTransferPool pool) {
+        mTransferPool = pool;
+    }
+
+    /**
+     * Sets the watchdog given to the transfers started from now on, so a
+     * device that stops answering fails its turn instead of holding a slot,
+     * see {@link ObexWatchdog}; <code>null</code> waits without a deadline.
+     */
+    public synchronized void setWatchdog(ObexWatchdog watchdog) {
+        mWatchdog = watchdog;
+    }
+
+    /**
+     * Queues a share for the device and starts a transfer for it as soon as
+     * a slot is free.
+     */
+    public void enqueue(BluetoothDevice device, BluetoothOppShareInfo share) {
+        synchronized (this) {
+            if (mShutdown) {
+                throw new IllegalStateException("Transfer manager is shut down");
+            }
+            String address = device.getAddress();
+            DeviceQueue queue = mQueues.get(address);
+            if (queue == null) {
+                queue = new DeviceQueue(device);
+                mQueues.put(address, queue);
+            }
+            share.setDestination(address);
+            share.setStatus(BluetoothOppShareInfo.STATUS_PENDING);
+            queue.mPending.offer(new BluetoothOppShareOrder.Entry(share, mShareSequence++,
+                    mShareOrder));
+            if ((queue.mTransfer == null) && !queue.mWaiting) {
+                queue.mWaiting = true;
+                mWaiting.addLast(queue);
+            }
+            if (V) Log.v(TAG, "enqueue " + share.getFilePath() + " for " + address);
+            if (mShareJournal != null) {
+                try {
+                    mShareJournal.add(share);
+                } catch (IOException e) {
+                    Log.e(TAG, "Error journaling share: " + e);
+                }
+            }
+        }
+        schedule();
+    }
+
+    /**
+     * Drops the shares queued for the device and stops its transfer. The
+     * shares are reported as failed with
+     * {@link BluetoothOppShareInfo#STATUS_CANCELED}.
+     */
+    public void cancel(BluetoothDevice device) {
+        DeviceQueue queue;
+        synchronized (this) {
+            queue = mQueues.get(device.getAddress());
+        }
+        if (queue != null) {
+            cancel(queue);
+        }
+        schedule();
+    }
+
+    /**
+     * Cancels every queued share and stops all transfers. No shares may be
+     * queued afterwards.
+     */
+    public void shutdown() {
+        ArrayList<DeviceQueue> queues;
+        synchronized (this) {
+            mShutdown = true;
+            queues = new ArrayList<DeviceQueue>(mQueues.values());
+        }
+        for (DeviceQueue queue : queues) {
+            cancel(queue);
+        }
+    }
+
+    public synchronized int getActiveTransferCount() {
+        return mActiveTransfers;
+    }
+
+    public synchronized int getPendingShareCount() {
+        int count = 0;
+        for (DeviceQueue queue : mQueues.values()) {
+            count += queue.mPending.size();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of file bytes sent to all devices so far.
+     */
+    public synchronized long getBytesSent() {
+        return mBytesSent;
+    }
+
+    /**
+     * Returns the aggregate throughput of all transfers in bytes per second,
+     * measured over the time at least one transfer was active.
+     */
+    public synchronized long getThroughput() {
+        long millis = mActiveMillis;
+        if (mActiveTransfers > 0) {
+            millis += System.currentTimeMillis() - mActiveSince;
+        }
+        return (millis > 0) ? (mBytesSent * 1000 / millis) : 0;
+    }
+
+    /**
+     * Creates the transfer for a device. Subclasses may override this to
+     * configure the transfer, e.g. its packet size; the transfer must not be
+     * started.
+     */
+    protected BluetoothOppTransfer createTransfer(BluetoothDevice device) {
+        return new BluetoothOppTransfer(mContext, device);
+    }
+
+    /**
+     * Starts transfers for waiting devices while slots are free.
+     */
+    private void schedule() {
+        ArrayList<BluetoothOppTransfer> started = new ArrayList<BluetoothOppTransfer>();
+        synchronized (this) {
+            while (!mShutdown && (mActiveTransfers < mMaxConcurrentTransfers)
+                    && !mWaiting.isEmpty()) {
+                DeviceQueue queue = mWaiting.removeFirst();
+                queue.mWaiting = false;
+                BluetoothOppTransfer transfer = (mTransferPool != null)
+                        ? mTransferPool.acquire(queue.mDevice) : null;
+                boolean reused = (transfer != null);
+                if (!reused) {
+                    transfer = createTransfer(queue.mDevice);
+                    transfer.setBluetoothOppTransferListener(new DeviceListener(queue, transfer));
+                    transfer.setShareJournal(mShareJournal);
+                    transfer.setWatchdog(mWatchdog);
+                    started.add(transfer);
+                }
+                queue.mTransfer = transfer;
+                queue.mSharesThisTurn = 0;
+                if (mActiveTransfers++ == 0) {
+                    mActiveSince = System.currentTimeMillis();
+                }
+                if (reused) {
+                    // reports onConnect once this lock is released
+                    transfer.attach(new DeviceListener(queue, transfer));
+                }
+                if (D) Log.d(TAG, (reused ? "reuse" : "start") + " transfer to "
+                        + queue.mDevice.getAddress() + ", " + mActiveTransfers + " active");
+            }
+        }
+        for (BluetoothOppTransfer transfer : started) {
+            transfer.start();
+        }
+    }
+
+    /**
+     * Takes the next share for the active transfer of the queue, or returns
+     * null if the turn of the device is over.
+     */
+    private synchronized BluetoothOppShareInfo takeNext(DeviceQueue queue) {
+        if (queue.mPending.isEmpty()) {
+            return null;
+        }
+        if ((queue.mSharesThisTurn >= mSharesPerTurn) && !mWaiting.isEmpty()) {
+            return null;
+        }
+        queue.mCurrent = queue.mPending.poll().mShare;
+        queue.mProgress = 0;
+        queue.mSize = 0;
+        queue.mSharesThisTurn++;
+        return queue.mCurrent;
+    }
+
+    /**
+     * Ends the turn of the device: stops its transfer, or hands it to the pool
+     * if the turn ended normally, frees the slot and queues the device again
+     * if it still has shares.
+     */
+    private void finishTurn(DeviceQueue queue, BluetoothOppTransfer transfer,
+            boolean reusable) {
+        boolean complete;
+        BluetoothOppTransferManagerListener listener;
+        BluetoothOppTransferPool pool;
+        synchronized (this) {
+            if (queue.mTransfer != transfer) {
+                return;
+            }
+            queue.mTransfer = null;
+            queue.mCurrent = null;
+            if (--mActiveTransfers == 0) {
+                mActiveMillis += System.currentTimeMillis() - mActiveSince;
+            }
+            complete = queue.mPending.isEmpty();
+            if (complete) {
+                mQueues.remove(queue.mDevice.getAddress());
+            } else if (!mShutdown) {
+                queue.mWaiting = true;
+                mWaiting.addLast(queue);
+            }
+            listener = mListener;
+            pool = mTransferPool;
+        }
+        if (V) Log.v(TAG, "turn of " + queue.mDevice.getAddress() + " finished");
+        if (reusable && (pool != null)) {
+            pool.release(transfer);
+        } else {
+            transfer.stop();
+        }
+        if (complete && (listener != null)) {
+            listener.onDeviceComplete(queue.mDevice);
+        }
+        schedule();
+    }
+
+    private void cancel(DeviceQueue queue) {
+        ArrayList<BluetoothOppShareInfo> canceled = new ArrayList<BluetoothOppShareInfo>();
+        BluetoothOppTransfer transfer;
+        synchronized (this) {
+            queue.drainPending(canceled);
+            if (queue.mWaiting) {
+                queue.mWaiting = false;
+                mWaiting.remove(queue);
+                mQueues.remove(queue.mDevice.getAddress());
+            }
+            transfer = queue.mTransfer;
+            if ((transfer != null) && (queue.mCurrent != null)) {
+                canceled.add(0, queue.mCurrent);
+                queue.mCurrent = null;
+            }
+        }
+        notifyFailed(queue, canceled, BluetoothOppShareInfo.STATUS_CANCELED);
+        if (transfer != null) {
+            finishTurn(queue, transfer, false);
+        }
+    }
+
+    private void notifyFailed(DeviceQueue queue, ArrayList<BluetoothOppShareInfo> shares,
+            int failReason) {
+        BluetoothOppTransferManagerListener listener;
+        BluetoothOppShareJournal journal;
+        synchronized (this) {
+            listener = mListener;
+            journal = mShareJournal;
+        }
+        for (BluetoothOppShareInfo share : shares) {
+            share.setStatus(failReason);
+            if (journal != null) {
+                try {
+                    journal.update(share, failReason);
+                } catch (IOException e) {
+                    Log.e(TAG, "Error journaling share status: " + e);
+                }
+            }
+            if (listener != null) {
+                listener.onShareFailed(queue.mDevice, share, failReason);
+            }
+        }
+    }
+
+    /**
+     * The shares of one device.
+     */
+    private static final class DeviceQueue {
+        final BluetoothDevice mDevice;
+
+        final PriorityQueue<BluetoothOppShareOrder.Entry> mPending =
+                new PriorityQueue<BluetoothOppShareOrder.Entry>();
+
+        /** The transfer serving this device, or null if it has no slot */
+        BluetoothOppTransfer mTransfer;
+
+        /** The share being sent by mTransfer */
+        BluetoothOppShareInfo mCurrent;
+
+        /** Bytes of mCurrent sent so far */
+        int mProgress;
+
+        /** Length of mCurrent, once its transfer has started */
+        int mSize;
+
+        int mSharesThisTurn;
+
+        /** Whether the queue is in the waiting list */
+        boolean mWaiting;
+
+        DeviceQueue(BluetoothDevice device) {
+            mDevice = device;
+        }
+
+        /** Moves the pending shares to the list, in queue order */
+        void drainPending(ArrayList<BluetoothOppShareInfo> shares) {
+            while (!mPending.isEmpty()) {
+                shares.add(mPending.poll().mShare);
+            }
+        }
+    }
+
+    /**
+     * Receives the events of one transfer. Events of a transfer whose turn is
+     * over are ignored.
+     */
+    private final class DeviceListener implements BluetoothOppTransferListener {
+        private final DeviceQueue mQueue;
+
+        private final BluetoothOppTransfer mTransfer;
+
+        DeviceListener(DeviceQueue queue, BluetoothOppTransfer transfer) {
+            mQueue = queue;
+            mTransfer = transfer;
+        }
+
+        private boolean isActive() {
+            synchronized (BluetoothOppTransferManager.this) {
+                return mQueue.mTransfer == mTransfer;
+            }
+        }
+
+        private BluetoothOppTransferManagerListener listener() {
+            synchronized (BluetoothOppTransferManager.this) {
+                return mListener;
+            }
+        }
+
+        /**
+         * Sends the next share of the device, or ends its turn.
+         */
+        private void sendNext() {
+            BluetoothOppShareInfo next = takeNext(mQueue);
+            if (next != null) {
+                mTransfer.addShare(next);
+            } else {
+                finishTurn(mQueue, mTransfer, true);
+            }
+        }
+
+        /**
+         * Fails the share being sent, and every pending share if the device
+         * could not be reached at all, then ends the turn.
+         */
+        private void failTurn(int failReason, boolean unreachable) {
+            ArrayList<BluetoothOppShareInfo> failed = new ArrayList<BluetoothOppShareInfo>();
+            synchronized (BluetoothOppTransferManager.this) {
+                if (mQueue.mTransfer != mTransfer) {
+                    return;
+                }
+                if (mQueue.mCurrent != null) {
+                    failed.add(mQueue.mCurrent);
+                    mQueue.mCurrent = null;
+                }
+                if (unreachable) {
+                    mQueue.drainPending(failed);
+                }
+            }
+            notifyFailed(mQueue, failed, failReason);
+            finishTurn(mQueue, mTransfer, false);
+        }
+
+        public void onConnect(int state) {
+            if (isActive()) {
+                sendNext();
+            }
+        }
+
+        public void onDisconnect(int state) {
+            failTurn(BluetoothOppShareInfo.STATUS_CONNECTION_ERROR, false);
+        }
+
+        public void onTransferStart(BluetoothOppShareInfo share, int size) {
+            synchronized (BluetoothOppTransferManager.this) {
+                if ((mQueue.mTransfer != mTransfer) || (share != mQueue.mCurrent)) {
+                    return;
+                }
+                mQueue.mSize = size;
+            }
+            BluetoothOppTransferManagerListener listener = listener();
+            if (listener != null) {
+                listener.onTransferStart(mQueue.mDevice, share, size);
+            }
+        }
+
+        public void onTransferProgress(BluetoothOppShareInfo share, int progress) {
+            synchronized (BluetoothOppTransferManager.this) {
+                if ((mQueue.mTransfer != mTransfer) || (share != mQueue.mCurrent)) {
+                    return;
+                }
+                mBytesSent += progress - mQueue.mProgress;
+                mQueue.mProgress = progress;
+            }
+            BluetoothOppTransferManagerListener listener = listener();
+            if (listener != null) {
+                listener.onTransferProgress(mQueue.mDevice, share, progress);
+            }
+        }
+
+        public void onShareTimeout(BluetoothOppShareInfo share) {
+            failTurn(BluetoothOppShareInfo.STATUS_CONNECTION_ERROR, false);
+        }
+
+        public void onShareFailed(BluetoothOppShareInfo share, int failReason) {
+            boolean fileError;
+            boolean unreachable;
+            synchronized (BluetoothOppTransferManager.this) {
+                if (mQueue.mTransfer != mTransfer) {
+                    return;
+                }
+                if ((share != null) && (share != mQueue.mCurrent)) {
+                    // already handled
+                    return;
+                }
+                // a file that can not be read leaves the session usable
+                fileError = (share != null)
+                        && (failReason == BluetoothOppShareInfo.STATUS_FILE_ERROR);
+                if (fileError) {
+                    mQueue.mCurrent = null;
+                }
+                unreachable = (share == null) && (mQueue.mSharesThisTurn == 0);
+            }
+            if (fileError) {
+                BluetoothOppTransferManagerListener listener = listener();
+                if (listener != null) {
+                    listener.onShareFailed(mQueue.mDevice, share, failReason);
+                }
+                sendNext();
+            } else {
+                failTurn(failReason, unreachable);
+            }
+        }
+
+        public void onShareSuccess(BluetoothOppShareInfo share) {
+            synchronized (BluetoothOppTransferManager.this) {
+                if ((mQueue.mTransfer != mTransfer) || (share != mQueue.mCurrent)) {
+                    return;
+                }
+                // the first packet is not reported as progress
+                if (mQueue.mSize > mQueue.mProgress) {
+                    mBytesSent += mQueue.mSize - mQueue.mProgress;
+                }
+                mQueue.mCurrent = null;
+            }
+            BluetoothOppTransferManagerListener listener = listener();
+            if (listener != null) {
+                listener.onShareSuccess(mQueue.mDevice, share);
+            }
+            sendNext();
+        }
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright (c) 2008-2009, Motorola, Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * - Neither the name of the Motorola, Inc. nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.gopawpaw.core.bluetooth.opp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import com.gopawpaw.core.bluetooth.extend.javax.obex.ObexHelper;
+import com.gopawpaw.core.bluetooth.extend.javax.obex.ObexWatchdog;
+
+/**
+ * Keeps connected transfers open after use, keyed by the address of the
+ * remote device, so the next push to the same device skips the RFCOMM
+ * connect and the OBEX CONNECT.
+ * <p>
+ * A transfer handed back with {@link #release(BluetoothOppTransfer)} stays
+ * connected and idle until it is acquired again, it has been idle for the
+ * idle timeout, or a health check finds it dead. A transfer handed back
+ * with shares still waiting or being sent is stopped instead, since the
+ * health check would use its session meanwhile. The socket does not report
+ * that the remote device closed the RFCOMM channel, so the health check
+ * sends each idle session a GET without headers and stops the transfers
+ * that get no response within {@link #PROBE_TIMEOUT}. A transfer is taken
+ * out of the pool while it is probed. A link that dies after its last probe
+ * is still handed out, and fails like any new connection would.
+ */
+public class BluetoothOppTransferPool {
+    private static final String TAG = BluetoothOppTransferPool.class.getSimpleName();
+
+    private static final boolean D = Constants.DEBUG;
+
+    private static final boolean V = Constants.VERBOSE;
+
+    public static final long DEFAULT_IDLE_TIMEOUT = 30000;
+
+    /** Time between two health checks of the idle transfers */
+    private static final long HEALTH_CHECK_INTERVAL = 5000;
+
+    /** How long a probe of an idle session may wait for the response */
+    public static final long PROBE_TIMEOUT = 2000;
+
+    private final long mIdleTimeout;
+
+    /** The idle transfers, by device address */
+    private final HashMap<String, IdleTransfer> mIdle = new HashMap<String, IdleTransfer>();
+
+    private HandlerThread mHandlerThread;
+
+    private Handler mHandler;
+
+    /** Puts the deadline on the probes; created with the handler thread */
+    private ObexWatchdog mProbeWatchdog;
+
+    /** The transfers the health check has taken out to probe */
+    private final ArrayList<IdleTransfer> mProbing = new ArrayList<IdleTransfer>();
+
+    private boolean mCheckScheduled;
+
+    private boolean mShutdown;
+
+    private final Runnable mHealthCheck = new Runnable() {
+        public void run() {
+            checkIdle();
+        }
+    };
+
+    public BluetoothOppTransferPool() {
+        this(DEFAULT_IDLE_TIMEOUT);
+    }
+
+    /**
+     * @param idleTimeoutMillis how long a transfer may stay idle before it is
+     *        stopped
+     */
+    public BluetoothOppTransferPool(long idleTimeoutMillis) {
+        if (idleTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("Idle timeout must be positive");
+        }
+        mIdleTimeout = idleTimeoutMillis;
+    }
+
+    /**
+     * Takes the idle transfer to the device out of the pool, if it is still
+     * connected. The caller gives it a listener with
+     * {@link BluetoothOppTransfer#attach(BluetoothOppTransfer.BluetoothOppTransferListener)}.
+     * @return the connected transfer, or null if the caller must create and
+     *         start a new one
+     */
+    public BluetoothOppTransfer acquire(BluetoothDevice device) {
+        IdleTransfer idle;
+        synchronized (this) {
+            if (mShutdown) {
+                return null;
+            }
+            idle = mIdle.remove(device.getAddress());
+        }
+        if (idle == null) {
+            return null;
+        }
+        if (!idle.mTransfer.isConnected()) {
+            if (D) Log.d(TAG, "pooled connection to " + device.getAddress() + " is closed");
+            idle.mTransfer.stop();
+            return null;
+        }
+        if (D) Log.d(TAG, "reuse connection to " + device.getAddress() + " after "
+                + (System.currentTimeMillis() - idle.mIdleSince) + " ms idle");
+        return idle.mTransfer;
+    }
+
+    /**
+     * Hands a transfer back. It is kept if it is connected, has no share
+     * waiting or being sent, and no other transfer to the device is idle. It
+     * is stopped otherwise, which ends the shares it still has. Its listener
+     * is removed.
+     */
+    public void release(BluetoothOppTransfer transfer) {
+        BluetoothOppTransfer stop = transfer;
+        transfer.setBluetoothOppTransferListener(null);
+        if (transfer.isConnected() && transfer.isIdle()) {
+            String address = transfer.getDestinationDevice().getAddress();
+            synchronized (this) {
+                if (!mShutdown && !mIdle.containsKey(address)) {
+                    mIdle.put(address, new IdleTransfer(transfer));
+                    scheduleHealthCheck();
+                    stop = null;
+                    if (V) Log.v(TAG, "keep connection to " + address + ", " + mIdle.size()
+                            + " idle");
+                }
+            }
+        }
+        if (stop != null) {
+            stop.stop();
+        }
+    }
+
+    /**
+     * Stops every idle transfer. Transfers released afterwards are stopped.
+     */
+    public void shutdown() {
+        ArrayList<BluetoothOppTransfer> stop = new ArrayList<BluetoothOppTransfer>();
+        synchronized (this) {
+            mShutdown = true;
+            for (IdleTransfer idle : mIdle.values()) {
+                stop.add(idle.mTransfer);
+            }
+            mIdle.clear();
+            // stopping them ends the probes, which lose their deadline below
+            for (IdleTransfer idle : mProbing) {
+                stop.add(idle.mTransfer);
+            }
+            if (mHandlerThread != null) {
+                mHandler.removeCallbacks(mHealthCheck);
+                mHandlerThread.getLooper().quit();
+                mHandlerThread = null;
+                mHandler = null;
+                mProbeWatchdog.shutdown();
+                mProbeWatchdog = null;
+            }
+        }
+        for (BluetoothOppTransfer transfer : stop) {
+            transfer.stop();
+        }
+    }
+
+    public synchronized int getIdleCount() {
+        return mIdle.size();
+    }
+
+    private void scheduleHealthCheck() {
+        if (mCheckScheduled) {
+            return;
+        }
+        if (mHandlerThread == null) {
+            mHandlerThread = new HandlerThread("BtOpp Transfer Pool",
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            mHandlerThread.start();
+            mHandler = new Handler(mHandlerThread.getLooper());
+            mProbeWatchdog = new ObexWatchdog();
+            mProbeWatchdog.setTimeout(ObexHelper.OBEX_OPCODE_GET, PROBE_TIMEOUT);
+        }
+        mHandler.postDelayed(mHealthCheck, Math.min(HEALTH_CHECK_INTERVAL, mIdleTimeout));
+        mCheckScheduled = true;
+    }
+
+    /**
+     * Stops the idle transfers that timed out, and probes the others outside
+     * the lock; those that answer go back to the pool.
+     */
+    private void checkIdle() {
+        ArrayList<BluetoothOppTransfer> stop = new ArrayList<BluetoothOppTransfer>();
+        ArrayList<IdleTransfer> probe = new ArrayList<IdleTransfer>();
+        ObexWatchdog watchdog;
+        synchronized (this) {
+            mCheckScheduled = false;
+            long now = System.currentTimeMillis();
+            Iterator<IdleTransfer> iterator = mIdle.values().iterator();
+            while (iterator.hasNext()) {
+                IdleTransfer idle = iterator.next();
+                iterator.remove();
+                if ((now - idle.mIdleSince >= mIdleTimeout) || !idle.mTransfer.isConnected()) {
+                    stop.add(idle.mTransfer);
+                } else {
+                    probe.add(idle);
+                }
+            }
+            mProbing.addAll(probe);
+            watchdog = mProbeWatchdog;
+        }
+        for (IdleTransfer idle : probe) {
+            if ((watchdog == null) || !idle.mTransfer.probe(watchdog)) {
+                stop.add(idle.mTransfer);
+                continue;
+            }
+            String address = idle.mTransfer.getDestinationDevice().getAddress();
+            synchronized (this) {
+                mProbing.remove(idle);
+                // another transfer to the device may have been released meanwhile
+                if (!mShutdown && !mIdle.containsKey(address)) {
+                    mIdle.put(address, idle);
+                    idle = null;
+                }
+            }
+            if (idle != null) {
+                stop.add(idle.mTransfer);
+            }
+        }
+        synchronized (this) {
+            mProbing.clear();
+            if (!mIdle.isEmpty() && !mShutdown) {
+                scheduleHealthCheck();
+            }
+        }
+        if (V && !stop.isEmpty()) Log.v(TAG, "close " + stop.size() + " idle connections");
+        for (BluetoothOppTransfer transfer : stop) {
+            transfer.stop();
+        }
+    }
+
+    private static final class IdleTransfer {
+        final BluetoothOppTransfer mTransfer;
+
+        final long mIdleSince;
+
+        IdleTransfer(BluetoothOppTransfer transfer) {
+            mTransfer = transfer;
+            mIdleSince = System.currentTimeMillis();
+        }
+    }
+}
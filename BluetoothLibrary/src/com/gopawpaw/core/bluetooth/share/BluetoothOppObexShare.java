@@ -1,11 +1,15 @@
 package com.gopawpaw.core.bluetooth.share;
 
+import java.util.Comparator;
+
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.content.Context;
 
 import com.gopawpaw.core.bluetooth.opp.BluetoothOppShareInfo;
+import com.gopawpaw.core.bluetooth.opp.BluetoothOppShareOrder;
 import com.gopawpaw.core.bluetooth.opp.BluetoothOppTransfer;
+import com.gopawpaw.core.bluetooth.opp.BluetoothOppTransferPool;
 import com.gopawpaw.core.bluetooth.opp.BluetoothOppTransfer.BluetoothOppTransferListener;
 import com.gopawpaw.core.bluetooth.share.OppObexShareCallback.StatusType;
 
@@ -18,6 +22,17 @@ public interface BluetoothOppObexShare {
 	
 	void shareFile(BluetoothOppShareInfo shareInfo);
 	
+	/**
+	 * 设置分享的发送顺序，见 {@link BluetoothOppShareOrder}；须在 connect() 之前调用
+	 */
+	BluetoothOppObexShare setShareOrder(Comparator<BluetoothOppShareInfo> order);
+	
+	/**
+	 * 设置连接池，见 {@link BluetoothOppTransferPool}；connect() 优先复用池中到该设备的连接，
+	 * disconnect() 时把连接交还连接池而不断开。须在 connect() 之前调用
+	 */
+	BluetoothOppObexShare setTransferPool(BluetoothOppTransferPool pool);
+	
 	BluetoothOppObexShare connect();
 	
 	void disconnect();
@@ -36,6 +51,8 @@ public interface BluetoothOppObexShare {
 			private BluetoothDevice device;
 			private OppObexShareCallback callback;
 			private BluetoothOppTransfer btOppT;
+			private Comparator<BluetoothOppShareInfo> shareOrder = BluetoothOppShareOrder.FIFO;
+			private BluetoothOppTransferPool transferPool;
 			public BluetoothOppObexShareImpl(Context context,
 					BluetoothDevice device, OppObexShareCallback callback) {
 				super();
@@ -48,18 +65,45 @@ public interface BluetoothOppObexShare {
 			public BluetoothOppObexShare connect() {
 				BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
 				adapter.cancelDiscovery();
+				if(btOppT == null && transferPool != null){
+					btOppT = transferPool.acquire(device);
+					if(btOppT != null){
+						//复用已建立的连接
+						btOppT.attach(this);
+					}
+				}
 				if(btOppT == null){
 					btOppT = new BluetoothOppTransfer(context,device);
 					btOppT.setBluetoothOppTransferListener(this);
+					btOppT.setShareOrder(shareOrder);
 					btOppT.start();
 				}
 				return this;
 			}
 			
+			@Override
+			public BluetoothOppObexShare setTransferPool(BluetoothOppTransferPool pool) {
+				transferPool = pool;
+				return this;
+			}
+			
+			@Override
+			public BluetoothOppObexShare setShareOrder(Comparator<BluetoothOppShareInfo> order) {
+				if(order == null){
+					throw new NullPointerException("order is null");
+				}
+				shareOrder = order;
+				return this;
+			}
+			
 			@Override
 			public void disconnect() {
 				if(btOppT != null){
-					btOppT.stop();
+					if(transferPool != null){
+						transferPool.release(btOppT);
+					}else{
+						btOppT.stop();
+					}
 					btOppT = null;
 				}
 			}